@@ -0,0 +1,22 @@
+#!/bin/sh
+# builds build/chip8.jar and a class data sharing (AppCDS) archive for it,
+# which makes the JVM start faster since the classes don't have to be loaded and verified again
+#
+#   ./build.sh                          training run with the window (needs a display)
+#   ./build.sh --headless rom.ch8       training run with the headless runner
+#
+# afterwards start the interpreter with
+#   java -XX:SharedArchiveFile=build/chip8.jsa -jar build/chip8.jar
+# and add -Dchip8.printStartupTime=true to see the time to the first frame
+set -e
+cd "$(dirname "$0")"
+
+rm -rf build
+mkdir -p build/classes
+javac -d build/classes src/*.java
+jar cfm build/chip8.jar src/META-INF/MANIFEST.MF -C build/classes .
+
+# the training run exits after the first frame and dumps all classes it loaded
+java -XX:ArchiveClassesAtExit=build/chip8.jsa -Dchip8.exitAfterFirstFrame=true -jar build/chip8.jar "$@" > /dev/null
+
+echo "built build/chip8.jar and build/chip8.jsa"
@@ -0,0 +1,254 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// a batch of machines running the same program, stepped together, for training agents
+// (like a vectorized gym environment):
+//   BatchEnvironment env = new BatchEnvironment(rom, 256, 4, ForkJoinPool.commonPool());
+//   env.reset();
+//   while(...) { env.step(actions); read env.getObservations(), getRewards(), getDones() }
+// an action is the set of pressed keys as a bit mask (bit k = key k), 0 means no key
+// the observation of machine i are the 32 rows of its screen at observations[32 * i ...],
+// packed like in FrameBuffer (pixel x of a row is bit 63 - x)
+// a step runs frameSkip frames of every machine, the reward is summed over these frames,
+// a machine that is done is reset automatically and its first observation is returned
+// apart from the hooks nothing allocates during reset and step
+public class BatchEnvironment {
+
+    // reward of machine index after a frame, e.g. read from the memory where the program keeps the score
+    interface rewardFunction {
+        double reward(int index, Machine machine);
+    }
+
+    // whether the episode of machine index is over after a frame
+    interface doneFunction {
+        boolean isDone(int index, Machine machine);
+    }
+
+    // called with the observation of machine index, e.g. to add parts of the memory
+    interface observationListener {
+        void observe(int index, Machine machine);
+    }
+
+    // the default: a program is done when it faults or halts (jumps to itself with both timers at zero)
+    static final doneFunction HALTED = new doneFunction() {
+        public boolean isDone(int index, Machine machine){
+            CPU cpu = machine.getCpu();
+            return cpu.getFault() != null || cpu.getIdleState() == CPU.IDLE_HALTED
+                    && cpu.getDelayTimer() == 0 && cpu.getSoundTimer() == 0;
+        }
+    };
+
+    // machines per fork/join task, enough work to make a task worth its overhead
+    private static final int MACHINES_PER_TASK = 16;
+
+    private final byte[] rom;
+    private final Machine[] machines;
+    private final int frameSkip;
+    private final ForkJoinPool pool;
+    private long seed = 0;
+
+    private final long[] observations;
+    private final double[] rewards;
+    private final boolean[] dones;
+    private final int[] episodes;
+    private int[] actions;
+
+    private rewardFunction rewardFunction;
+    private doneFunction doneFunction = HALTED;
+    private observationListener observationListener;
+
+    // the tasks are created once and reinitialized for every step
+    private final StepTask[] tasks;
+    private final RootTask rootTask;
+    private boolean resetting;
+
+    // constructor
+    // with pool == null the machines are stepped on the calling thread
+    public BatchEnvironment(byte[] rom, int batchSize, int frameSkip, ForkJoinPool pool){
+        if(batchSize <= 0 || frameSkip <= 0){
+            throw new IllegalArgumentException("batch size and frame skip must be positive");
+        }
+        this.rom = rom.clone();
+        this.frameSkip = frameSkip;
+        this.pool = pool;
+        machines = new Machine[batchSize];
+        for(int i = 0; i < batchSize; i++){
+            machines[i] = new Machine();
+        }
+        observations = new long[batchSize * FrameBuffer.HEIGHT];
+        rewards = new double[batchSize];
+        dones = new boolean[batchSize];
+        episodes = new int[batchSize];
+
+        tasks = new StepTask[(batchSize + MACHINES_PER_TASK - 1) / MACHINES_PER_TASK];
+        for(int t = 0; t < tasks.length; t++){
+            tasks[t] = new StepTask(t * MACHINES_PER_TASK, Math.min(batchSize, (t + 1) * MACHINES_PER_TASK));
+        }
+        rootTask = new RootTask();
+    }
+
+    // methods
+
+    // starts a new episode on every machine
+    public void reset(){
+        resetting = true;
+        run();
+    }
+
+    // runs frameSkip frames of every machine with actions[i] as the pressed keys of machine i
+    public void step(int[] actions){
+        if(actions.length != machines.length){
+            throw new IllegalArgumentException("expected " + machines.length + " actions, got " + actions.length);
+        }
+        this.actions = actions;
+        resetting = false;
+        run();
+    }
+
+    private void run(){
+        if(pool == null){
+            for(StepTask task : tasks){
+                task.compute();
+            }
+        } else {
+            rootTask.reinitialize();
+            pool.invoke(rootTask);
+        }
+    }
+
+    // forks all step tasks and waits for them
+    class RootTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        protected void compute(){
+            for(StepTask task : tasks){
+                task.reinitialize();
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    // resets or steps the machines from..to-1
+    class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        StepTask(int from, int to){
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute(){
+            for(int i = from; i < to; i++){
+                if(resetting){
+                    resetMachine(i);
+                    rewards[i] = 0;
+                    dones[i] = false;
+                } else {
+                    stepMachine(i);
+                }
+                observe(i);
+            }
+        }
+    }
+
+    private void resetMachine(int i){
+        Machine machine = machines[i];
+        machine.loadRom(rom);
+        // a different but reproducible random sequence for every machine and episode
+        machine.getCpu().setRandomSeed(seed + i + (long) episodes[i] * machines.length);
+        episodes[i]++;
+    }
+
+    private void stepMachine(int i){
+        Machine machine = machines[i];
+        Keypad keypad = machine.getKeypad();
+        int keys = actions[i];
+        for(int key = 0; key < 16; key++){
+            keypad.setKeyPressed(key, (keys >>> key & 1) != 0);
+        }
+
+        double reward = 0;
+        boolean done = false;
+        for(int frame = 0; frame < frameSkip & !done; frame++){
+            machine.runFrame(CPU.STOP_FAULT);
+            if(rewardFunction != null){
+                reward += rewardFunction.reward(i, machine);
+            }
+            done = doneFunction.isDone(i, machine);
+        }
+        rewards[i] = reward;
+        dones[i] = done;
+        if(done){
+            resetMachine(i);
+        }
+    }
+
+    private void observe(int i){
+        machines[i].getFrameBuffer().copyRowsTo(observations, i * FrameBuffer.HEIGHT);
+        if(observationListener != null){
+            observationListener.observe(i, machines[i]);
+        }
+    }
+
+    // the screens of all machines after the last reset or step, the array is reused
+    public long[] getObservations(){
+        return observations;
+    }
+
+    public double[] getRewards(){
+        return rewards;
+    }
+
+    public boolean[] getDones(){
+        return dones;
+    }
+
+    public int getBatchSize(){
+        return machines.length;
+    }
+
+    public int getFrameSkip(){
+        return frameSkip;
+    }
+
+    // e.g. to set the quirks before the first reset
+    public Machine getMachine(int index){
+        return machines[index];
+    }
+
+    // the seed of the random number generators, used from the next reset on
+    public void setSeed(long seed){
+        this.seed = seed;
+    }
+
+    public void setRewardFunction(rewardFunction rewardFunction){
+        this.rewardFunction = rewardFunction;
+    }
+
+    public void setDoneFunction(doneFunction doneFunction){
+        this.doneFunction = doneFunction;
+    }
+
+    public void setObservationListener(observationListener observationListener){
+        this.observationListener = observationListener;
+    }
+
+}
@@ -0,0 +1,516 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// small benchmarks over a corpus of ROM files, run without a window
+//   java -cp chip8.jar Benchmark fusion [-n instructions] rom.ch8 ...
+//   java -cp chip8.jar Benchmark environment [-n frames] rom.ch8 ...
+//   java -cp chip8.jar Benchmark machines [-n instructions] rom.ch8 ...
+//   java -cp chip8.jar Benchmark fork [-n forks] rom.ch8 ...
+//   java -cp chip8.jar Benchmark stream [-n frames] rom.ch8 ...
+//   java -cp chip8.jar Benchmark quirks [-n instructions] rom.ch8 ...
+public class Benchmark {
+
+    private static final int DEFAULT_INSTRUCTIONS = 2_000_000;
+
+    private static long instructions = DEFAULT_INSTRUCTIONS;
+    // results which are otherwise unused, so that the JIT can't leave out the work
+    private static long sink;
+
+    public static void main(String[] args){
+        if(args.length < 2){
+            printUsage();
+            return;
+        }
+
+        String mode = args[0];
+        List<File> roms = new ArrayList<>();
+        for(int i = 1; i < args.length; i++){
+            if(args[i].equals("-n") & i + 1 < args.length){
+                instructions = Long.parseLong(args[++i]);
+            } else {
+                roms.add(new File(args[i]));
+            }
+        }
+
+        switch(mode){
+            case "fusion":
+                fusion(roms);
+                break;
+            case "environment":
+                environment(roms);
+                break;
+            case "machines":
+                machines(roms);
+                break;
+            case "fork":
+                fork(roms);
+                break;
+            case "stream":
+                stream(roms);
+                break;
+            case "quirks":
+                quirks(roms);
+                break;
+            default:
+                printUsage();
+        }
+    }
+
+    private static void printUsage(){
+        System.out.println("usage: java -cp chip8.jar Benchmark fusion [-n instructions] rom.ch8 ...");
+        System.out.println("       java -cp chip8.jar Benchmark environment [-n frames] rom.ch8 ...");
+        System.out.println("       java -cp chip8.jar Benchmark machines [-n instructions] rom.ch8 ...");
+        System.out.println("       java -cp chip8.jar Benchmark fork [-n forks] rom.ch8 ...");
+        System.out.println("       java -cp chip8.jar Benchmark stream [-n frames] rom.ch8 ...");
+        System.out.println("       java -cp chip8.jar Benchmark quirks [-n instructions] rom.ch8 ...");
+    }
+
+    // compares the number of dispatches (fetch and decode of an instruction or a fused sequence)
+    // and the time per instruction with and without fusing instructions
+    private static void fusion(List<File> roms){
+        System.out.printf("%-24s %12s %12s %10s %12s %12s%n", "ROM", "instructions", "dispatches", "reduction", "ns/instr", "fused ns/i");
+
+        long totalInstructions = 0;
+        long totalDispatches = 0;
+        for(File rom : roms){
+            // a first round to warm up the JIT, then the measured round
+            runFused(rom, false);
+            runFused(rom, true);
+            long[] plain = runFused(rom, false);
+            long[] fused = runFused(rom, true);
+            if(fused[0] == 0){
+                continue;
+            }
+
+            totalInstructions += fused[0];
+            totalDispatches += fused[1];
+            System.out.printf("%-24s %12d %12d %9.1f%% %12.1f %12.1f%n", rom.getName(), fused[0], fused[1],
+                    100.0 * (fused[0] - fused[1]) / fused[0],
+                    (double) plain[2] / plain[0], (double) fused[2] / fused[0]);
+        }
+        if(totalInstructions > 0) {
+            System.out.printf("%-24s %12d %12d %9.1f%%%n", "total", totalInstructions, totalDispatches,
+                    100.0 * (totalInstructions - totalDispatches) / totalInstructions);
+        }
+    }
+
+    // steps of a BatchEnvironment per second for a few batch sizes on the common fork/join pool,
+    // and the bytes allocated per step when stepping on a single thread
+    private static void environment(List<File> roms){
+        final int frameSkip = 4;
+        long frames = instructions == DEFAULT_INSTRUCTIONS ? 2_000_000 : instructions;
+        System.out.printf("%-24s %8s %14s %14s %12s%n", "ROM", "batch", "steps/s", "frames/s", "bytes/step");
+        for(File rom : roms){
+            byte[] program;
+            try {
+                program = Files.readAllBytes(rom.toPath());
+            } catch(IOException e) {
+                System.out.println(rom.getName() + ": " + e.getMessage());
+                continue;
+            }
+            for(int batchSize : new int[]{1, 64, 1024}){
+                int steps = (int) Math.max(1, frames / frameSkip / batchSize);
+                // a first round to warm up the JIT, then the measured round
+                int[] actions = new int[batchSize];
+                stepEnvironment(new BatchEnvironment(program, batchSize, frameSkip, ForkJoinPool.commonPool()), actions, steps);
+                long elapsed = stepEnvironment(new BatchEnvironment(program, batchSize, frameSkip, ForkJoinPool.commonPool()), actions, steps);
+
+                BatchEnvironment sequential = new BatchEnvironment(program, batchSize, frameSkip, null);
+                stepEnvironment(sequential, actions, steps);
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+                stepEnvironment(sequential, actions, steps);
+                long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+                System.out.printf("%-24s %8d %14.0f %14.0f %12.1f%n", rom.getName(), batchSize,
+                        steps * 1e9 / elapsed, (double) steps * batchSize * frameSkip * 1e9 / elapsed,
+                        (double) allocated / steps);
+            }
+        }
+    }
+
+    // K separate Machines against one MachineArray of K machines: bytes per machine and instructions
+    // per second, with the machines run one after the other and in lockstep,
+    // and whether all machines end up in the same state
+    private static void machines(List<File> roms){
+        System.out.printf("%-24s %6s %10s %10s %14s %14s %14s %6s%n", "ROM", "K", "B/Machine", "B/array",
+                "Machines i/s", "array i/s", "lockstep i/s", "same");
+        for(File rom : roms){
+            byte[] program;
+            try {
+                program = Files.readAllBytes(rom.toPath());
+            } catch(IOException e) {
+                System.out.println(rom.getName() + ": " + e.getMessage());
+                continue;
+            }
+            for(int k : new int[]{100, 1000, 10000}){
+                int frames = (int) Math.max(1, instructions / Machine.DEFAULT_INSTRUCTIONS_PER_FRAME / k);
+
+                long before = usedMemory();
+                Machine[] machines = new Machine[k];
+                for(int m = 0; m < k; m++){
+                    machines[m] = new Machine();
+                }
+                long machineBytes = (usedMemory() - before) / k;
+                before = usedMemory();
+                MachineArray array = new MachineArray(k);
+                long arrayBytes = (usedMemory() - before) / k;
+
+                // a first round to warm up the JIT, then the measured round
+                runMachines(machines, program, frames);
+                long[] separate = runMachines(machines, program, frames);
+                runMachineArray(array, program, frames, false);
+                long[] packed = runMachineArray(array, program, frames, false);
+                MachineArray lockstepArray = new MachineArray(k);
+                runMachineArray(lockstepArray, program, frames, true);
+                long[] lockstep = runMachineArray(lockstepArray, program, frames, true);
+
+                boolean same = true;
+                for(int m = 0; m < k; m++){
+                    long hash = machines[m].stateHash();
+                    same &= hash == array.stateHash(m) & hash == lockstepArray.stateHash(m);
+                }
+
+                System.out.printf("%-24s %6d %10d %10d %14.0f %14.0f %14.0f %6s%n", rom.getName(), k,
+                        machineBytes, arrayBytes, separate[0] * 1e9 / separate[1], packed[0] * 1e9 / packed[1],
+                        lockstep[0] * 1e9 / lockstep[1], same ? "yes" : "NO");
+            }
+        }
+    }
+
+    // Machine.fork against Machine.copy (a deep copy) of a machine which has run for a second:
+    // time and allocated bytes per fork, the memory kept by 10000 forks before and after
+    // they have run a frame, and whether forks and copies run on like the original
+    private static void fork(List<File> roms){
+        final int kept = 10000;
+        int forks = (int) (instructions == DEFAULT_INSTRUCTIONS ? 1_000_000 : instructions);
+        System.out.printf("%-24s %9s %9s %9s %9s %10s %10s %10s %10s %6s%n", "ROM", "ns/fork", "ns/copy",
+                "B/fork", "B/copy", "kept fork", "kept copy", "+frame f", "+frame c", "same");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for(File rom : roms){
+            Machine machine = new Machine();
+            try {
+                machine.loadRom(rom);
+            } catch(IOException e) {
+                System.out.println(rom.getName() + ": " + e.getMessage());
+                continue;
+            }
+            machine.getCpu().setRandomSeed(0);
+            for(int frame = 0; frame < 60; frame++){
+                machine.runFrame(CPU.STOP_FAULT);
+            }
+
+            // a first round to warm up the JIT, then the measured round
+            long[] forked = forkMachine(machine, forks, true, threads);
+            long[] copied = forkMachine(machine, forks, false, threads);
+            forked = forkMachine(machine, forks, true, threads);
+            copied = forkMachine(machine, forks, false, threads);
+
+            Machine[] machines = new Machine[kept];
+            long before = usedMemory();
+            for(int m = 0; m < kept; m++){
+                machines[m] = machine.fork();
+            }
+            long forkBytes = (usedMemory() - before) / kept;
+            runFrame(machines);
+            long forkFrameBytes = (usedMemory() - before) / kept;
+            long forkHash = machines[kept - 1].stateHash();
+            machines = new Machine[kept];
+            before = usedMemory();
+            for(int m = 0; m < kept; m++){
+                machines[m] = machine.copy();
+            }
+            long copyBytes = (usedMemory() - before) / kept;
+            runFrame(machines);
+            long copyFrameBytes = (usedMemory() - before) / kept;
+            long copyHash = machines[kept - 1].stateHash();
+            machines = null;
+            machine.runFrame(CPU.STOP_FAULT);
+            boolean same = forkHash == machine.stateHash() & copyHash == forkHash;
+
+            System.out.printf("%-24s %9.0f %9.0f %9.0f %9.0f %10d %10d %10d %10d %6s%n", rom.getName(),
+                    (double) forked[0] / forks, (double) copied[0] / forks,
+                    (double) forked[1] / forks, (double) copied[1] / forks,
+                    forkBytes, copyBytes, forkFrameBytes, copyFrameBytes, same ? "yes" : "NO");
+        }
+    }
+
+    // the size of a FrameStream of the frames of each ROM (with a random key pressed now and then)
+    // against raw frames of 256 bytes, in bytes per second at 60 frames per second, the time to encode
+    // a frame and whether the decoded frames are the same
+    private static void stream(List<File> roms){
+        int frames = (int) (instructions == DEFAULT_INSTRUCTIONS ? 3600 : instructions);
+        long rawPerSecond = 60L * 8 * FrameBuffer.HEIGHT;
+        System.out.printf("%-24s %8s %8s %9s %9s %8s %9s %6s%n", "ROM", "frames", "same %", "raw B/s",
+                "delta B/s", "ratio", "ns/frame", "same");
+        long totalBytes = 0;
+        long totalFrames = 0;
+        for(File rom : roms){
+            Machine machine = new Machine();
+            try {
+                machine.loadRom(rom);
+            } catch(IOException e) {
+                System.out.println(rom.getName() + ": " + e.getMessage());
+                continue;
+            }
+            machine.getCpu().setRandomSeed(0);
+            Random keys = new Random(0);
+            long[] rows = new long[frames * FrameBuffer.HEIGHT];
+            for(int frame = 0; frame < frames; frame++){
+                if(frame % 20 == 0){
+                    machine.getKeypad().releaseAllKeys();
+                    if(keys.nextBoolean()){
+                        machine.getKeypad().setKeyPressed(keys.nextInt(16), true);
+                    }
+                }
+                machine.runFrame(CPU.STOP_FAULT);
+                machine.getFrameBuffer().copyRowsTo(rows, frame * FrameBuffer.HEIGHT);
+            }
+
+            // encoded a few times to warm up the JIT, the last time is measured
+            ByteArrayOutputStream out = null;
+            FrameStream.Encoder encoder = null;
+            long elapsed = 0;
+            for(int round = 0; round < 5; round++){
+                out = new ByteArrayOutputStream();
+                encoder = new FrameStream.Encoder(out);
+                long start = System.nanoTime();
+                try {
+                    for(int frame = 0; frame < frames; frame++){
+                        encoder.encode(rows, frame * FrameBuffer.HEIGHT);
+                    }
+                } catch(IOException e) {
+                    // a ByteArrayOutputStream doesn't throw
+                    throw new IllegalStateException(e);
+                }
+                elapsed = System.nanoTime() - start;
+            }
+
+            boolean same = true;
+            FrameStream.Decoder decoder = new FrameStream.Decoder(new ByteArrayInputStream(out.toByteArray()));
+            long[] decoded = new long[FrameBuffer.HEIGHT];
+            try {
+                for(int frame = 0; frame < frames & same; frame++){
+                    same = decoder.next(decoded, 0);
+                    for(int y = 0; y < FrameBuffer.HEIGHT & same; y++){
+                        same = decoded[y] == rows[frame * FrameBuffer.HEIGHT + y];
+                    }
+                }
+                same &= !decoder.next(decoded, 0);
+            } catch(IOException e) {
+                same = false;
+            }
+
+            long bytesPerSecond = encoder.getBytes() * 60 / frames;
+            totalBytes += encoder.getBytes();
+            totalFrames += frames;
+            System.out.printf("%-24s %8d %8.1f %9d %9d %7.1fx %9.0f %6s%n", rom.getName(), frames,
+                    100.0 * encoder.getUnchangedFrames() / frames, rawPerSecond, bytesPerSecond,
+                    (double) rawPerSecond / bytesPerSecond, (double) elapsed / frames, same ? "yes" : "NO");
+        }
+        if(totalFrames > 0){
+            long bytesPerSecond = totalBytes * 60 / totalFrames;
+            System.out.printf("%-24s %8d %8s %9d %9d %7.1fx%n", "all", totalFrames, "", rawPerSecond, bytesPerSecond,
+                    (double) rawPerSecond / bytesPerSecond);
+        }
+    }
+
+    // the time per instruction of CPU.run with the default quirks, before and after all ROMs were run
+    // with the other behaviour of every quirk, like when a game which needs them was loaded
+    // the CPU runs an interpreter specialised for the selected quirks, so running the other
+    // behaviours shouldn't make the default ones any slower
+    // with -XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining the JIT shows that the calls of the quirks
+    // in CPU$QuirkedInterpreter are inlined without a TypeProfile check of the class
+    private static void quirks(List<File> roms){
+        List<byte[]> programs = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for(File rom : roms){
+            try {
+                programs.add(Files.readAllBytes(rom.toPath()));
+                names.add(rom.getName());
+            } catch(IOException e) {
+                System.out.println(rom.getName() + ": " + e.getMessage());
+            }
+        }
+
+        // a first round to warm up the JIT, then the measured round
+        long[][] before = new long[programs.size()][];
+        for(int i = 0; i < programs.size(); i++){
+            runQuirks(programs.get(i), false);
+            before[i] = runQuirks(programs.get(i), false);
+        }
+        for(byte[] program : programs){
+            runQuirks(program, true);
+            runQuirks(program, true);
+        }
+
+        System.out.printf("%-24s %12s %12s %14s%n", "ROM", "instructions", "ns/instr", "after toggling");
+        for(int i = 0; i < programs.size(); i++){
+            runQuirks(programs.get(i), false);
+            long[] after = runQuirks(programs.get(i), false);
+            System.out.printf("%-24s %12d %12.2f %14.2f%n", names.get(i), before[i][0],
+                    (double) before[i][1] / before[i][0], (double) after[1] / after[0]);
+        }
+    }
+
+    // returns executed instructions and elapsed nanoseconds, with every quirk the other way round
+    // than by default if invert is set
+    private static long[] runQuirks(byte[] program, boolean invert){
+        Machine machine = new Machine();
+        CPU cpu = machine.getCpu();
+        if(invert){
+            cpu.setOriginalShiftInstructions(!cpu.getOriginalShiftInstructions());
+            cpu.setOriginalReadWriteMemoryInstructions(!cpu.getOriginalReadWriteMemoryInstructions());
+            cpu.setOriginalJumpWithOffsetInstructions(!cpu.getOriginalJumpWithOffsetInstructions());
+            cpu.setVfReset(!cpu.getVfReset());
+            cpu.setClipping(!cpu.getClipping());
+            cpu.setDisplayWait(!cpu.getDisplayWait());
+        }
+        machine.loadRom(program);
+        cpu.setRandomSeed(0);
+        // long frames, so that the time is spent in the interpreter rather than between the frames
+        machine.setInstructionsPerFrame(1000);
+
+        long start = System.nanoTime();
+        while(machine.getInstructions() < instructions){
+            if((machine.runFrame(CPU.STOP_FAULT) & CPU.STOP_FAULT) != 0){
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += machine.stateHash();
+        return new long[]{Math.max(1, machine.getInstructions()), elapsed};
+    }
+
+    // returns elapsed nanoseconds and allocated bytes for count forks or copies
+    private static long[] forkMachine(Machine machine, int count, boolean fork, com.sun.management.ThreadMXBean threads){
+        long checksum = 0;
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i++){
+            Machine copy = fork ? machine.fork() : machine.copy();
+            checksum += copy.getCpu().getPc();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        sink += checksum;
+        return new long[]{elapsed, allocated};
+    }
+
+    private static void runFrame(Machine[] machines){
+        for(Machine machine : machines){
+            machine.runFrame(CPU.STOP_FAULT);
+        }
+    }
+
+    private static long usedMemory(){
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // returns executed instructions and elapsed nanoseconds
+    private static long[] runMachines(Machine[] machines, byte[] program, int frames){
+        for(int m = 0; m < machines.length; m++){
+            machines[m].loadRom(program);
+            machines[m].getCpu().setRandomSeed(m);
+        }
+        long start = System.nanoTime();
+        long executed = 0;
+        for(int frame = 0; frame < frames; frame++){
+            for(Machine machine : machines){
+                long before = machine.getInstructions();
+                machine.runFrame(CPU.STOP_FAULT);
+                executed += machine.getInstructions() - before;
+            }
+        }
+        return new long[]{executed, System.nanoTime() - start};
+    }
+
+    private static long[] runMachineArray(MachineArray array, byte[] program, int frames, boolean lockstep){
+        array.loadRom(program);
+        for(int m = 0; m < array.getCount(); m++){
+            array.setRandomSeed(m, m);
+        }
+        long start = System.nanoTime();
+        long executed = 0;
+        for(int frame = 0; frame < frames; frame++){
+            executed += lockstep ? array.runFrameLockstep() : array.runFrame();
+        }
+        return new long[]{executed, System.nanoTime() - start};
+    }
+
+    // returns the elapsed nanoseconds
+    private static long stepEnvironment(BatchEnvironment environment, int[] actions, int steps){
+        long start = System.nanoTime();
+        environment.reset();
+        for(int step = 0; step < steps; step++){
+            // a different key for every machine now and then, like an agent would press them
+            for(int i = 0; i < actions.length; i++){
+                actions[i] = (step + i) % 8 == 0 ? 1 << ((step + i) & 0xf) : 0;
+            }
+            environment.step(actions);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // returns executed instructions, dispatches and elapsed nanoseconds
+    private static long[] runFused(File rom, boolean fuse){
+        Machine machine = new Machine();
+        try {
+            machine.loadRom(rom);
+        } catch(IOException e) {
+            System.out.println(rom.getName() + ": " + e.getMessage());
+            return new long[]{0, 0, 0};
+        }
+        CPU cpu = machine.getCpu();
+        cpu.setFuseInstructions(fuse);
+        cpu.setRandomSeed(0);
+
+        long executed = 0;
+        long dispatches = 0;
+        int sinceTimerTick = 0;
+        long start = System.nanoTime();
+        try {
+            while(executed < instructions){
+                int n = cpu.executeFusedInstructions();
+                executed += n;
+                dispatches++;
+                sinceTimerTick += n;
+                if(sinceTimerTick >= Machine.DEFAULT_INSTRUCTIONS_PER_FRAME){
+                    sinceTimerTick -= Machine.DEFAULT_INSTRUCTIONS_PER_FRAME;
+                    cpu.decrementTimers();
+                }
+            }
+        } catch(RuntimeException e){
+            System.out.println(rom.getName() + ": stopped after " + executed + " instructions: " + e.getMessage());
+        }
+        return new long[]{executed, dispatches, System.nanoTime() - start};
+    }
+
+}
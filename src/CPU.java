@@ -13,13 +13,46 @@ You should have received a copy of the GNU General Public License
 along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import java.util.Timer;
-//import java.util.TimerTask;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
 
 public class CPU {
+
+    // states returned by getIdleState
+    public static final int NOT_IDLE = 0;
+    // LD Vx, DT / SE Vx, 0 / JP back, spinning until the delay timer reaches zero
+    public static final int IDLE_DELAY_LOOP = 1;
+    // LD Vx, K with no key pressed
+    public static final int IDLE_KEY_WAIT = 2;
+    // a jump to itself, usually at the end of a program
+    public static final int IDLE_HALTED = 3;
+    // waiting for the next timer tick after drawing (display wait quirk)
+    public static final int IDLE_DISPLAY_WAIT = 4;
+
+    // reasons returned by run, they are combined to the stop mask passed to it
+    // all maxCycles instructions were executed
+    public static final int STOP_BUDGET = 0;
+    // CLS or DRW changed the screen
+    public static final int STOP_FRAME_DIRTY = 1;
+    // the sound timer was set while it was zero
+    public static final int STOP_SOUND_START = 2;
+    // LD Vx, K with no key pressed
+    public static final int STOP_KEY_WAIT = 4;
+    // the next instruction is at a breakpoint
+    public static final int STOP_BREAKPOINT = 8;
+    // an instruction threw an exception, see getFault
+    public static final int STOP_FAULT = 16;
+    // DRW with the display wait quirk, nothing more should be executed before the next timer tick
+    public static final int STOP_DISPLAY_WAIT = 32;
+
     Memory memory;
-    Display display;
-    Keyboard keyboard;
+    FrameBuffer frameBuffer;
+    Keypad keypad;
 
     // index register
     // index and pc are 16-bit so short would suffice but would entail a lot of casting
@@ -33,51 +66,75 @@ public class CPU {
 
     // variable registers (8 bit)
     private int[] variableRegisters = new int[16];
+    // the rows of the sprite drawn by DRW, read from the memory at once
+    private final int[] spriteRows = new int[16];
+
+    // state of the xorshift generator used by RND, it can be seeded for reproducible runs
+    private long randomState = System.nanoTime();
 
     // timers
     private byte delayTimer = 0;
     private byte soundTimer = 0;
 
-    private Timer timer = new Timer();
-
-    // variables to determine which type of shift instructions (8xy6 and 8xye), respectively
-    // read from memory and write to memory instructions (fx55 and fx65 are used),
-    // respectively jump with offset (bnnn)
-    private boolean originalShiftInstructions = true;
-    private boolean originalReadWriteMemoryInstructions = true;
-    private boolean originalJumpWithOffsetInstructions = true;
+    // the behaviour of the ambiguous instructions, see Quirks
+    // shift instructions (8xy6 and 8xye), read from memory and write to memory instructions
+    // (fx55 and fx65), jump with offset (bnnn), logical instructions (8xy1, 8xy2, 8xy3)
+    // and drawing (dxyn)
+    private Quirks.Shift shiftQuirk = Quirks.Shift.ORIGINAL;
+    private Quirks.LoadStore loadStoreQuirk = Quirks.LoadStore.ORIGINAL;
+    private Quirks.JumpWithOffset jumpWithOffsetQuirk = Quirks.JumpWithOffset.ORIGINAL;
+    private Quirks.VfReset vfResetQuirk = Quirks.VfReset.OFF;
+    private Quirks.Clipping clippingQuirk = Quirks.Clipping.ON;
+    private Quirks.DisplayWait displayWaitQuirk = Quirks.DisplayWait.OFF;
+
+    // executes the instructions with the quirks above, replaced whenever they change, see QuirkedInterpreter
+    private interpreter interpreter;
+    // the quirks the interpreter was compiled for, see updateInterpreter
+    private int interpreterQuirks;
+
+    // the constructors of the interpreters for each combination of the quirks, defined when first used
+    private static final MethodHandle[] interpreterConstructors = new MethodHandle[64];
+    // the class file of QuirkedInterpreter, read when the first interpreter is defined
+    private static byte[] interpreterTemplate;
+
+    // set by DRW if the display wait quirk is on, cleared by the next timer tick
+    private boolean waitingForDisplay = false;
+
+    // the STOP_ events caused by the instructions executed since the start of run
+    private int events = 0;
+    // instructions executed by the last call of run
+    private int cyclesExecuted = 0;
+    // the exception which stopped the last call of run
+    private RuntimeException fault;
+
+    // allocated with the first breakpoint, most machines (e.g. forks) never have one
+    private boolean[] breakpoints;
+    private int breakpointCount = 0;
+
+    // whether executeFusedInstructions executes common instruction sequences in one go
+    private boolean fuseInstructions = false;
+
+    // told about key reads and screen changes if the latency of the input is measured, see InputLatency
+    private InputLatency inputLatency;
+
+    // set by CLS and DRW, so that the caller knows when to redraw the screen
+    private boolean screenChanged = false;
 
     // constructors
-    public CPU(Memory memory, Display display, Keyboard keyboard) {
+    public CPU(Memory memory, FrameBuffer frameBuffer, Keypad keypad) {
         this.memory = memory;
-        this.display = display;
-        this.keyboard = keyboard;
-
-        // the timers are decremented every 17ms which is about 60 times per second
-        /*timer.scheduleAtFixedRate(new TimerTask(){
-            @Override
-            public void run(){
-                decrementTimers();
-            }
-        }, 0L, 17L);*/
+        this.frameBuffer = frameBuffer;
+        this.keypad = keypad;
+        setRandomSeed(randomState);
+        updateInterpreter();
     }
 
-    public CPU(Memory memory, Display display, Keyboard keyboard, boolean originalShiftInstructions, boolean originalReadWriteMemoryInstructions, boolean originalJumpWithOffsetInstructions) {
-        this.memory = memory;
-        this.display = display;
-        this.keyboard = keyboard;
-
-        this.originalShiftInstructions = originalShiftInstructions;
-        this.originalReadWriteMemoryInstructions = originalReadWriteMemoryInstructions;
-        this.originalJumpWithOffsetInstructions = originalJumpWithOffsetInstructions;
-
-        // the timers are decremented every 17ms which is about 60 times per second
-        /*timer.scheduleAtFixedRate(new TimerTask(){
-            @Override
-            public void run(){
-                decrementTimers();
-            }
-        }, 0L, 17L);*/
+    public CPU(Memory memory, FrameBuffer frameBuffer, Keypad keypad, boolean originalShiftInstructions, boolean originalReadWriteMemoryInstructions, boolean originalJumpWithOffsetInstructions) {
+        this(memory, frameBuffer, keypad);
+
+        setOriginalShiftInstructions(originalShiftInstructions);
+        setOriginalReadWriteMemoryInstructions(originalReadWriteMemoryInstructions);
+        setOriginalJumpWithOffsetInstructions(originalJumpWithOffsetInstructions);
     }
 
 
@@ -86,304 +143,569 @@ public class CPU {
     // executes one instruction and returns the executed instruction
     // as an array containing the high and low byte
     public int[] executeOneInstruction(){
+        try {
+            int instruction = interpreter.executeInstruction();
+            return (new int[]{instruction >> 8, instruction & 0xff, oldpc});
+        } catch(MemoryAccessException e) {
+            throw e.atPc(oldpc);
+        }
+    }
 
-        // fetch instruction
-        int instructionHigh = memory.readMemory(pc);
-        int instructionLow = memory.readMemory(pc + 1);
+    // executes up to maxCycles instructions and returns early if one of the events in stopMask
+    // happens, the return value is the events that happened (STOP_BUDGET if none did)
+    // getCyclesExecuted tells how many instructions were executed
+    // unlike executeOneInstruction nothing is allocated, and fused sequences are used if enabled
+    public int run(int maxCycles, int stopMask){
+        events = 0;
+        cyclesExecuted = 0;
+        fault = null;
+        boolean checkBreakpoints = breakpointCount > 0 & (stopMask & STOP_BREAKPOINT) != 0;
+        // sequences might hide a breakpoint, so they aren't used while checking them
+        boolean fuse = fuseInstructions & !checkBreakpoints;
+
+        try {
+            return interpreter.run(maxCycles, stopMask, checkBreakpoints, fuse);
+        } catch(MemoryAccessException e) {
+            fault = e.atPc(oldpc);
+        } catch(RuntimeException e) {
+            fault = e;
+        }
 
-        int a = (instructionHigh & 0xf0) / 0x10;
-        int x = instructionHigh & 0x0f;
-        int y = (instructionLow & 0xf0) / 0x10;
-        int n = instructionLow & 0x0f;
-        int nn = instructionLow & 0xff;
-        int nnn = (256 * x) + nn;
+        if((stopMask & STOP_FAULT) == 0){
+            throw fault;
+        }
+        return STOP_FAULT;
+    }
 
-        // program counter is already set to point at the next instruction
-        oldpc = pc;
-        pc += 2;
+    public int getCyclesExecuted(){
+        return cyclesExecuted;
+    }
 
-        // decode the current instruction and execute it
-        switch(a){
-            case 0x0:
-                switch(nnn){
-                    case 0x0e0:
-                        display.clearScreen();
-                        break;
-                    case 0x0ee:
-                        pc = memory.stack.pop();
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Illegal instruction.");
-                }
-                break;
+    public RuntimeException getFault(){
+        return fault;
+    }
 
-            case 0x1:
-                pc = nnn;
-                break;
+    public void setBreakpoint(int address, boolean set){
+        if(breakpoints == null){
+            breakpoints = new boolean[4096];
+        }
+        if(breakpoints[address & 0xfff] != set){
+            breakpoints[address & 0xfff] = set;
+            breakpointCount += set ? 1 : -1;
+        }
+    }
 
-            case 0x2:
-                memory.stack.push(pc);
-                pc = nnn;
-                break;
+    public void clearBreakpoints(){
+        if(breakpoints != null){
+            Arrays.fill(breakpoints, false);
+        }
+        breakpointCount = 0;
+    }
 
-            case 0x3:
-                if(nn == (variableRegisters[x] & 0xff)){
-                    pc += 2;
-                }
-                break;
+    // executes the instruction at pc and returns the number of executed instructions,
+    // which is 1 unless fusing is enabled and the instruction starts one of these sequences:
+    //   LD I, nnn / DRW Vx, Vy, n
+    //   LD I, nnn / LD Vx, [I]
+    //   ADD I, Vx / LD Vy, [I]
+    //   ADD Vx, nn / SE Vy, kk / JP nnn   (counted loops)
+    // the sequences are executed exactly as the single instructions would be, they just
+    // need one fetch and decode instead of two or three
+    // none of them reads the timers or the keyboard, so it doesn't matter that a timer tick
+    // can't happen in the middle of a sequence
+    public int executeFusedInstructions(){
+        try {
+            return interpreter.executeFused();
+        } catch(MemoryAccessException e) {
+            throw e.atPc(oldpc);
+        }
+    }
 
-            case 0x4:
-                if(nn != (variableRegisters[x] & 0xff)){
-                    pc += 2;
-                }
-                break;
+    // the instructions of the CPU, compiled for one combination of the quirks
+    interface interpreter {
+        // the loop of run, returns the events in stopMask which stopped it, STOP_BREAKPOINT or STOP_BUDGET
+        int run(int maxCycles, int stopMask, boolean checkBreakpoints, boolean fuse);
 
-            case 0x5:
-                if(n == 0){
-                    if (variableRegisters[x] == variableRegisters[y]){
-                        pc += 2;
-                    }
-                } else{
-                    throw new IllegalArgumentException("Illegal instruction.");
-                }
-                break;
+        int executeInstruction();
 
-            case 0x6:
-                variableRegisters[x] = nn;
-                break;
+        int executeFused();
+    }
 
-            case 0x7:
-                variableRegisters[x] = (variableRegisters[x] + nn) & 0xff;
-                break;
+    // the template of the interpreters: a copy of this class is defined for every combination of the
+    // quirks which is used (see interpreterConstructor), with the behaviours in static final fields
+    // the JIT treats those as constants, so the calls of the quirks are inlined without any check and
+    // the other behaviours aren't compiled at all; toggling a quirk doesn't add a behaviour to the
+    // compiled code, it replaces the interpreter of the CPU with the copy for the new combination
+    private class QuirkedInterpreter implements interpreter {
+
+        private static final Quirks.Shift SHIFT;
+        private static final Quirks.LoadStore LOAD_STORE;
+        private static final Quirks.JumpWithOffset JUMP_WITH_OFFSET;
+        private static final Quirks.VfReset VF_RESET;
+        private static final Quirks.Clipping CLIPPING;
+        private static final Quirks.DisplayWait DISPLAY_WAIT;
+
+        static {
+            // the class data is the combination, see updateInterpreter
+            Integer quirks;
+            try {
+                quirks = MethodHandles.classData(MethodHandles.lookup(), ConstantDescs.DEFAULT_NAME, Integer.class);
+            } catch(IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            if(quirks == null){
+                throw new IllegalStateException("Only the copies of the interpreter template can be used.");
+            }
+            SHIFT = Quirks.Shift.values()[quirks & 1];
+            LOAD_STORE = Quirks.LoadStore.values()[(quirks >> 1) & 1];
+            JUMP_WITH_OFFSET = Quirks.JumpWithOffset.values()[(quirks >> 2) & 1];
+            VF_RESET = Quirks.VfReset.values()[(quirks >> 3) & 1];
+            CLIPPING = Quirks.Clipping.values()[(quirks >> 4) & 1];
+            DISPLAY_WAIT = Quirks.DisplayWait.values()[(quirks >> 5) & 1];
+        }
 
-            case 0x8:
-                switch(n){
-                    case 0x0:
-                        variableRegisters[x] = variableRegisters[y];
-                        break;
+        public int run(int maxCycles, int stopMask, boolean checkBreakpoints, boolean fuse){
+            while(cyclesExecuted < maxCycles){
+                // the breakpoint at the start of a run is the one we stopped at last time
+                if(checkBreakpoints && cyclesExecuted > 0 && breakpoints[pc & 0xfff]){
+                    return STOP_BREAKPOINT;
+                }
+                if(fuse & maxCycles - cyclesExecuted >= 3){
+                    cyclesExecuted += executeFused();
+                } else {
+                    executeInstruction();
+                    cyclesExecuted++;
+                }
+                if((events & stopMask) != 0){
+                    return events & stopMask;
+                }
+            }
+            return STOP_BUDGET;
+        }
 
-                    case 0x1:
-                        variableRegisters[x] = variableRegisters[x] | variableRegisters[y];
-                        break;
+        // returns the executed instruction as high byte * 256 + low byte
+        public int executeInstruction(){
+
+            oldpc = pc;
+
+            // fetch instruction
+            int instruction = memory.readInstruction(pc);
+            int instructionHigh = instruction >> 8;
+            int instructionLow = instruction & 0xff;
+
+            int a = (instructionHigh & 0xf0) / 0x10;
+            int x = instructionHigh & 0x0f;
+            int y = (instructionLow & 0xf0) / 0x10;
+            int n = instructionLow & 0x0f;
+            int nn = instructionLow & 0xff;
+            int nnn = (256 * x) + nn;
+
+            // program counter is already set to point at the next instruction
+            pc += 2;
+
+            // decode the current instruction and execute it
+            switch(a){
+                case 0x0:
+                    switch(nnn){
+                        case 0x0e0:
+                            frameBuffer.clear();
+                            screenChanged = true;
+                            events |= STOP_FRAME_DIRTY;
+                            if(inputLatency != null){
+                                inputLatency.screenChanged();
+                            }
+                            break;
+                        case 0x0ee:
+                            pc = memory.stack.pop();
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Illegal instruction.");
+                    }
+                    break;
 
-                    case 0x2:
-                        variableRegisters[x] = variableRegisters[x] & variableRegisters[y];
-                        break;
+                case 0x1:
+                    pc = nnn;
+                    break;
 
-                    case 0x3:
-                        variableRegisters[x] = variableRegisters[x] ^ variableRegisters[y];
-                        break;
+                case 0x2:
+                    memory.stack.push(pc);
+                    pc = nnn;
+                    break;
 
-                    case 0x4:
-                        variableRegisters[x] = variableRegisters[x] + variableRegisters[y];
-                        if(variableRegisters[x] > 255){
-                            variableRegisters[x] = variableRegisters[x] & 0xff;
-                            variableRegisters[0xf] = 1;
-                        } else{
-                            variableRegisters[0xf] = 0;
-                        }
-                        break;
+                case 0x3:
+                    if(nn == (variableRegisters[x] & 0xff)){
+                        pc += 2;
+                    }
+                    break;
 
-                    case 0x5:
-                        variableRegisters[x] = variableRegisters[x] - variableRegisters[y];
-                        if(variableRegisters[x] > 0){
-                            variableRegisters[0xf] = 1;
-                        } else{
-                            variableRegisters[0xf] = 0;
-                            variableRegisters[x] = variableRegisters[x] & 0xff;
-                        }
-                        break;
+                case 0x4:
+                    if(nn != (variableRegisters[x] & 0xff)){
+                        pc += 2;
+                    }
+                    break;
 
-                    case 0x6:
-                        // ambiguous instruction!
-                        if(originalShiftInstructions) {
-                            // the bit that gets shifted out gets written to VF
-                            variableRegisters[0xf] = variableRegisters[y] & 1;
-                            variableRegisters[x] = variableRegisters[y] >> 1;
-                        } else{
-                            variableRegisters[0xf] = variableRegisters[x] & 1;
-                            variableRegisters[x] = variableRegisters[x] >> 1;
+                case 0x5:
+                    if(n == 0){
+                        if (variableRegisters[x] == variableRegisters[y]){
+                            pc += 2;
                         }
-                        break;
+                    } else{
+                        throw new IllegalArgumentException("Illegal instruction.");
+                    }
+                    break;
+
+                case 0x6:
+                    variableRegisters[x] = nn;
+                    break;
+
+                case 0x7:
+                    addImmediate(x, nn);
+                    break;
+
+                case 0x8:
+                    switch(n){
+                        case 0x0:
+                            variableRegisters[x] = variableRegisters[y];
+                            break;
+
+                        case 0x1:
+                            variableRegisters[x] = variableRegisters[x] | variableRegisters[y];
+                            VF_RESET.afterLogicInstruction(variableRegisters);
+                            break;
+
+                        case 0x2:
+                            variableRegisters[x] = variableRegisters[x] & variableRegisters[y];
+                            VF_RESET.afterLogicInstruction(variableRegisters);
+                            break;
+
+                        case 0x3:
+                            variableRegisters[x] = variableRegisters[x] ^ variableRegisters[y];
+                            VF_RESET.afterLogicInstruction(variableRegisters);
+                            break;
+
+                        case 0x4:
+                            variableRegisters[x] = variableRegisters[x] + variableRegisters[y];
+                            if(variableRegisters[x] > 255){
+                                variableRegisters[x] = variableRegisters[x] & 0xff;
+                                variableRegisters[0xf] = 1;
+                            } else{
+                                variableRegisters[0xf] = 0;
+                            }
+                            break;
+
+                        case 0x5:
+                            variableRegisters[x] = variableRegisters[x] - variableRegisters[y];
+                            if(variableRegisters[x] > 0){
+                                variableRegisters[0xf] = 1;
+                            } else{
+                                variableRegisters[0xf] = 0;
+                                variableRegisters[x] = variableRegisters[x] & 0xff;
+                            }
+                            break;
 
-                    case 0x7:
-                        variableRegisters[x] = variableRegisters[y] - variableRegisters[x];
-                        if(variableRegisters[x] > 0){
-                            variableRegisters[0xf] = 1;
-                        } else{
-                            variableRegisters[0xf] = 0;
-                            variableRegisters[x] = variableRegisters[x] & 0xff;
-                        }
-                        break;
+                        case 0x6:
+                            // ambiguous instruction!
+                            int shiftRightSource = SHIFT.sourceRegister(x, y);
+                            // the bit that gets shifted out gets written to VF
+                            variableRegisters[0xf] = variableRegisters[shiftRightSource] & 1;
+                            variableRegisters[x] = variableRegisters[shiftRightSource] >> 1;
+                            break;
+
+                        case 0x7:
+                            variableRegisters[x] = variableRegisters[y] - variableRegisters[x];
+                            if(variableRegisters[x] > 0){
+                                variableRegisters[0xf] = 1;
+                            } else{
+                                variableRegisters[0xf] = 0;
+                                variableRegisters[x] = variableRegisters[x] & 0xff;
+                            }
+                            break;
 
-                    case 0xe:
-                        // ambiguous instruction!
-                        if(originalShiftInstructions) {
+                        case 0xe:
+                            // ambiguous instruction!
+                            int shiftLeftSource = SHIFT.sourceRegister(x, y);
                             // the bit that gets shifted out gets written to VF
-                            variableRegisters[0xf] = variableRegisters[y] >> 7;
+                            variableRegisters[0xf] = variableRegisters[shiftLeftSource] >> 7;
                             // we need to take care that it's still a byte
-                            variableRegisters[x] = (variableRegisters[y] << 1) & 0xff;
-                        } else{
-                            variableRegisters[0xf] = variableRegisters[x] >> 7;
-                            variableRegisters[x] = (variableRegisters[x] << 1) & 0xff;
-                        }
-                        break;
-
-                    default:
-                        throw new IllegalStateException("Illegal instruction.");
-                }
-                break;
+                            variableRegisters[x] = (variableRegisters[shiftLeftSource] << 1) & 0xff;
+                            break;
 
-            case 0x9:
-                if(n == 0){
-                    if (variableRegisters[x] != variableRegisters[y]){
-                        pc += 2;
+                        default:
+                            throw new IllegalStateException("Illegal instruction.");
                     }
-                } else{
-                    throw new IllegalArgumentException("Illegal instruction.");
-                }
-                break;
-
-            case 0xa:
-                index = nnn;
-                break;
-
-            case 0xb:
-                if(originalJumpWithOffsetInstructions) {
-                    pc = (nnn + variableRegisters[0]) & 0xfff;
-                } else {
-                    pc = (nnn + variableRegisters[x]) & 0xfff;
-                }
-                break;
+                    break;
 
-            case 0xc:
-                variableRegisters[x] = ((int) (256 * Math.random())) & nn;
-                break;
-
-            case 0xd:
-                int xPosition = variableRegisters[x] & 0x3f;
-                int yPosition = variableRegisters[y] & 0x1f;
-
-                variableRegisters[0xf] = 0;
-
-                for (int row = 0; row < n; row++) {
-                    if (yPosition + row > 31) {
-                        break;
-                    } else {
-                        int p = 128;
-                        for (int column = 0; column < 8; column++) {
-                            if (xPosition + column > 63) {
-                                break;
-                            } else {
-                                if ((memory.readMemory(index + row) & p) == p) {
-                                    boolean switchedOff = display.changePixel(xPosition + column, yPosition + row);
-                                    if (switchedOff) {
-                                        variableRegisters[0xf] = 1;
-                                    }
-                                }
-                                p /= 2;
-                            }
+                case 0x9:
+                    if(n == 0){
+                        if (variableRegisters[x] != variableRegisters[y]){
+                            pc += 2;
                         }
+                    } else{
+                        throw new IllegalArgumentException("Illegal instruction.");
                     }
-                }
-                break;
+                    break;
+
+                case 0xa:
+                    index = nnn;
+                    break;
+
+                case 0xb:
+                    // ambiguous instruction!
+                    pc = (nnn + variableRegisters[JUMP_WITH_OFFSET.offsetRegister(x)]) & 0xfff;
+                    break;
+
+                case 0xc:
+                    variableRegisters[x] = nextRandomByte() & nn;
+                    break;
+
+                case 0xd:
+                    drawSprite(x, y, n);
+                    break;
+
+                case 0xe:
+                    switch(nn){
+                        case 0x9e:
+                            if(variableRegisters[x] >= 0 & variableRegisters[x] < 16) {
+                                if(inputLatency != null){
+                                    inputLatency.keyRead(keypad, variableRegisters[x]);
+                                }
+                                if (keypad.keysPressed[variableRegisters[x]]) {
+                                    pc += 2;
+                                }
+                            } else {
+                                throw new IllegalArgumentException("Trying to get input from a non-existing key.");
+                            }
+                            break;
 
-            case 0xe:
-                switch(nn){
-                    case 0x9e:
-                        if(variableRegisters[x] >= 0 & variableRegisters[x] < 16) {
-                            if (keyboard.keysPressed[variableRegisters[x]]) {
+                        case 0xa1:
+                            if(!keypad.keysPressed[variableRegisters[x]]){
                                 pc += 2;
+                            } else if(inputLatency != null){
+                                inputLatency.keyRead(keypad, variableRegisters[x]);
                             }
-                        } else {
-                            throw new IllegalArgumentException("Trying to get input from a non-existing key.");
-                        }
-                        break;
-
-                    case 0xa1:
-                        if(!keyboard.keysPressed[variableRegisters[x]]){
-                            pc += 2;
-                        }
-                        break;
-                }
-                break;
+                            break;
+                    }
+                    break;
+
+                case 0xf:
+                    switch(nn){
+                        case 0x07:
+                            variableRegisters[x] = delayTimer & 0xff;
+                            break;
+
+                        case 0x0a:
+                            for (int i = 0; i < 16; i++) {
+                                if(keypad.keysPressed[i]){
+                                    variableRegisters[x] = i;
+                                    pc += 2;
+                                    if(inputLatency != null){
+                                        inputLatency.keyRead(keypad, i);
+                                    }
+                                    break;
+                                }
+                            }
+                            pc -= 2;
+                            if(pc == oldpc){
+                                events |= STOP_KEY_WAIT;
+                            }
+                            break;
 
-            case 0xf:
-                switch(nn){
-                    case 0x07:
-                        variableRegisters[x] = delayTimer & 0xff;
-                        break;
+                        case 0x15:
+                            delayTimer = (byte) variableRegisters[x];
+                            break;
 
-                    case 0x0a:
-                        for (int i = 0; i < 16; i++) {
-                            if(keyboard.keysPressed[i]){
-                                variableRegisters[x] = i;
-                                pc += 2;
-                                break;
+                        case 0x18:
+                            if(soundTimer == 0 & variableRegisters[x] != 0){
+                                events |= STOP_SOUND_START;
                             }
-                        }
-                        pc -= 2;
-                        break;
+                            soundTimer = (byte) variableRegisters[x];
+                            break;
+
+                        case 0x1e:
+                            addToIndex(x);
+                            break;
+
+                        case 0x29:
+                            index = 0x50 + (5 * (variableRegisters[x] & 0xf));
+                            break;
+
+                        case 0x33:
+                            memory.writeBcd(index, variableRegisters[x]);
+                            break;
+
+                        case 0x55:
+                            // ambiguous instruction!
+                            memory.storeRegisters(index, variableRegisters, x + 1);
+                            index = LOAD_STORE.indexAfter(index, x);
+                            break;
+
+                        case 0x65:
+                            loadRegisters(x);
+                            break;
+                    }
+                    break;
 
-                    case 0x15:
-                        delayTimer = (byte) variableRegisters[x];
-                        break;
+                default:
+                    throw new IllegalStateException("Illegal instruction.");
+            }
 
-                    case 0x18:
-                        soundTimer = (byte) variableRegisters[x];
-                        break;
+            return ((0x10 * a + x) << 8) | nn;
 
-                    case 0x1e:
-                        index = index + variableRegisters[x];
-                        if(index > 0xfff){
-                            variableRegisters[0xf] = 1;
-                            index = index & 0xfff;
-                        }
-                        break;
+        }
 
-                    case 0x29:
-                        index = 0x50 + (5 * (variableRegisters[x] & 0xf));
-                        break;
+        // the parts of instructions which are shared by executeInstruction and the fused sequences
 
-                    case 0x33:
-                        byte onesDigit = (byte) (variableRegisters[x] % 10);
-                        byte tensDigit = (byte) ((variableRegisters[x] / 10) % 10);
-                        byte hundredsDigit = (byte) ((variableRegisters[x] / 100) % 10);
-                        byte[] digitsArray = {hundredsDigit, tensDigit, onesDigit};
+        private void addImmediate(int x, int nn){
+            variableRegisters[x] = (variableRegisters[x] + nn) & 0xff;
+        }
 
-                        memory.writeToMemory(index,digitsArray,true);
-                        break;
+        private void drawSprite(int x, int y, int n){
+            int xPosition = variableRegisters[x] & 0x3f;
+            int yPosition = variableRegisters[y] & 0x1f;
+
+            variableRegisters[0xf] = 0;
+
+            // with clipping only the visible part is drawn, otherwise the coordinates wrap around
+            int rows = CLIPPING.rows(yPosition, n);
+            // the bits of the sprite rows which are drawn
+            int columnMask = (0xff00 >> CLIPPING.columns(xPosition)) & 0xff;
+            memory.readBytes(index, spriteRows, rows);
+            for (int row = 0; row < rows; row++) {
+                // a whole row of the sprite at once
+                boolean switchedOff = frameBuffer.drawSpriteRow(xPosition, (yPosition + row) & 0x1f, spriteRows[row] & columnMask);
+                if (switchedOff) {
+                    variableRegisters[0xf] = 1;
+                }
+            }
+            screenChanged = true;
+            events |= STOP_FRAME_DIRTY;
+            if(inputLatency != null){
+                inputLatency.screenChanged();
+            }
+            waitingForDisplay = DISPLAY_WAIT.waitAfterDrawing();
+            if(waitingForDisplay){
+                events |= STOP_DISPLAY_WAIT;
+            }
+        }
 
-                    case 0x55:
-                        // ambiguous instruction!
-                        for(int i=0; i<=x; i++){
-                            memory.writeByteToMemory(index + i, (byte) variableRegisters[i],true);
+        private void addToIndex(int x){
+            index = index + variableRegisters[x];
+            if(index > 0xfff){
+                variableRegisters[0xf] = 1;
+                index = index & 0xfff;
+            }
+        }
+
+        private void loadRegisters(int x){
+            // ambiguous instruction!
+            memory.loadRegisters(index, variableRegisters, x + 1);
+            index = LOAD_STORE.indexAfter(index, x);
+        }
+
+        // see executeFusedInstructions
+        public int executeFused(){
+            if(fuseInstructions & pc + 5 < 4096) {
+                int instruction = memory.readInstruction(pc);
+                int next = memory.readInstruction(pc + 2);
+                int high = instruction >> 8;
+                int low = instruction & 0xff;
+                int nextHigh = next >> 8;
+                int nextLow = next & 0xff;
+
+                switch(high >> 4){
+                    case 0xa:
+                        if((nextHigh & 0xf0) == 0xd0) {
+                            index = ((high & 0x0f) << 8) | low;
+                            oldpc = pc + 2;
+                            pc += 4;
+                            drawSprite(nextHigh & 0x0f, nextLow >> 4, nextLow & 0x0f);
+                            return 2;
                         }
-                        if(originalReadWriteMemoryInstructions) {
-                            index = index + x + 1;
+                        if((nextHigh & 0xf0) == 0xf0 & nextLow == 0x65) {
+                            index = ((high & 0x0f) << 8) | low;
+                            oldpc = pc + 2;
+                            pc += 4;
+                            loadRegisters(nextHigh & 0x0f);
+                            return 2;
                         }
                         break;
 
-                    case 0x65:
-                        // ambiguous instruction!
-                        for(int i=0; i<=x; i++){
-                            variableRegisters[i] = memory.readMemory(index+i) & 0xff;
+                    case 0xf:
+                        if(low == 0x1e & (nextHigh & 0xf0) == 0xf0 & nextLow == 0x65) {
+                            oldpc = pc + 2;
+                            pc += 4;
+                            addToIndex(high & 0x0f);
+                            loadRegisters(nextHigh & 0x0f);
+                            return 2;
                         }
-                        if(originalReadWriteMemoryInstructions) {
-                            index = index + x + 1;
+                        break;
+
+                    case 0x7:
+                        int jumpHigh = memory.readMemory(pc + 4) & 0xff;
+                        if((nextHigh & 0xf0) == 0x30 & (jumpHigh & 0xf0) == 0x10) {
+                            addImmediate(high & 0x0f, low);
+                            if(nextLow == (variableRegisters[nextHigh & 0x0f] & 0xff)) {
+                                // the jump is skipped
+                                oldpc = pc + 2;
+                                pc += 6;
+                                return 2;
+                            }
+                            oldpc = pc + 4;
+                            pc = ((jumpHigh & 0x0f) << 8) | (memory.readMemory(pc + 5) & 0xff);
+                            return 3;
                         }
                         break;
                 }
-                break;
+            }
 
-            default:
-                throw new IllegalStateException("Illegal instruction.");
+            executeInstruction();
+            return 1;
         }
+    }
 
-        return (new int[]{0x10 * a + x, nn, oldpc});
+    // makes the interpreter match the quirks, called whenever one is set
+    private void updateInterpreter(){
+        // one bit per quirk, the ordinal of the selected behaviour
+        int quirks = shiftQuirk.ordinal() | loadStoreQuirk.ordinal() << 1 | jumpWithOffsetQuirk.ordinal() << 2
+                | vfResetQuirk.ordinal() << 3 | clippingQuirk.ordinal() << 4 | displayWaitQuirk.ordinal() << 5;
+        if(interpreter != null && quirks == interpreterQuirks){
+            return;
+        }
+        try {
+            interpreter = (interpreter) interpreterConstructor(quirks).invokeExact(this);
+        } catch(RuntimeException | Error e) {
+            throw e;
+        } catch(Throwable e) {
+            // the constructor doesn't throw checked exceptions
+            throw new IllegalStateException(e);
+        }
+        interpreterQuirks = quirks;
+    }
 
+    // defines the copy of QuirkedInterpreter for the quirks as a hidden class in the nest of the CPU,
+    // so that it can use the fields of the CPU like the template
+    private static synchronized MethodHandle interpreterConstructor(int quirks){
+        if(interpreterConstructors[quirks] == null){
+            try {
+                if(interpreterTemplate == null){
+                    try(InputStream in = CPU.class.getResourceAsStream(QuirkedInterpreter.class.getName() + ".class")){
+                        if(in == null){
+                            throw new IOException("The class file of the interpreter template is missing.");
+                        }
+                        interpreterTemplate = in.readAllBytes();
+                    }
+                }
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(interpreterTemplate,
+                        quirks, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+                interpreterConstructors[quirks] = lookup.findConstructor(lookup.lookupClass(),
+                        MethodType.methodType(void.class, CPU.class)).asType(MethodType.methodType(interpreter.class, CPU.class));
+            } catch(IOException | ReflectiveOperationException e) {
+                throw new IllegalStateException("Can't define the interpreter for the quirks " + quirks + ".", e);
+            }
+        }
+        return interpreterConstructors[quirks];
     }
 
+
     public String getMnemonicFromInstruction(int[] instruction){
 
         int a = (instruction[0] & 0xf0) / 0x10;
@@ -526,31 +848,157 @@ public class CPU {
 
     }
 
+    // the setters swap the interpreter for the one compiled for the new quirks
+
     public boolean getOriginalShiftInstructions(){
-        return originalShiftInstructions;
+        return shiftQuirk == Quirks.Shift.ORIGINAL;
     }
 
     public void setOriginalShiftInstructions(boolean b){
-        originalShiftInstructions = b;
+        shiftQuirk = b ? Quirks.Shift.ORIGINAL : Quirks.Shift.MODERN;
+        updateInterpreter();
     }
 
     public boolean getOriginalReadWriteMemoryInstructions(){
-        return originalReadWriteMemoryInstructions;
+        return loadStoreQuirk == Quirks.LoadStore.ORIGINAL;
     }
 
     public void setOriginalReadWriteMemoryInstructions(boolean b){
-        originalReadWriteMemoryInstructions = b;
+        loadStoreQuirk = b ? Quirks.LoadStore.ORIGINAL : Quirks.LoadStore.MODERN;
+        updateInterpreter();
     }
 
     public boolean getOriginalJumpWithOffsetInstructions(){
-        return originalJumpWithOffsetInstructions;
+        return jumpWithOffsetQuirk == Quirks.JumpWithOffset.ORIGINAL;
     }
 
     public void setOriginalJumpWithOffsetInstructions(boolean b){
-        originalJumpWithOffsetInstructions = b;
+        jumpWithOffsetQuirk = b ? Quirks.JumpWithOffset.ORIGINAL : Quirks.JumpWithOffset.MODERN;
+        updateInterpreter();
+    }
+
+    public boolean getVfReset(){
+        return vfResetQuirk == Quirks.VfReset.ON;
+    }
+
+    public void setVfReset(boolean b){
+        vfResetQuirk = b ? Quirks.VfReset.ON : Quirks.VfReset.OFF;
+        updateInterpreter();
+    }
+
+    public boolean getClipping(){
+        return clippingQuirk == Quirks.Clipping.ON;
+    }
+
+    public void setClipping(boolean b){
+        clippingQuirk = b ? Quirks.Clipping.ON : Quirks.Clipping.OFF;
+        updateInterpreter();
+    }
+
+    public boolean getDisplayWait(){
+        return displayWaitQuirk == Quirks.DisplayWait.ON;
+    }
+
+    public void setDisplayWait(boolean b){
+        displayWaitQuirk = b ? Quirks.DisplayWait.ON : Quirks.DisplayWait.OFF;
+        updateInterpreter();
+        waitingForDisplay = false;
+    }
+
+    // takes over the quirks and the other settings of another CPU, e.g. when a program is (re)loaded
+    public void copySettings(CPU other){
+        shiftQuirk = other.shiftQuirk;
+        loadStoreQuirk = other.loadStoreQuirk;
+        jumpWithOffsetQuirk = other.jumpWithOffsetQuirk;
+        vfResetQuirk = other.vfResetQuirk;
+        clippingQuirk = other.clippingQuirk;
+        displayWaitQuirk = other.displayWaitQuirk;
+        updateInterpreter();
+        fuseInstructions = other.fuseInstructions;
+    }
+
+    // takes over the settings and the complete state of another CPU, used to fork a machine
+    // the breakpoints aren't copied, they belong to the debugger of the other machine
+    public void copyState(CPU other){
+        copySettings(other);
+        pc = other.pc;
+        oldpc = other.oldpc;
+        index = other.index;
+        System.arraycopy(other.variableRegisters, 0, variableRegisters, 0, 16);
+        randomState = other.randomState;
+        delayTimer = other.delayTimer;
+        soundTimer = other.soundTimer;
+        waitingForDisplay = other.waitingForDisplay;
+        screenChanged = other.screenChanged;
+        events = other.events;
+        cyclesExecuted = other.cyclesExecuted;
+        fault = other.fault;
+    }
+
+    // sets the program counter, registers and timers back to the start of a program
+    public void reset(){
+        pc = 0x200;
+        oldpc = 0;
+        index = 0;
+        Arrays.fill(variableRegisters, 0);
+        delayTimer = 0;
+        soundTimer = 0;
+        waitingForDisplay = false;
+        screenChanged = true;
+        events = 0;
+        fault = null;
+    }
+
+    public void setInputLatency(InputLatency inputLatency){
+        this.inputLatency = inputLatency;
+    }
+
+    public void setRandomSeed(long seed){
+        // the xorshift generator must not be in the state 0
+        randomState = seed * 0x9e3779b97f4a7c15L + 1;
+        if(randomState == 0){
+            randomState = 1;
+        }
+    }
+
+    private int nextRandomByte(){
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 7;
+        randomState ^= randomState << 17;
+        return (int) (randomState >>> 56);
+    }
+
+    public int getPc(){
+        return pc;
+    }
+
+    public int getIndex(){
+        return index;
+    }
+
+    public int getRegister(int i){
+        return variableRegisters[i];
+    }
+
+    public boolean getFuseInstructions(){
+        return fuseInstructions;
+    }
+
+    public void setFuseInstructions(boolean b){
+        fuseInstructions = b;
+    }
+
+    // returns whether CLS or DRW were executed since the last call
+    public boolean pollScreenChanged(){
+        boolean changed = screenChanged;
+        screenChanged = false;
+        return changed;
     }
 
     public void decrementTimers(){
+        // the vertical blank is over
+        waitingForDisplay = false;
+
         if(delayTimer != 0){
             delayTimer--;
         }
@@ -560,6 +1008,52 @@ public class CPU {
         }
     }
 
+    public int getDelayTimer(){
+        return delayTimer & 0xff;
+    }
+
+    public int getSoundTimer(){
+        return soundTimer & 0xff;
+    }
+
+    // tells whether the program does nothing but wait, so that the caller can skip ahead
+    // to the next timer tick or wait for a key press instead of executing the same
+    // instructions over and over again
+    public int getIdleState(){
+        if(waitingForDisplay){
+            return IDLE_DISPLAY_WAIT;
+        }
+        if(pc + 5 >= 4096){
+            return NOT_IDLE;
+        }
+        int high = memory.readMemory(pc) & 0xff;
+        int low = memory.readMemory(pc + 1) & 0xff;
+
+        if((high & 0xf0) == 0x10 & (((high & 0x0f) << 8) | low) == pc){
+            return IDLE_HALTED;
+        }
+
+        if((high & 0xf0) == 0xf0 & low == 0x0a){
+            for(int i = 0; i < 16; i++){
+                if(keypad.keysPressed[i]){
+                    return NOT_IDLE;
+                }
+            }
+            return IDLE_KEY_WAIT;
+        }
+
+        if((high & 0xf0) == 0xf0 & low == 0x07 & delayTimer != 0){
+            int x = high & 0x0f;
+            boolean skipIfZero = (memory.readMemory(pc + 2) & 0xff) == (0x30 | x) & memory.readMemory(pc + 3) == 0;
+            boolean jumpBack = (memory.readMemory(pc + 4) & 0xff) == (0x10 | (pc >> 8)) & (memory.readMemory(pc + 5) & 0xff) == (pc & 0xff);
+            if(skipIfZero & jumpBack){
+                return IDLE_DELAY_LOOP;
+            }
+        }
+
+        return NOT_IDLE;
+    }
+
     public int[] getNextInstruction(){
         return (new int[]{memory.readMemory(pc) & 0xff,memory.readMemory(pc + 1) & 0xff,pc});
     }
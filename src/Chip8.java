@@ -14,15 +14,29 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
 
 public class Chip8 {
 
@@ -31,22 +45,46 @@ public class Chip8 {
     public final static byte DEFAULT_CYCLE_TIME = 2;
     public final static int DEFAULT_INSTRUCTIONS_PER_TIMER_CYCLE = 9;
 
-    private final ImageIcon icon = new ImageIcon("chip8icon.png");
+    // loaded in the background, unlike an ImageIcon which would block until the image is read
+    private final Image icon = Toolkit.getDefaultToolkit().getImage("chip8icon.png");
 
     File openedFile;
-    Memory memory = new Memory();
-    Display display = new Display();
-    Keyboard keyboard = new Keyboard(display);
-    CPU cpu = new CPU(memory, display, keyboard);
+    // the file of the --stream option
+    File streamFile;
+    Machine machine = new Machine();
+    // the parts of the machine, they stay the same when a program is (re)loaded
+    Memory memory = machine.getMemory();
+    CPU cpu = machine.getCpu();
+    Display display = new Display(machine.getFrameBuffer());
+    Keyboard keyboard = new Keyboard(display, machine.getKeypad());
+    // the tone of the sound timer, null without sound output
+    Sound sound;
+    // the stages from a key press to the screen
+    private final InputLatency inputLatency = new InputLatency();
+    // shows the screen of a few frames in the future, off by default
+    private final RunAhead runAhead = new RunAhead();
 
     private byte cycleTime = DEFAULT_CYCLE_TIME;
     private int instructionsPerTimerCycle = DEFAULT_INSTRUCTIONS_PER_TIMER_CYCLE;
 
-    private boolean isPaused = false;
-    private boolean isFileLoaded = false;
+    // these are changed by the event dispatch thread and read by the emulation thread
+    private volatile boolean isPaused = false;
+    private volatile boolean isFileLoaded = false;
     private boolean printInstructions = false;
+    private boolean strictAddressing = false;
 
-    private boolean fileChooserOpen = false;
+    private volatile boolean fileChooserOpen = false;
+    // set by the event dispatch thread when the screen should be presented, see requestFrame
+    private volatile boolean frameRequested = false;
+
+    // the thread running the fetch, decode, execute loop, it parks while there is nothing to do
+    private Thread emulationThread;
+
+    // wall time of every frame (timer cycle) while a program is running
+    private final LatencyHistogram frameTimes = new LatencyHistogram("Frame time");
+
+    // paces the emulation if an adaptive speed is selected, otherwise cycleTime is used
+    private final SpeedController speedController = new SpeedController();
 
     // the interface is used to update the memory window after an instruction
     // the window is an observer, this class the subject
@@ -70,11 +108,40 @@ public class Chip8 {
 
     // open a CHIP-8 program
     private void openFile(File file){
+        Chip8Events.RomLoad romLoadEvent = new Chip8Events.RomLoad();
+        romLoadEvent.begin();
+
         openedFile = file;
-        memory = new Memory(openedFile);
-        cpu = new CPU(memory, display, keyboard, cpu.getOriginalShiftInstructions(), cpu.getOriginalReadWriteMemoryInstructions(), cpu.getOriginalJumpWithOffsetInstructions());
+        // the emulation thread holds the lock while it executes instructions
+        synchronized(machine) {
+            try {
+                machine.loadRom(openedFile);
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
 
         isFileLoaded = true;
+        frameTimes.reset();
+
+        romLoadEvent.file = file.getPath();
+        romLoadEvent.size = (int) file.length();
+        romLoadEvent.commit();
+    }
+
+    // wakes the emulation thread up if it's parked
+    private void wakeUp(){
+        if(emulationThread != null){
+            LockSupport.unpark(emulationThread);
+        }
+    }
+
+    // asks the emulation thread to present the screen, e.g. after a program was loaded
+    // only the emulation thread presents frames, so that the display and the latency measurement
+    // have a single producer
+    private void requestFrame(){
+        frameRequested = true;
+        wakeUp();
     }
 
     private void printInstructionInfo(int[] instruction){
@@ -87,7 +154,10 @@ public class Chip8 {
     }
 
     private int[] executeOneInstruction(){
-        int[] lastInstruction = cpu.executeOneInstruction();
+        int[] lastInstruction;
+        synchronized(machine) {
+            lastInstruction = cpu.executeOneInstruction();
+        }
         notifyListeners();
         return lastInstruction;
     }
@@ -95,7 +165,7 @@ public class Chip8 {
     private void go() throws Exception{
 
         JFrame frame = new JFrame("CHIP-8 Interpreter");
-        frame.setIconImage(icon.getImage());
+        frame.setIconImage(icon);
         // the displayBox is needed to keep the image centered even if the window is wider than it
         Box displayBox = new Box(BoxLayout.Y_AXIS);
 
@@ -111,10 +181,257 @@ public class Chip8 {
                 File file = openFileChooser.getSelectedFile();
                 if(file != null){
                     openFile(file);
-                    display.clearScreen();
-                    display.repaint();
+                    requestFrame();
                 }
                 fileChooserOpen = false;
+                wakeUp();
+            }
+        }
+
+        // the ROM library, see RomLibrary: the index of a directory is shown at once from the cache
+        // and then brought up to date on a background thread, only new and changed files are read
+        class LibraryListener implements ActionListener {
+            JFrame libraryFrame;
+            JTable table;
+            LibraryTableModel model;
+            TableRowSorter<LibraryTableModel> sorter;
+            JTextField filterField;
+            JLabel statusLabel;
+            JButton folderButton;
+            RomLibrary library;
+            // the entries of the rows of the model
+            List<RomLibrary.Entry> entries = new ArrayList<>();
+            File directory;
+            boolean indexing = false;
+
+            class LibraryTableModel extends DefaultTableModel {
+                private static final long serialVersionUID = 1L;
+
+                LibraryTableModel(){
+                    super(new Object[]{"Name", "Platform", "Size", "Instructions", "Features", "SHA-1", "Folder"}, 0);
+                }
+
+                public boolean isCellEditable(int row, int column){
+                    return false;
+                }
+
+                // numbers are sorted as numbers
+                public Class<?> getColumnClass(int column){
+                    return column == 2 | column == 3 ? Integer.class : String.class;
+                }
+            }
+
+            // inner class for the filter field, every column is searched
+            class FilterListener implements DocumentListener {
+                public void insertUpdate(DocumentEvent e){
+                    applyFilter();
+                }
+
+                public void removeUpdate(DocumentEvent e){
+                    applyFilter();
+                }
+
+                public void changedUpdate(DocumentEvent e){
+                    applyFilter();
+                }
+            }
+
+            // inner class for the open button
+            class OpenButtonListener implements ActionListener {
+                public void actionPerformed(ActionEvent e){
+                    openSelected();
+                }
+            }
+
+            // inner class for double clicks on a row
+            class DoubleClickListener extends MouseAdapter {
+                public void mouseClicked(MouseEvent e){
+                    if(e.getClickCount() == 2 && table.rowAtPoint(e.getPoint()) >= 0){
+                        openSelected();
+                    }
+                }
+            }
+
+            // inner class for the folder button
+            class FolderButtonListener implements ActionListener {
+                public void actionPerformed(ActionEvent e){
+                    JFileChooser folderChooser = new JFileChooser(directory);
+                    folderChooser.setDialogTitle("Choose the folder of the ROM library");
+                    folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                    if(folderChooser.showOpenDialog(libraryFrame) == JFileChooser.APPROVE_OPTION){
+                        startIndex(folderChooser.getSelectedFile());
+                    }
+                }
+            }
+
+            // reads the cache and indexes the directory, off the event dispatch thread
+            class IndexTask implements Runnable, RomLibrary.progressListener {
+                // null for the directory indexed last
+                File indexDirectory;
+
+                IndexTask(File indexDirectory){
+                    this.indexDirectory = indexDirectory;
+                }
+
+                public void run(){
+                    try {
+                        if(library == null){
+                            library = new RomLibrary(RomLibrary.DEFAULT_CACHE);
+                        }
+                        if(indexDirectory == null){
+                            indexDirectory = library.getLastDirectory();
+                            if(indexDirectory == null){
+                                SwingUtilities.invokeLater(new ShowEntries(null, new ArrayList<>(),
+                                        "Choose the folder of your ROMs", true));
+                                return;
+                            }
+                        }
+                        SwingUtilities.invokeLater(new ShowEntries(indexDirectory, library.cachedEntries(indexDirectory),
+                                "Looking for new and changed ROMs in " + indexDirectory + "...", false));
+                        long start = System.nanoTime();
+                        List<RomLibrary.Entry> indexed = library.index(indexDirectory, this);
+                        SwingUtilities.invokeLater(new ShowEntries(indexDirectory, indexed, String.format(
+                                "%d ROMs in %s, %d analyzed, %d from the index%s (%.2f s)", indexed.size(), indexDirectory,
+                                library.getAnalyzed(), library.getReused(),
+                                library.getFailed() == 0 ? "" : ", " + library.getFailed() + " unreadable",
+                                (System.nanoTime() - start) / 1e9), true));
+                    } catch(IOException | RuntimeException e) {
+                        SwingUtilities.invokeLater(new ShowEntries(indexDirectory, entries,
+                                "Indexing failed: " + e.getMessage(), true));
+                    }
+                }
+
+                public void progress(int done, int total){
+                    // a few updates are enough
+                    if(done == total || done % 64 == 0){
+                        SwingUtilities.invokeLater(new ShowStatus("Analyzing " + done + " of " + total + " ROMs..."));
+                    }
+                }
+            }
+
+            // inner class to show the status on the event dispatch thread
+            class ShowStatus implements Runnable {
+                final String status;
+
+                ShowStatus(String status){
+                    this.status = status;
+                }
+
+                public void run(){
+                    statusLabel.setText(status);
+                }
+            }
+
+            // inner class to show entries on the event dispatch thread
+            class ShowEntries implements Runnable {
+                final File shownDirectory;
+                final List<RomLibrary.Entry> shownEntries;
+                final String status;
+                final boolean finished;
+
+                ShowEntries(File shownDirectory, List<RomLibrary.Entry> shownEntries, String status, boolean finished){
+                    this.shownDirectory = shownDirectory;
+                    this.shownEntries = shownEntries;
+                    this.status = status;
+                    this.finished = finished;
+                }
+
+                public void run(){
+                    directory = shownDirectory;
+                    if(shownEntries != entries){
+                        showEntries(shownEntries);
+                    }
+                    statusLabel.setText(status);
+                    if(finished){
+                        indexing = false;
+                        folderButton.setEnabled(true);
+                    }
+                }
+            }
+
+            private void showEntries(List<RomLibrary.Entry> shownEntries){
+                entries = shownEntries;
+                model.setRowCount(0);
+                for(RomLibrary.Entry entry : entries){
+                    File file = entry.getFile();
+                    File folder = directory == null ? file.getParentFile() :
+                            directory.toPath().relativize(file.getParentFile().toPath()).toFile();
+                    model.addRow(new Object[]{file.getName(), entry.getPlatform(), (int) entry.getSize(),
+                            entry.getInstructions(), entry.getFeatures(), entry.getSha1().substring(0, 12),
+                            folder.getPath()});
+                }
+            }
+
+            private void applyFilter(){
+                String text = filterField.getText().trim();
+                sorter.setRowFilter(text.isEmpty() ? null : RowFilter.regexFilter("(?i)" + Pattern.quote(text)));
+            }
+
+            private void openSelected(){
+                int row = table.getSelectedRow();
+                if(row < 0){
+                    return;
+                }
+                openFile(entries.get(table.convertRowIndexToModel(row)).getFile());
+                requestFrame();
+                frame.toFront();
+            }
+
+            // null indexes the directory indexed last
+            private void startIndex(File indexDirectory){
+                if(indexing){
+                    return;
+                }
+                indexing = true;
+                folderButton.setEnabled(false);
+                statusLabel.setText("Reading the index...");
+                Thread indexThread = new Thread(new IndexTask(indexDirectory), "ROM library");
+                indexThread.setDaemon(true);
+                indexThread.start();
+            }
+
+            public void actionPerformed(ActionEvent e){
+                if(libraryFrame == null) {
+                    libraryFrame = new JFrame("ROM library");
+                    libraryFrame.setIconImage(icon);
+                    libraryFrame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+
+                    model = new LibraryTableModel();
+                    table = new JTable(model);
+                    sorter = new TableRowSorter<>(model);
+                    table.setRowSorter(sorter);
+                    table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+                    table.addMouseListener(new DoubleClickListener());
+                    table.getColumnModel().getColumn(0).setPreferredWidth(160);
+                    table.getColumnModel().getColumn(4).setPreferredWidth(220);
+
+                    filterField = new JTextField(20);
+                    filterField.getDocument().addDocumentListener(new FilterListener());
+                    JPanel filterPanel = new JPanel();
+                    filterPanel.add(new JLabel("Filter:"));
+                    filterPanel.add(filterField);
+
+                    statusLabel = new JLabel(" ");
+                    JPanel buttonPanel = new JPanel();
+                    folderButton = new JButton("Folder...");
+                    folderButton.addActionListener(new FolderButtonListener());
+                    JButton openButton = new JButton("Open");
+                    openButton.addActionListener(new OpenButtonListener());
+                    buttonPanel.add(folderButton);
+                    buttonPanel.add(openButton);
+                    JPanel southPanel = new JPanel(new BorderLayout());
+                    southPanel.add(BorderLayout.CENTER, statusLabel);
+                    southPanel.add(BorderLayout.EAST, buttonPanel);
+
+                    libraryFrame.getContentPane().add(BorderLayout.NORTH, filterPanel);
+                    libraryFrame.getContentPane().add(BorderLayout.CENTER, new JScrollPane(table));
+                    libraryFrame.getContentPane().add(BorderLayout.SOUTH, southPanel);
+                    libraryFrame.setSize(900, 500);
+                    libraryFrame.setLocationRelativeTo(frame);
+                }
+                libraryFrame.setVisible(true);
+                // every time the window is opened, as the files may have changed meanwhile
+                startIndex(directory);
             }
         }
 
@@ -122,9 +439,12 @@ public class Chip8 {
         class ResetListener implements ActionListener{
             public void actionPerformed(ActionEvent e){
                 if(isFileLoaded) {
+                    Chip8Events.Reset resetEvent = new Chip8Events.Reset();
+                    resetEvent.begin();
+                    resetEvent.file = openedFile.getPath();
                     openFile(openedFile);
-                    display.clearScreen();
-                    display.repaint();
+                    requestFrame();
+                    resetEvent.commit();
                 }
             }
         }
@@ -133,6 +453,71 @@ public class Chip8 {
         class PauseListener implements ActionListener {
             public void actionPerformed(ActionEvent e){
                 isPaused = !isPaused;
+                wakeUp();
+            }
+        }
+
+        // key events wake up the emulation thread if it waits for a key press
+        class WakeUpListener implements Keypad.keyEventListener {
+            public void keyEventOccurred(){
+                wakeUp();
+            }
+        }
+
+        // mute
+        class MuteListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                sound.setMuted(((JCheckBoxMenuItem) e.getSource()).isSelected());
+            }
+        }
+
+        // start or stop recording the frames, see Recorder
+        class RecordListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                JCheckBoxMenuItem recordCheckbox = (JCheckBoxMenuItem) e.getSource();
+                Recorder recorder = display.getRecorder();
+                if(recorder != null){
+                    display.setRecorder(null);
+                    String status;
+                    try {
+                        recorder.close();
+                        status = recorder.status();
+                    } catch(IOException ex) {
+                        status = "Recording failed: " + ex.getMessage();
+                    }
+                    recordCheckbox.setSelected(false);
+                    JOptionPane.showMessageDialog(frame, status);
+                    return;
+                }
+
+                JFileChooser recordFileChooser = new JFileChooser();
+                recordFileChooser.setDialogTitle("Record to a .gif file or a directory of PPM images");
+                recordFileChooser.setSelectedFile(new File("recording.gif"));
+                File file = null;
+                if(recordFileChooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION){
+                    file = recordFileChooser.getSelectedFile();
+                }
+                recordCheckbox.setSelected(false);
+                if(file != null){
+                    try {
+                        display.setRecorder(new Recorder(file));
+                        recordCheckbox.setSelected(true);
+                        requestFrame();
+                    } catch(IOException | RuntimeException ex) {
+                        JOptionPane.showMessageDialog(frame, "Can't record to " + file + ": " + ex.getMessage());
+                    }
+                }
+            }
+        }
+
+        // stop painting while the window is minimized
+        class MinimizeListener extends WindowAdapter {
+            public void windowIconified(WindowEvent e){
+                display.setHidden(true);
+            }
+
+            public void windowDeiconified(WindowEvent e){
+                display.setHidden(false);
             }
         }
 
@@ -187,6 +572,78 @@ public class Chip8 {
 
             public void actionPerformed(ActionEvent e){
                 cycleTime = newCycleTime;
+                speedController.disable();
+                wakeUp();
+            }
+        }
+
+        // run-ahead, 0 frames is off
+        class RunAheadListener implements ActionListener {
+            int frames;
+
+            public RunAheadListener(int frames){
+                this.frames = frames;
+            }
+
+            public void actionPerformed(ActionEvent e){
+                runAhead.setFrames(frames);
+            }
+        }
+
+        // checks Pause in the menu when a fault paused the program, run by the event dispatch thread
+        class PausedByFault implements Runnable {
+            JCheckBoxMenuItem pauseCheckbox;
+
+            public PausedByFault(JCheckBoxMenuItem pauseCheckbox){
+                this.pauseCheckbox = pauseCheckbox;
+            }
+
+            public void run(){
+                pauseCheckbox.setSelected(true);
+            }
+        }
+
+        // selects Off in the menu when run-ahead turned itself off, run by the event dispatch thread
+        class RunAheadTurnedOff implements Runnable {
+            JRadioButtonMenuItem offButton;
+
+            public RunAheadTurnedOff(JRadioButtonMenuItem offButton){
+                this.offButton = offButton;
+            }
+
+            public void run(){
+                offButton.setSelected(true);
+            }
+        }
+
+        // adaptive speed with a target number of instructions per second
+        class AdaptiveSpeedListener implements ActionListener {
+            int instructionsPerSecond;
+
+            public AdaptiveSpeedListener (int instructionsPerSecond){
+                this.instructionsPerSecond = instructionsPerSecond;
+            }
+
+            public void actionPerformed(ActionEvent e){
+                speedController.enable(instructionsPerSecond);
+                wakeUp();
+            }
+        }
+
+        // adaptive speed with a target chosen by the user
+        class CustomSpeedListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                String input = JOptionPane.showInputDialog(frame,
+                        "Instructions per second (e.g. 700) or per frame (e.g. 15/frame):",
+                        speedController.getInstructionsPerSecond());
+                if(input != null) {
+                    try {
+                        speedController.enable(parseSpeed(input));
+                        wakeUp();
+                    } catch(IllegalArgumentException exception) {
+                        JOptionPane.showMessageDialog(frame, "Invalid speed: " + input);
+                    }
+                }
             }
         }
 
@@ -211,6 +668,34 @@ public class Chip8 {
             }
         }
 
+        // toggle resetting VF after logical instructions
+        class VfResetListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                cpu.setVfReset(!cpu.getVfReset());
+            }
+        }
+
+        // toggle clipping sprites at the edges of the screen
+        class ClippingListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                cpu.setClipping(!cpu.getClipping());
+            }
+        }
+
+        // toggle waiting for the next timer tick after drawing
+        class DisplayWaitListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                cpu.setDisplayWait(!cpu.getDisplayWait());
+            }
+        }
+
+        // toggle fusing common instruction sequences
+        class FuseInstructionsListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                cpu.setFuseInstructions(!cpu.getFuseInstructions());
+            }
+        }
+
         // toggle printing instructions during execution
         class PrintInstructionsListener implements ActionListener {
             public void actionPerformed(ActionEvent e){
@@ -220,28 +705,31 @@ public class Chip8 {
 
         // show memory
         class ShowRegistersAndMemoryListener implements ActionListener, instructionExecutedListener {
+            // the window is only built when it's opened for the first time
             JFrame memoryFrame ;
             JEditorPane memoryPane;
             JScrollPane scrollPane;
 
-            public ShowRegistersAndMemoryListener(){
+            private void buildMemoryFrame(){
                 memoryFrame = new JFrame("Memory");
                 memoryPane = new JEditorPane();
                 scrollPane = new JScrollPane(memoryPane);
 
-                memoryFrame.setIconImage(icon.getImage());
+                memoryFrame.setIconImage(icon);
                 memoryFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
                 memoryPane.setEditable(false);
                 memoryPane.setContentType("text/html");
-                updateMemoryPaneContent();
 
                 memoryFrame.getContentPane().add(BorderLayout.CENTER,scrollPane);
             }
 
             @Override
             public void instructionWasExecuted(){
-                updateMemoryPaneContent();
+                // rendering the memory is expensive, so only if somebody looks at it
+                if(memoryFrame != null && memoryFrame.isVisible()) {
+                    updateMemoryPaneContent();
+                }
             }
 
             // not a good way to do this, just passing a huge string to another method
@@ -268,6 +756,9 @@ public class Chip8 {
 
             public void actionPerformed(ActionEvent e){
                 if(isFileLoaded & isPaused) {
+                    if(memoryFrame == null) {
+                        buildMemoryFrame();
+                    }
                     updateMemoryPaneContent();
 
                     memoryFrame.setSize(700, 800);
@@ -277,6 +768,92 @@ public class Chip8 {
             }
         }
 
+        // toggle strict memory checks
+        class StrictAddressingListener implements ActionListener {
+            public void actionPerformed(ActionEvent e){
+                strictAddressing = !strictAddressing;
+                memory.setStrictAddressing(strictAddressing);
+            }
+        }
+
+        // show the frame time histogram, refreshed twice a second while the window is open
+        class ShowFrameTimesListener implements ActionListener {
+            JFrame frameTimesFrame;
+            JEditorPane frameTimesPane;
+            javax.swing.Timer refreshTimer;
+
+            // inner class for the reset button
+            class ResetButtonListener implements ActionListener {
+                public void actionPerformed(ActionEvent e){
+                    frameTimes.reset();
+                    speedController.resetStatistics();
+                    display.resetStatistics();
+                    inputLatency.reset();
+                    runAhead.getCosts().reset();
+                    frameTimesPane.setText(frameTimesPaneContent());
+                }
+            }
+
+            // inner class for the refresh timer
+            class RefreshListener implements ActionListener {
+                public void actionPerformed(ActionEvent e){
+                    if(frameTimesFrame.isVisible()) {
+                        frameTimesPane.setText(frameTimesPaneContent());
+                    }
+                }
+            }
+
+            private String frameTimesPaneContent(){
+                return "<html><body style=\"margin-left:10px; margin-right:10px; text-align:center; \">" +
+                        "<h2>Frame times</h2>" +
+                        "<table>" + LatencyHistogram.tableHeader() + frameTimes.tableRow() +
+                        display.getPaintTimes().tableRow() + runAhead.getCosts().tableRow() + "</table>" +
+                        "<h3>Input latency</h3>" +
+                        "<table>" + LatencyHistogram.tableHeader() + inputLatency.tableRows() + "</table>" +
+                        "<p>" + speedController.statusHtml() + "</p>" +
+                        "<p>Frames presented: " + display.getPresentedFrames() +
+                        ", skipped: " + display.getSkippedFrames() +
+                        ", not painted while minimized: " + display.getHiddenFrames() + "</p>" +
+                        (machine.getKeypad().getDroppedEvents() == 0 ? "" :
+                        "<p>Key events dropped: " + machine.getKeypad().getDroppedEvents() + "</p>") +
+                        (display.getFrameExport() == null ? "" : "<p>Frames exported to " +
+                        display.getFrameExport().getFile() + ": " + display.getFrameExport().getFrames() + "</p>") +
+                        (display.getRecorder() == null ? "" : "<p>" + display.getRecorder().status() + "</p>") +
+                        (display.getFrameStream() == null ? "" : "<p>Frames streamed to " + streamFile + ": " +
+                        display.getFrameStream().getFrames() + " (" + display.getFrameStream().getBytes() + " bytes)</p>") +
+                        (sound == null ? "" : "<p>" + sound.status() + "</p>") +
+                        "<p>" + runAhead.statusHtml() + "</p>" +
+                        "</body></html>";
+            }
+
+            public void actionPerformed(ActionEvent e){
+                if(frameTimesFrame == null) {
+                    frameTimesFrame = new JFrame("Frame times");
+                    frameTimesFrame.setIconImage(icon);
+                    frameTimesFrame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+
+                    frameTimesPane = new JEditorPane();
+                    frameTimesPane.setEditable(false);
+                    frameTimesPane.setContentType("text/html");
+
+                    JPanel buttonPanel = new JPanel();
+                    JButton resetButton = new JButton("Reset");
+                    resetButton.addActionListener(new ResetButtonListener());
+                    buttonPanel.add(resetButton);
+
+                    frameTimesFrame.getContentPane().add(BorderLayout.CENTER, frameTimesPane);
+                    frameTimesFrame.getContentPane().add(BorderLayout.SOUTH, buttonPanel);
+                    frameTimesFrame.setSize(480, 480);
+
+                    refreshTimer = new javax.swing.Timer(500, new RefreshListener());
+                    refreshTimer.start();
+                }
+                frameTimesPane.setText(frameTimesPaneContent());
+                frameTimesFrame.setLocationRelativeTo(frame);
+                frameTimesFrame.setVisible(true);
+            }
+        }
+
         // print memory
         class PrintRegistersAndMemoryListener implements ActionListener {
             public void actionPerformed(ActionEvent e){
@@ -300,13 +877,13 @@ public class Chip8 {
                     printInstructionInfo(cpu.getNextInstruction());
                     System.out.println();
 
-                    // if the instruction affects the graphics, we redraw the screen
+                    // if the instruction affects the graphics, the emulation thread presents the screen
                     if (lastInstruction[0] == 0) {
                         if (lastInstruction[1] == 0xe0) {
-                            display.repaint();
+                            requestFrame();
                         }
                     } else if ((lastInstruction[0] & 0xf0) == 0xd0) {
-                        display.repaint();
+                        requestFrame();
                     }
                 }
             }
@@ -325,13 +902,13 @@ public class Chip8 {
                     printInstructionInfo(cpu.getNextInstruction());
                     System.out.println();
 
-                    // if the instruction affects the graphics, we redraw the screen
+                    // if the instruction affects the graphics, the emulation thread presents the screen
                     if (lastInstruction[0] == 0) {
                         if (lastInstruction[1] == 0xe0) {
-                            display.repaint();
+                            requestFrame();
                         }
                     } else if ((lastInstruction[0] & 0xf0) == 0xd0) {
-                        display.repaint();
+                        requestFrame();
                     }
                     cpu.printRegisters();
                     memory.printMemory(0x200, memory.getMemoryUsed());
@@ -342,14 +919,15 @@ public class Chip8 {
         // about window
         class AboutListener implements ActionListener {
 
-            JFrame aboutFrame = new JFrame("About");
+            // built when it's opened for the first time
+            JFrame aboutFrame;
 
             // inner class for the license button
             class LicenseButtonListener implements  ActionListener {
 
                 public void actionPerformed(ActionEvent e){
                     JFrame licenseFrame = new JFrame("License");
-                    licenseFrame.setIconImage(icon.getImage());
+                    licenseFrame.setIconImage(icon);
                     licenseFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
                     JEditorPane licensePane = new JEditorPane();
@@ -374,7 +952,16 @@ public class Chip8 {
             }
 
             public void actionPerformed(ActionEvent e){
-                aboutFrame.setIconImage(icon.getImage());
+                if(aboutFrame == null) {
+                    buildAboutFrame();
+                }
+                aboutFrame.setLocationRelativeTo(frame);
+                aboutFrame.setVisible(true);
+            }
+
+            private void buildAboutFrame(){
+                aboutFrame = new JFrame("About");
+                aboutFrame.setIconImage(icon);
                 aboutFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
                 JEditorPane aboutPane = new JEditorPane();
@@ -396,8 +983,6 @@ public class Chip8 {
                 aboutFrame.getContentPane().add(BorderLayout.SOUTH,buttonPanel);
 
                 aboutFrame.setSize(300,200);
-                aboutFrame.setLocationRelativeTo(frame);
-                aboutFrame.setVisible(true);
             }
         }
 
@@ -406,7 +991,7 @@ public class Chip8 {
 
             public void actionPerformed(ActionEvent e){
                 JFrame infoFrame = new JFrame("Manual");
-                infoFrame.setIconImage(icon.getImage());
+                infoFrame.setIconImage(icon);
                 infoFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
                 JEditorPane infoPane = new JEditorPane();
@@ -442,18 +1027,29 @@ public class Chip8 {
         JMenuItem openFileItem = new JMenuItem("Open file");
         openFileItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, InputEvent.CTRL_DOWN_MASK));
         openFileItem.addActionListener(new OpenFileListener());
+        JMenuItem libraryItem = new JMenuItem("Library...");
+        libraryItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L, InputEvent.CTRL_DOWN_MASK));
+        libraryItem.addActionListener(new LibraryListener());
         JMenuItem resetItem = new JMenuItem("Reset");
         resetItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R, InputEvent.CTRL_DOWN_MASK));
         resetItem.addActionListener(new ResetListener());
         JCheckBoxMenuItem pauseCheckbox = new JCheckBoxMenuItem("Pause",isPaused);
         pauseCheckbox.setAccelerator(KeyStroke.getKeyStroke(' '));
         pauseCheckbox.addActionListener(new PauseListener());
+        JCheckBoxMenuItem muteCheckbox = new JCheckBoxMenuItem("Mute", sound != null && sound.isMuted());
+        muteCheckbox.setEnabled(sound != null);
+        muteCheckbox.addActionListener(new MuteListener());
+        JCheckBoxMenuItem recordCheckbox = new JCheckBoxMenuItem("Record", display.getRecorder() != null);
+        recordCheckbox.addActionListener(new RecordListener());
         JMenuItem exitItem = new JMenuItem("Exit");
         exitItem.addActionListener(new ExitListener());
 
         fileMenu.add(openFileItem);
+        fileMenu.add(libraryItem);
         fileMenu.add(resetItem);
         fileMenu.add(pauseCheckbox);
+        fileMenu.add(muteCheckbox);
+        fileMenu.add(recordCheckbox);
         fileMenu.add(exitItem);
 
         // scale menu
@@ -513,10 +1109,49 @@ public class Chip8 {
         speedButtons.add(verySlowButton);
         speedMenu.add(verySlowButton);
 
+        speedMenu.addSeparator();
+        // the adaptive speeds are the same on every computer
+        JRadioButtonMenuItem adaptive500Button = new JRadioButtonMenuItem("500 instructions/s");
+        JRadioButtonMenuItem adaptive700Button = new JRadioButtonMenuItem("700 instructions/s");
+        JRadioButtonMenuItem adaptive1000Button = new JRadioButtonMenuItem("1000 instructions/s");
+        JRadioButtonMenuItem adaptive2000Button = new JRadioButtonMenuItem("2000 instructions/s");
+        JRadioButtonMenuItem adaptiveCustomButton = new JRadioButtonMenuItem("Custom...");
+        speedButtons.add(adaptive500Button);
+        speedMenu.add(adaptive500Button);
+        speedButtons.add(adaptive700Button);
+        speedMenu.add(adaptive700Button);
+        speedButtons.add(adaptive1000Button);
+        speedMenu.add(adaptive1000Button);
+        speedButtons.add(adaptive2000Button);
+        speedMenu.add(adaptive2000Button);
+        speedButtons.add(adaptiveCustomButton);
+        speedMenu.add(adaptiveCustomButton);
+
         fastButton.addActionListener(new SpeedListener((byte) 1));
         normalButton.addActionListener(new SpeedListener((byte) 2));
         slowButton.addActionListener(new SpeedListener((byte) 3));
         verySlowButton.addActionListener(new SpeedListener((byte) 5));
+        adaptive500Button.addActionListener(new AdaptiveSpeedListener(500));
+        adaptive700Button.addActionListener(new AdaptiveSpeedListener(700));
+        adaptive1000Button.addActionListener(new AdaptiveSpeedListener(1000));
+        adaptive2000Button.addActionListener(new AdaptiveSpeedListener(2000));
+        adaptiveCustomButton.addActionListener(new CustomSpeedListener());
+
+        speedMenu.addSeparator();
+        JMenu runAheadMenu = new JMenu("Run-ahead");
+        ButtonGroup runAheadButtons = new ButtonGroup();
+        JRadioButtonMenuItem runAheadOffButton = new JRadioButtonMenuItem("Off", !runAhead.isEnabled());
+        runAheadOffButton.addActionListener(new RunAheadListener(0));
+        runAheadButtons.add(runAheadOffButton);
+        runAheadMenu.add(runAheadOffButton);
+        for(int frames = 1; frames <= RunAhead.MAX_FRAMES; frames++){
+            JRadioButtonMenuItem runAheadButton = new JRadioButtonMenuItem(frames + (frames == 1 ? " frame" : " frames"),
+                    runAhead.getFrames() == frames);
+            runAheadButton.addActionListener(new RunAheadListener(frames));
+            runAheadButtons.add(runAheadButton);
+            runAheadMenu.add(runAheadButton);
+        }
+        speedMenu.add(runAheadMenu);
 
         // controls menu
         JMenu controlsMenu = new JMenu("Controls");
@@ -540,14 +1175,27 @@ public class Chip8 {
         JCheckBoxMenuItem shiftInstructionsTypeCheckbox = new JCheckBoxMenuItem("Original shift instructions",cpu.getOriginalShiftInstructions());
         JCheckBoxMenuItem readWriteMemoryInstructionsTypeCheckbox = new JCheckBoxMenuItem("Original read/write memory instructions",cpu.getOriginalReadWriteMemoryInstructions());
         JCheckBoxMenuItem jumpWithOffsetInstructionTypeCheckbox = new JCheckBoxMenuItem("Original jump with offset instruction",cpu.getOriginalJumpWithOffsetInstructions());
+        JCheckBoxMenuItem vfResetCheckbox = new JCheckBoxMenuItem("Reset VF after logical instructions",cpu.getVfReset());
+        JCheckBoxMenuItem clippingCheckbox = new JCheckBoxMenuItem("Clip sprites at the screen edges",cpu.getClipping());
+        JCheckBoxMenuItem displayWaitCheckbox = new JCheckBoxMenuItem("Wait for the timer tick after drawing",cpu.getDisplayWait());
+        JCheckBoxMenuItem fuseInstructionsCheckbox = new JCheckBoxMenuItem("Fuse common instruction sequences",cpu.getFuseInstructions());
 
         shiftInstructionsTypeCheckbox.addActionListener(new ShiftInstructionsTypeListener());
         readWriteMemoryInstructionsTypeCheckbox.addActionListener(new ReadWriteMemoryInstructionsTypeListener());
         jumpWithOffsetInstructionTypeCheckbox.addActionListener(new JumpWithOffsetInstructionTypeListener());
+        vfResetCheckbox.addActionListener(new VfResetListener());
+        clippingCheckbox.addActionListener(new ClippingListener());
+        displayWaitCheckbox.addActionListener(new DisplayWaitListener());
+        fuseInstructionsCheckbox.addActionListener(new FuseInstructionsListener());
 
         cpuMenu.add(shiftInstructionsTypeCheckbox);
         cpuMenu.add(readWriteMemoryInstructionsTypeCheckbox);
         cpuMenu.add(jumpWithOffsetInstructionTypeCheckbox);
+        cpuMenu.add(vfResetCheckbox);
+        cpuMenu.add(clippingCheckbox);
+        cpuMenu.add(displayWaitCheckbox);
+        cpuMenu.addSeparator();
+        cpuMenu.add(fuseInstructionsCheckbox);
 
         // debug menu
         JMenu debugMenu = new JMenu("Debug");
@@ -561,6 +1209,8 @@ public class Chip8 {
         printMemoryItem.setAccelerator(KeyStroke.getKeyStroke('k')); //case-sensitive
         JMenuItem stepAndPrintMemoryItem = new JMenuItem("Step and print registers and memory");
         stepAndPrintMemoryItem.setAccelerator((KeyStroke.getKeyStroke('m'))); //case-sensitive
+        JMenuItem showFrameTimesItem = new JMenuItem("Show frame times");
+        JCheckBoxMenuItem strictAddressingCheckbox = new JCheckBoxMenuItem("Strict memory checks",strictAddressing);
 
         printInstructionsCheckbox.addActionListener(new PrintInstructionsListener());
         stepItem.addActionListener(new StepListener());
@@ -569,12 +1219,16 @@ public class Chip8 {
         showMemoryItem.addActionListener(showRegistersAndMemoryListener);
         printMemoryItem.addActionListener(new PrintRegistersAndMemoryListener());
         stepAndPrintMemoryItem.addActionListener(new StepAndPrintRegistersAndMemoryListener());
+        showFrameTimesItem.addActionListener(new ShowFrameTimesListener());
+        strictAddressingCheckbox.addActionListener(new StrictAddressingListener());
 
         debugMenu.add(printInstructionsCheckbox);
         debugMenu.add(stepItem);
         debugMenu.add(showMemoryItem);
         debugMenu.add(printMemoryItem);
         debugMenu.add(stepAndPrintMemoryItem);
+        debugMenu.add(showFrameTimesItem);
+        debugMenu.add(strictAddressingCheckbox);
 
         // help menu
         JMenu helpMenu = new JMenu("Help");
@@ -619,42 +1273,346 @@ public class Chip8 {
         frame.setResizable(false);
         frame.setVisible(true);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new MinimizeListener());
 
+        emulationThread = Thread.currentThread();
+        machine.getKeypad().setKeyEventListener(new WakeUpListener());
+        cpu.setInputLatency(inputLatency);
+        display.setInputLatency(inputLatency);
 
         int i = 0;
+        // set if the instructions of the current frame affected the graphics
+        boolean screenChanged = false;
+        // set while the screen of a machine run ahead is shown
+        boolean showingFuture = false;
+        // instructions executed in the current frame
+        int frameInstructions = 0;
+        long frameStart = System.nanoTime();
+        Chip8Events.Frame frameEvent = new Chip8Events.Frame();
+        frameEvent.begin();
 
         // fetch, decode, execute loop
         while(true) {
-            i++;
-            if(!isPaused & !fileChooserOpen & isFileLoaded) {
+            boolean adaptive = speedController.isEnabled();
+            int frameLength = adaptive ? speedController.getFrameInstructions() : instructionsPerTimerCycle;
+            // set when the current frame is over and the timers have to be decremented
+            boolean frameDue = false;
+
+            // the key events since the last batch of instructions
+            Keypad keypad = machine.getKeypad();
+            keypad.applyQueuedEvents();
+
+            // e.g. a program was loaded or stepped, the screen is presented like a changed one
+            if(frameRequested) {
+                frameRequested = false;
+                screenChanged = true;
+            }
+
+            boolean parkUntilWokenUp = isPaused | fileChooserOpen | !isFileLoaded;
+            if(parkUntilWokenUp) {
+                // no instructions run, a release held back to keep a short tap visible doesn't need to wait
+                while(keypad.applyQueuedEvents() > 0) {
+                }
+            }
+
+            int idleState = CPU.NOT_IDLE;
+            if(!parkUntilWokenUp) {
+                idleState = cpu.getIdleState();
+                // waiting for a key press or halted with both timers at zero,
+                // nothing changes until a key is pressed or the program is reset
+                if(idleState == CPU.IDLE_KEY_WAIT | idleState == CPU.IDLE_HALTED) {
+                    parkUntilWokenUp = cpu.getDelayTimer() == 0 & cpu.getSoundTimer() == 0 & !keypad.hasQueuedEvents();
+                }
+            }
+
+            if(parkUntilWokenUp) {
+                // show what was drawn so far, e.g. before waiting for a key press
+                if(screenChanged | cpu.pollScreenChanged()) {
+                    screenChanged = false;
+                    // the event dispatch thread may be loading a program
+                    synchronized(machine) {
+                        display.presentFrame();
+                    }
+                }
+
+                // no tone while paused
+                if(sound != null) {
+                    sound.setActive(false);
+                }
+
+                // instead of waking up every cycle we wait for the event dispatch thread to wake us up
+                // (resume, file chooser closed, file opened, reset or key event)
+                LockSupport.park(this);
+
+                // the time spent parked doesn't belong to any frame
+                i = 0;
+                frameInstructions = 0;
+                frameStart = System.nanoTime();
+                frameEvent = new Chip8Events.Frame();
+                frameEvent.begin();
+                speedController.restart();
+                continue;
+            }
+
+            if(adaptive & (idleState != CPU.NOT_IDLE | i >= frameLength)) {
+                // the instructions of this frame are done (or the program is idle), we wait for its end
+                // a key event may wake us up early, then we continue the frame
+                frameDue = speedController.parkUntilDeadline(this);
+                if(frameDue) {
+                    i = frameLength;
+                }
+            } else if(idleState != CPU.NOT_IDLE) {
+                // nothing but the timers will change before the next timer tick, so we skip ahead to it
+                // a key event may wake us up early, in that case we skip only the elapsed cycles
+                long cycleNanos = cycleTime * 1_000_000L;
+                long parkStart = System.nanoTime();
+                LockSupport.parkNanos(this, (frameLength - i) * cycleNanos);
+                int skippedCycles = (int) ((System.nanoTime() - parkStart) / cycleNanos);
+                i = Math.min(i + skippedCycles, frameLength);
+                frameDue = i >= frameLength;
+            } else {
                 // we don't use the method executeOneInstruction of this class since the
                 // memory window shouldn't be updated while running the interpreter normally,
                 // only when using step
-                int[] lastInstruction = cpu.executeOneInstruction();
+                int executed;
+                RuntimeException fault = null;
+                long batchStart = System.nanoTime();
+                // a program must not be loaded while the instructions are executed
+                synchronized(machine) {
+                    if (printInstructions){
+                        executed = 1;
+                        try {
+                            printInstructionInfo(cpu.executeOneInstruction());
+                        } catch(RuntimeException e) {
+                            fault = e;
+                        }
+                    } else {
+                        // the rest of the timer cycle in one go, we stop early if the program starts
+                        // to wait so that the thread can park, or starts the tone so that it is heard at once
+                        cpu.run(Math.max(frameLength - i, 1), CPU.STOP_KEY_WAIT | CPU.STOP_DISPLAY_WAIT | CPU.STOP_FAULT | CPU.STOP_SOUND_START);
+                        executed = cpu.getCyclesExecuted();
+                        fault = cpu.getFault();
+                    }
+                }
 
-                if (printInstructions){
-                    printInstructionInfo(lastInstruction);
+                if(fault != null) {
+                    // e.g. an illegal instruction or an access outside of the memory with strict memory checks,
+                    // we pause so that the program can be inspected
+                    System.out.println(fault.getMessage());
+                    isPaused = true;
+                    SwingUtilities.invokeLater(new PausedByFault(pauseCheckbox));
                 }
 
-                // if the instruction affects the graphics, we redraw the screen
-                if (lastInstruction[0] == 0) {
-                    if (lastInstruction[1] == 0xe0) {
-                        display.repaint();
-                    }
-                } else if ((lastInstruction[0] & 0xf0) == 0xd0) {
-                    display.repaint();
+                i += executed;
+                frameInstructions += executed;
+                if(sound != null) {
+                    sound.setActive(cpu.getSoundTimer() != 0);
+                }
+
+                // the screen is presented once per frame, at the timer tick
+                screenChanged |= cpu.pollScreenChanged();
+                if(adaptive) {
+                    speedController.recordBatch(executed, System.nanoTime() - batchStart);
+                } else {
+                    Thread.sleep(cycleTime * executed);
+                    frameDue = i >= frameLength;
                 }
             }
-            Thread.sleep(cycleTime);
-            if(i == instructionsPerTimerCycle){
+
+            if(frameDue){
                 i = 0;
                 cpu.decrementTimers();
+                if(sound != null) {
+                    sound.setActive(cpu.getSoundTimer() != 0);
+                }
+
+                // with run-ahead the screen of a fork some frames ahead is shown instead
+                Machine future = null;
+                if(runAhead.isEnabled()) {
+                    synchronized(machine) {
+                        future = runAhead.run(machine, frameLength);
+                    }
+                    if(future == null) {
+                        // over the budget for too long
+                        System.out.println(runAhead.getDisabledReason());
+                        SwingUtilities.invokeLater(new RunAheadTurnedOff(runAheadOffButton));
+                    }
+                }
+                if(future == null & showingFuture) {
+                    // back to the screen of the machine itself
+                    screenChanged = true;
+                }
+                showingFuture = future != null;
+
+                // the emulation doesn't wait for the painting, if the display falls behind frames are skipped
+                if(future != null) {
+                    if(runAhead.screenChanged(future) | screenChanged) {
+                        display.presentFrame(future.getFrameBuffer());
+                    } else {
+                        display.frameUnchanged();
+                    }
+                    screenChanged = false;
+                } else if(screenChanged) {
+                    screenChanged = false;
+                    synchronized(machine) {
+                        display.presentFrame();
+                    }
+                } else {
+                    display.frameUnchanged();
+                }
+
+                Chip8Events.TimerTick tickEvent = new Chip8Events.TimerTick();
+                if(tickEvent.shouldCommit()) {
+                    tickEvent.delayTimer = cpu.getDelayTimer();
+                    tickEvent.soundTimer = cpu.getSoundTimer();
+                    tickEvent.commit();
+                }
+
+                long frameEnd = System.nanoTime();
+                frameTimes.record(frameEnd - frameStart);
+                frameEvent.instructions = frameInstructions;
+                frameEvent.commit();
+
+                frameInstructions = 0;
+                frameStart = frameEnd;
+                frameEvent = new Chip8Events.Frame();
+                frameEvent.begin();
+
+                if(adaptive) {
+                    speedController.endFrame();
+                }
             }
         }
     }
 
+    // a speed entered by the user, either instructions per second ("700")
+    // or instructions per frame ("15/frame")
+    static int parseSpeed(String speed){
+        speed = speed.trim();
+        int perFrame = speed.indexOf("/frame");
+        if(perFrame >= 0) {
+            return Integer.parseInt(speed.substring(0, perFrame).trim()) * SpeedController.FRAMES_PER_SECOND;
+        }
+        int perSecond = Integer.parseInt(speed);
+        if(perSecond <= 0) {
+            throw new IllegalArgumentException("speed must be positive: " + speed);
+        }
+        return perSecond;
+    }
+
+    // called by the display when it's painted for the first time
+    // -Dchip8.printStartupTime=true prints the time to the first frame since the start of the JVM,
+    // -Dchip8.exitAfterFirstFrame=true exits afterwards, which is used for the training run of
+    // the class data sharing archive (see build.sh)
+    static void firstFramePainted(){
+        if(Boolean.getBoolean("chip8.printStartupTime")) {
+            System.out.println("First frame after " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms");
+        }
+        if(Boolean.getBoolean("chip8.exitAfterFirstFrame")) {
+            // let the paint finish first
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    System.exit(0);
+                }
+            });
+        }
+    }
+
     public static void main(String[] Args) throws Exception{
         Chip8 chip8 = new Chip8();
+        File recordFile = null;
+        int recordScale = Recorder.DEFAULT_SCALE;
+        int[] recordColors = {FrameImages.BACKGROUND_COLOR, FrameImages.PIXEL_COLOR};
+        boolean soundEnabled = true;
+        File soundFile = null;
+        int soundBuffer = Sound.DEFAULT_BUFFER_MILLIS;
+        for(int i = 0; i < Args.length; i++){
+            // --export-frames FILE publishes the frames for other processes, see FrameExport
+            if(Args[i].equals("--export-frames") && i + 1 < Args.length){
+                chip8.display.setFrameExport(new FrameExport(new File(Args[++i])));
+            }
+            // --stream FILE appends every frame to a compact stream of frames, see FrameStream
+            if(Args[i].equals("--stream") && i + 1 < Args.length){
+                chip8.streamFile = new File(Args[++i]);
+                chip8.display.setFrameStream(new FrameStream.Encoder(new FileOutputStream(chip8.streamFile)));
+            }
+            // --record FILE.gif or --record DIRECTORY (PPM images) records from the start, see Recorder
+            // --record-scale N and --record-colors RRGGBB,RRGGBB (background, pixels) change the images
+            if(Args[i].equals("--record") && i + 1 < Args.length){
+                recordFile = new File(Args[++i]);
+            }
+            if(Args[i].equals("--record-scale") && i + 1 < Args.length){
+                recordScale = Integer.parseInt(Args[++i]);
+            }
+            if(Args[i].equals("--record-colors") && i + 1 < Args.length){
+                String[] colors = Args[++i].split(",");
+                recordColors = new int[]{Integer.parseInt(colors[0].trim(), 16), Integer.parseInt(colors[1].trim(), 16)};
+            }
+            // --no-sound, --sound-wav FILE writes the sound into a WAV file instead of playing it,
+            // --sound-buffer MS sets the latency of the sound (smaller buffers may underrun)
+            if(Args[i].equals("--no-sound")){
+                soundEnabled = false;
+            }
+            if(Args[i].equals("--sound-wav") && i + 1 < Args.length){
+                soundFile = new File(Args[++i]);
+            }
+            if(Args[i].equals("--sound-buffer") && i + 1 < Args.length){
+                soundBuffer = Integer.parseInt(Args[++i]);
+            }
+            // --run-ahead N shows the screen N frames ahead, --run-ahead-budget MS is the time it may take per frame
+            if(Args[i].equals("--run-ahead") && i + 1 < Args.length){
+                chip8.runAhead.setFrames(Integer.parseInt(Args[++i]));
+            }
+            if(Args[i].equals("--run-ahead-budget") && i + 1 < Args.length){
+                chip8.runAhead.setBudgetMillis(Double.parseDouble(Args[++i]));
+            }
+        }
+        if(soundEnabled){
+            Sound.sink sink = soundFile == null ? new Sound.LineSink() : new Sound.WavSink(soundFile);
+            try {
+                chip8.sound = new Sound(sink, Sound.DEFAULT_SAMPLE_RATE, soundBuffer, Sound.DEFAULT_FREQUENCY, Sound.DEFAULT_VOLUME);
+            } catch(IOException e) {
+                // e.g. no sound card, the interpreter runs without sound
+                System.out.println(e.getMessage());
+            }
+        }
+        if(recordFile != null){
+            chip8.display.setRecorder(new Recorder(recordFile, recordScale, recordColors, Recorder.DEFAULT_QUEUE_SIZE));
+        }
+
+        // the recording still running at the exit is completed, the WAV file of the sound too
+        class CloseOutputs implements Runnable {
+            public void run(){
+                if(chip8.sound != null){
+                    try {
+                        chip8.sound.close();
+                    } catch(IOException e) {
+                        System.out.println("Sound failed: " + e.getMessage());
+                    }
+                }
+                FrameStream.Encoder stream = chip8.display.getFrameStream();
+                if(stream != null){
+                    chip8.display.setFrameStream(null);
+                    synchronized(stream) {
+                        try {
+                            stream.close();
+                        } catch(IOException e) {
+                            System.out.println("Frame stream failed: " + e.getMessage());
+                        }
+                    }
+                }
+                Recorder recorder = chip8.display.getRecorder();
+                if(recorder != null){
+                    try {
+                        recorder.close();
+                        System.out.println(recorder.status());
+                    } catch(IOException e) {
+                        System.out.println("Recording failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new CloseOutputs()));
         chip8.go();
     }
 
@@ -0,0 +1,112 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Java Flight Recorder events of the interpreter
+// record them with e.g. java -XX:StartFlightRecording=filename=chip8.jfr -jar chip8.jar
+// the events cost next to nothing if no recording is running
+public class Chip8Events {
+
+    private Chip8Events(){
+    }
+
+    // one frame is one timer cycle, i.e. everything between two timer ticks
+    @Name("chip8.Frame")
+    @Label("Frame")
+    @Category("CHIP-8")
+    @Description("Emulation of one timer cycle, including the time spent sleeping")
+    @StackTrace(false)
+    static class Frame extends Event {
+        @Label("Instructions")
+        int instructions;
+    }
+
+    @Name("chip8.TimerTick")
+    @Label("Timer Tick")
+    @Category("CHIP-8")
+    @StackTrace(false)
+    static class TimerTick extends Event {
+        @Label("Delay Timer")
+        int delayTimer;
+
+        @Label("Sound Timer")
+        int soundTimer;
+    }
+
+    @Name("chip8.RomLoad")
+    @Label("ROM Load")
+    @Category("CHIP-8")
+    @StackTrace(false)
+    static class RomLoad extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Size")
+        int size;
+    }
+
+    @Name("chip8.Reset")
+    @Label("Reset")
+    @Category("CHIP-8")
+    @StackTrace(false)
+    static class Reset extends Event {
+        @Label("File")
+        String file;
+    }
+
+    // a save state of the machine for run-ahead, see RunAhead: the fork and the frames run on it,
+    // the duration is the cost of run-ahead in that frame
+    @Name("chip8.Snapshot")
+    @Label("Snapshot")
+    @Category("CHIP-8")
+    @Description("A copy-on-write fork of the machine and the frames run ahead on it")
+    @StackTrace(false)
+    static class Snapshot extends Event {
+        @Label("Frames Run Ahead")
+        int frames;
+
+        @Label("Pages Shared")
+        @Description("Memory pages the fork still shared with the machine after running ahead")
+        int pagesShared;
+    }
+
+    // a key press which reached the screen, see InputLatency
+    @Name("chip8.InputLatency")
+    @Label("Input Latency")
+    @Category("CHIP-8")
+    @Description("The stages from a key press to the painted frame which shows its effect")
+    @StackTrace(false)
+    static class InputLatency extends Event {
+        @Label("Key to Read")
+        @Timespan(Timespan.NANOSECONDS)
+        long keyToRead;
+
+        @Label("Read to Draw")
+        @Timespan(Timespan.NANOSECONDS)
+        long readToDraw;
+
+        @Label("Draw to Paint")
+        @Timespan(Timespan.NANOSECONDS)
+        long drawToPaint;
+    }
+
+}
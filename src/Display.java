@@ -15,62 +15,241 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 
 import java.awt.*;
 import javax.swing.*;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Display extends JPanel {
 
     private Graphics g;
     private int scale;
-    private boolean[][] displayMatrix = new boolean[64][32];
+    // the pixels are kept by the frame buffer, this class only paints them
+    private final FrameBuffer frameBuffer;
+    private boolean painted = false;
+
+    // the last frame handed over by presentFrame, painted by the event dispatch thread
+    // the emulation thread never waits for the painting: if the previous frame hasn't been
+    // painted yet when the next one arrives, the next one replaces it and the previous one is skipped
+    private final long[] presentedRows = new long[FrameBuffer.HEIGHT];
+    private final long[] paintedRows = new long[FrameBuffer.HEIGHT];
+    private final AtomicBoolean paintPending = new AtomicBoolean(false);
+    // the frame buffer handed over last, the machine's or e.g. one of a machine run ahead,
+    // an unchanged frame is appended to the frame stream from it
+    private volatile FrameBuffer lastFrameBuffer;
+    // set while the window is minimized, nothing is painted then
+    private volatile boolean hidden = false;
+    private boolean changedWhileHidden = false;
+
+    // every frame handed over is also published here for other processes, see FrameExport
+    private volatile FrameExport frameExport;
+    // and captured for the recording, if one is running
+    private volatile Recorder recorder;
+    // and appended to a stream of frames, see FrameStream, it's dropped if writing fails
+    private volatile FrameStream.Encoder frameStream;
+    // told when a frame is presented and painted, if the latency of the input is measured
+    private volatile InputLatency inputLatency;
+
+    // statistics
+    private final AtomicLong presentedFrames = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final AtomicLong hiddenFrames = new AtomicLong();
+    private final LatencyHistogram paintTimes = new LatencyHistogram("Paint time");
 
     private final Color colorA = new Color(101,179,166);
     private final Color colorB = new Color(13,28,99);
 
     // constructor
-    public Display(){
+    public Display(FrameBuffer frameBuffer){
+        this.frameBuffer = frameBuffer;
+        this.lastFrameBuffer = frameBuffer;
         setScale(Chip8.DEFAULT_SCALE);
     }
 
-    public Display(int scale) {
+    public Display(FrameBuffer frameBuffer, int scale) {
+        this.frameBuffer = frameBuffer;
+        this.lastFrameBuffer = frameBuffer;
         setScale(scale);
     }
 
-    public void paintComponent(Graphics g){
-        this.g = g;
-        drawScreen();
+    // hands the current content of the frame buffer over for painting, called by the one thread
+    // running the machine (the input latency is measured on it), which mustn't change the frame buffer meanwhile
+    public void presentFrame(){
+        presentFrame(frameBuffer);
+    }
+
+    // hands the content of another frame buffer over, e.g. the screen of a machine run ahead
+    public void presentFrame(FrameBuffer frameBuffer){
+        lastFrameBuffer = frameBuffer;
+        FrameExport export = frameExport;
+        if(export != null){
+            // also while minimized, the viewers don't depend on the window
+            export.publish(frameBuffer);
+        }
+        Recorder recorder = this.recorder;
+        if(recorder != null){
+            recorder.capture(frameBuffer);
+        }
+        appendToStream(frameBuffer);
+        handOver(frameBuffer);
     }
 
-    public boolean changePixel(int x, int y){
-        boolean isSet = displayMatrix[x][y];
-        displayMatrix[x][y] = !isSet;
-        return isSet;
+    // the end of a frame which didn't change the screen, the frame stream has a record for every
+    // frame so that its position is the time
+    public void frameUnchanged(){
+        appendToStream(lastFrameBuffer);
     }
 
-    private void drawScreen(){
-        Color color;
-        for (int x=0; x<64; x++){
-            for (int y=0; y<32; y++){
-                if(displayMatrix[x][y]) {
-                    color = colorA;
-                } else {
-                    color = colorB;
+    private void appendToStream(FrameBuffer frameBuffer){
+        FrameStream.Encoder stream = frameStream;
+        if(stream != null){
+            // one writer at a time, the encoder keeps the previous frame
+            synchronized(stream) {
+                try {
+                    stream.encode(frameBuffer);
+                } catch(IOException e) {
+                    frameStream = null;
+                    System.out.println("Frame stream failed: " + e.getMessage());
                 }
-                drawPixel(color,scale,x,y);
             }
         }
     }
 
-    public void clearScreen(){
-        for (int x=0; x<64; x++){
-            for (int y=0; y<32; y++){
-                drawPixel(colorB,scale,x,y);
-                displayMatrix[x][y] = false;
+    // the frame is painted next, unless the window is minimized
+    private void handOver(FrameBuffer frameBuffer){
+        synchronized(presentedRows) {
+            frameBuffer.copyRowsTo(presentedRows, 0);
+            if(hidden){
+                changedWhileHidden = true;
+            }
+        }
+        if(hidden){
+            hiddenFrames.incrementAndGet();
+            return;
+        }
+        InputLatency latency = inputLatency;
+        if(latency != null){
+            latency.framePresented();
+        }
+        presentedFrames.incrementAndGet();
+        if(paintPending.getAndSet(true)){
+            // the painting of the previous frame hasn't started yet, it will paint this frame instead
+            skippedFrames.incrementAndGet();
+        } else {
+            repaint();
+        }
+    }
+
+    // called when the window is minimized or restored
+    public void setHidden(boolean hidden){
+        this.hidden = hidden;
+        boolean changed;
+        synchronized(presentedRows) {
+            changed = changedWhileHidden;
+            changedWhileHidden = false;
+        }
+        if(!hidden & changed){
+            // the last frame presented is painted, without reading the frame buffer on this thread
+            if(!paintPending.getAndSet(true)){
+                repaint();
+            }
+        }
+    }
+
+    public void paintComponent(Graphics g){
+        long start = System.nanoTime();
+        paintPending.set(false);
+        // before the frame is taken, a frame presented later isn't in this painting
+        InputLatency latency = inputLatency;
+        boolean measureLatency = latency != null && latency.isAwaitingPaint();
+        synchronized(presentedRows) {
+            System.arraycopy(presentedRows, 0, paintedRows, 0, FrameBuffer.HEIGHT);
+        }
+        this.g = g;
+        drawScreen();
+        paintTimes.record(System.nanoTime() - start);
+        if(measureLatency){
+            latency.framePainted();
+        }
+        if(!painted){
+            painted = true;
+            Chip8.firstFramePainted();
+        }
+    }
+
+    // the background in one go, then every horizontal run of set pixels as one rectangle
+    private void drawScreen(){
+        g.setColor(colorB);
+        g.fillRect(0, 0, scale*FrameBuffer.WIDTH, scale*FrameBuffer.HEIGHT);
+        g.setColor(colorA);
+        for (int y=0; y<FrameBuffer.HEIGHT; y++){
+            long row = paintedRows[y];
+            int x = 0;
+            while(row != 0){
+                // skip the unset pixels, then measure the run of set pixels
+                int gap = Long.numberOfLeadingZeros(row);
+                row <<= gap;
+                x += gap;
+                int run = Long.numberOfLeadingZeros(~row);
+                drawRun(scale, x, y, run);
+                row = run == 64 ? 0 : row << run;
+                x += run;
             }
         }
     }
 
-    private void drawPixel(Color color, int scale, int x, int y){
-        g.setColor(color);
-        g.fillRect(scale*x,scale*y,scale,scale);
+    private void drawRun(int scale, int x, int y, int length){
+        g.fillRect(scale*x,scale*y,scale*length,scale);
+    }
+
+    public LatencyHistogram getPaintTimes(){
+        return paintTimes;
+    }
+
+    public void setFrameExport(FrameExport frameExport){
+        this.frameExport = frameExport;
+    }
+
+    public FrameExport getFrameExport(){
+        return frameExport;
+    }
+
+    public void setInputLatency(InputLatency inputLatency){
+        this.inputLatency = inputLatency;
+    }
+
+    public void setRecorder(Recorder recorder){
+        this.recorder = recorder;
+    }
+
+    public Recorder getRecorder(){
+        return recorder;
+    }
+
+    public void setFrameStream(FrameStream.Encoder frameStream){
+        this.frameStream = frameStream;
+    }
+
+    public FrameStream.Encoder getFrameStream(){
+        return frameStream;
+    }
+
+    public long getPresentedFrames(){
+        return presentedFrames.get();
+    }
+
+    public long getSkippedFrames(){
+        return skippedFrames.get();
+    }
+
+    public long getHiddenFrames(){
+        return hiddenFrames.get();
+    }
+
+    public void resetStatistics(){
+        presentedFrames.set(0);
+        skippedFrames.set(0);
+        hiddenFrames.set(0);
+        paintTimes.reset();
     }
 
     public int getScale(){
@@ -0,0 +1,82 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// the pixels of the 64x32 screen, without anything from AWT so that it can be used headless
+// every row is one long, the leftmost pixel is the most significant bit
+public class FrameBuffer {
+
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 32;
+
+    private final long[] rows = new long[HEIGHT];
+
+    // methods
+
+    public boolean getPixel(int x, int y){
+        return (rows[y] << x) < 0;
+    }
+
+    // toggles a pixel and returns whether it was set before
+    public boolean changePixel(int x, int y){
+        long bit = 1L << (63 - x);
+        boolean isSet = (rows[y] & bit) != 0;
+        rows[y] ^= bit;
+        return isSet;
+    }
+
+    // xors the 8 pixels of a sprite row starting at column x, wrapping around at the right edge,
+    // and returns whether a pixel was switched off
+    public boolean drawSpriteRow(int x, int y, int spriteByte){
+        long bits = Long.rotateRight(((long) (spriteByte & 0xff)) << 56, x);
+        boolean switchedOff = (rows[y] & bits) != 0;
+        rows[y] ^= bits;
+        return switchedOff;
+    }
+
+    public void clear(){
+        for(int y = 0; y < HEIGHT; y++){
+            rows[y] = 0;
+        }
+    }
+
+    public long getRow(int y){
+        return rows[y];
+    }
+
+    public void copyRowsTo(long[] destination, int offset){
+        System.arraycopy(rows, 0, destination, offset, HEIGHT);
+    }
+
+    public void setRows(long[] source, int offset){
+        System.arraycopy(source, offset, rows, 0, HEIGHT);
+    }
+
+    public void copyFrom(FrameBuffer other){
+        System.arraycopy(other.rows, 0, rows, 0, HEIGHT);
+    }
+
+    // a 64-bit FNV-1a hash of the pixels, row by row from the left, e.g. to compare with known good frames
+    public long hash(){
+        long hash = 0xcbf29ce484222325L;
+        for(long row : rows){
+            for(int shift = 56; shift >= 0; shift -= 8){
+                hash ^= (row >>> shift) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+}
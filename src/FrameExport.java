@@ -0,0 +1,171 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// publishes every frame into a memory-mapped file (e.g. /dev/shm/chip8-frames on Linux), so that
+// viewers in other processes (streaming, overlays) read the screen directly from memory
+// the file is little endian:
+//    0  int   magic 0x43384642 ("C8FB" read as big endian bytes)
+//    4  int   version 1
+//    8  int   width 64
+//   12  int   height 32
+//   16  long  sequence number, odd while a frame is being written
+//   24  long  number of the frame, counted from 0 when the export starts
+//   32  long  System.nanoTime when the frame was published (CLOCK_MONOTONIC on Linux)
+//   64  32 x long, the rows of the frame, pixel x of a row is bit 63 - x
+// a reader uses the sequence number as a seqlock: read it (acquire), retry while it's odd, copy the
+// frame, read it again after a load fence and retry if it changed, see readFrame
+// the writer stores the odd sequence number followed by a store fence, so that no store of the frame
+// becomes visible before it (a volatile store alone only orders the stores before it), and the even
+// one with release semantics after the frame
+// the writer never waits for the readers
+public class FrameExport {
+
+    public static final int MAGIC = 0x43384642;
+    public static final int VERSION = 1;
+    public static final int SEQUENCE_OFFSET = 16;
+    public static final int FRAME_OFFSET = 24;
+    public static final int TIME_OFFSET = 32;
+    public static final int ROWS_OFFSET = 64;
+    public static final int SIZE = ROWS_OFFSET + 8 * FrameBuffer.HEIGHT;
+
+    // long accesses of the mapped file with the memory ordering of a VarHandle
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private long sequence = 0;
+    private volatile long frames = 0;
+
+    // constructor
+    public FrameExport(File file) throws IOException {
+        this.file = file;
+        try(RandomAccessFile access = new RandomAccessFile(file, "rw")){
+            access.setLength(SIZE);
+            buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        // readers might still have the file of an earlier run mapped, it looks like a frame in progress
+        // until the header is complete
+        LONGS.setOpaque(buffer, SEQUENCE_OFFSET, 1L);
+        VarHandle.storeStoreFence();
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, FrameBuffer.WIDTH);
+        buffer.putInt(12, FrameBuffer.HEIGHT);
+        publish(new FrameBuffer());
+    }
+
+    // methods
+
+    // writes the current frame, there is only one writer at a time
+    public synchronized void publish(FrameBuffer frameBuffer){
+        // odd: readers retry until the frame is complete
+        LONGS.setOpaque(buffer, SEQUENCE_OFFSET, sequence + 1);
+        // the frame isn't visible before the odd sequence number, even on weakly ordered CPUs
+        VarHandle.storeStoreFence();
+        LONGS.set(buffer, FRAME_OFFSET, frames);
+        LONGS.set(buffer, TIME_OFFSET, System.nanoTime());
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            LONGS.set(buffer, ROWS_OFFSET + 8 * y, frameBuffer.getRow(y));
+        }
+        sequence += 2;
+        LONGS.setRelease(buffer, SEQUENCE_OFFSET, sequence);
+        frames++;
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    public long getFrames(){
+        return frames;
+    }
+
+    // reads the latest complete frame into rows and returns its number,
+    // like a reader in another process would, e.g. to test the export
+    public static long readFrame(MappedByteBuffer buffer, long[] rows){
+        while(true){
+            long before = (long) LONGS.getAcquire(buffer, SEQUENCE_OFFSET);
+            if((before & 1) != 0){
+                Thread.onSpinWait();
+                continue;
+            }
+            long frame = (long) LONGS.get(buffer, FRAME_OFFSET);
+            for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+                rows[y] = (long) LONGS.get(buffer, ROWS_OFFSET + 8 * y);
+            }
+            VarHandle.loadLoadFence();
+            if((long) LONGS.get(buffer, SEQUENCE_OFFSET) == before){
+                return frame;
+            }
+        }
+    }
+
+    // a simple viewer: prints the number of frames received every second and the latest frame as text
+    //   java -cp chip8.jar FrameExport /dev/shm/chip8-frames
+    public static void main(String[] args) throws Exception {
+        if(args.length != 1){
+            System.err.println("usage: java -cp chip8.jar FrameExport FILE");
+            System.exit(2);
+            return;
+        }
+        MappedByteBuffer buffer;
+        try(RandomAccessFile access = new RandomAccessFile(args[0], "r")){
+            buffer = access.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+            System.err.println(args[0] + " is not a frame export");
+            System.exit(1);
+            return;
+        }
+
+        long[] rows = new long[FrameBuffer.HEIGHT];
+        long lastFrame = readFrame(buffer, rows);
+        long received = 0;
+        long nextReport = System.nanoTime() + 1_000_000_000L;
+        while(true){
+            long frame = readFrame(buffer, rows);
+            if(frame != lastFrame){
+                received++;
+                lastFrame = frame;
+            }
+            if(System.nanoTime() >= nextReport){
+                StringBuilder text = new StringBuilder();
+                for(long row : rows){
+                    for(int x = 0; x < FrameBuffer.WIDTH; x++){
+                        text.append((row << x) < 0 ? '#' : '.');
+                    }
+                    text.append('\n');
+                }
+                System.out.print(text);
+                System.out.println("frame " + frame + ", " + received + " frames in the last second");
+                received = 0;
+                nextReport += 1_000_000_000L;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+}
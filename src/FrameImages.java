@@ -0,0 +1,112 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// writes the frame buffer as PBM or PNG image without using AWT or ImageIO,
+// so that the headless runner also works where no display (or desktop module) is available
+public class FrameImages {
+
+    // the colors of the Display
+    public static final int BACKGROUND_COLOR = 0x0d1c63;
+    public static final int PIXEL_COLOR = 0x65b3a6;
+
+    private FrameImages(){
+    }
+
+    // plain PBM (P1), 1 is a set pixel
+    public static void writePbm(FrameBuffer frameBuffer, OutputStream out) throws IOException {
+        StringBuilder pbm = new StringBuilder("P1\n" + FrameBuffer.WIDTH + " " + FrameBuffer.HEIGHT + "\n");
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            for(int x = 0; x < FrameBuffer.WIDTH; x++){
+                pbm.append(frameBuffer.getPixel(x, y) ? '1' : '0');
+                pbm.append(x == FrameBuffer.WIDTH - 1 ? '\n' : ' ');
+            }
+        }
+        out.write(pbm.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public static void writePng(FrameBuffer frameBuffer, int scale, OutputStream out) throws IOException {
+        byte[] pixels = new byte[FrameBuffer.WIDTH * FrameBuffer.HEIGHT];
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            for(int x = 0; x < FrameBuffer.WIDTH; x++){
+                pixels[y * FrameBuffer.WIDTH + x] = (byte) (frameBuffer.getPixel(x, y) ? 1 : 0);
+            }
+        }
+        writePng(pixels, FrameBuffer.WIDTH, FrameBuffer.HEIGHT, new int[]{BACKGROUND_COLOR, PIXEL_COLOR}, scale, out);
+    }
+
+    // writes an 8-bit palette PNG, pixels contains one palette index per pixel
+    public static void writePng(byte[] pixels, int width, int height, int[] palette, int scale, OutputStream out) throws IOException {
+        DataOutputStream png = new DataOutputStream(out);
+        png.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width * scale);
+        headerData.writeInt(height * scale);
+        // bit depth 8, color type 3 (palette), compression, filter and interlace method 0
+        headerData.write(new byte[]{8, 3, 0, 0, 0});
+        writeChunk(png, "IHDR", header.toByteArray());
+
+        byte[] paletteData = new byte[3 * palette.length];
+        for(int i = 0; i < palette.length; i++){
+            paletteData[3 * i] = (byte) (palette[i] >> 16);
+            paletteData[3 * i + 1] = (byte) (palette[i] >> 8);
+            paletteData[3 * i + 2] = (byte) palette[i];
+        }
+        writeChunk(png, "PLTE", paletteData);
+
+        // every scanline starts with the filter type 0
+        int lineLength = width * scale + 1;
+        byte[] raw = new byte[lineLength * height * scale];
+        for(int y = 0; y < height * scale; y++){
+            for(int x = 0; x < width * scale; x++){
+                raw[y * lineLength + 1 + x] = pixels[(y / scale) * width + x / scale];
+            }
+        }
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while(!deflater.finished()){
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+        deflater.end();
+        writeChunk(png, "IDAT", compressed.toByteArray());
+        writeChunk(png, "IEND", new byte[0]);
+        png.flush();
+    }
+
+    private static void writeChunk(DataOutputStream png, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        png.writeInt(data.length);
+        png.write(typeBytes);
+        png.write(data);
+        png.writeInt((int) crc.getValue());
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// a compact binary stream of frames, one record per frame (so at 60 frames per second the position
+// in the stream is the time), for streaming and recording
+// the stream starts with a header:
+//   4 bytes  "C8FS"
+//   u8       version 1
+//   u8, u8   width 64 and height 32, the only size of version 1
+//   u16      keyframe interval in frames, big endian
+// followed by the frames, each starts with its type:
+//   0  SAME      the frame didn't change, nothing follows
+//   1  DELTA     u32 bitmap of the changed rows (bit 31 - y for row y), then the changed rows XORed
+//                with the previous frame, 8 bytes per row, run length encoded
+//   2  KEYFRAME  like DELTA, but against an empty frame, so that a decoder can start here
+// the run length encoding works on the bytes of all changed rows together, every run starts with a
+// control byte c: c < 0x80 is followed by c + 1 literal bytes, c >= 0x80 stands for (c & 0x7f) + 1 zero bytes
+// a frame which didn't change costs one byte, a small sprite moving a few bytes more
+public class FrameStream {
+
+    public static final byte[] MAGIC = {'C', '8', 'F', 'S'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 9;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 120;
+
+    public static final int SAME = 0;
+    public static final int DELTA = 1;
+    public static final int KEYFRAME = 2;
+
+    private static final int ROW_BYTES = FrameBuffer.WIDTH / 8;
+    private static final int MAX_RUN = 128;
+    // type, bitmap, all rows as literals with a control byte for every run
+    public static final int MAX_FRAME_SIZE = 1 + 4 + ROW_BYTES * FrameBuffer.HEIGHT + (ROW_BYTES * FrameBuffer.HEIGHT + MAX_RUN - 1) / MAX_RUN;
+
+    private FrameStream(){
+    }
+
+    // encodes the frames of the emulation, e.g. at the end of every frame
+    // nothing is allocated after the constructor
+    public static class Encoder {
+        private final OutputStream out;
+        private final int keyframeInterval;
+        private final long[] previous = new long[FrameBuffer.HEIGHT];
+        private final long[] current = new long[FrameBuffer.HEIGHT];
+        private final byte[] buffer = new byte[Math.max(MAX_FRAME_SIZE, HEADER_SIZE)];
+        // the changed bytes of the rows of one frame, before the run length encoding
+        private final byte[] changed = new byte[ROW_BYTES * FrameBuffer.HEIGHT];
+        private boolean headerWritten = false;
+
+        // statistics
+        private long frames = 0;
+        // frames counts on by requestKeyframe as well
+        private long encodedFrames = 0;
+        private long keyframes = 0;
+        private long unchangedFrames = 0;
+        private long bytes = 0;
+
+        // constructor
+        public Encoder(OutputStream out, int keyframeInterval){
+            if(keyframeInterval <= 0 || keyframeInterval > 0xffff){
+                throw new IllegalArgumentException("keyframe interval must be 1 to 65535, got " + keyframeInterval);
+            }
+            this.out = out;
+            this.keyframeInterval = keyframeInterval;
+        }
+
+        public Encoder(OutputStream out){
+            this(out, DEFAULT_KEYFRAME_INTERVAL);
+        }
+
+        // methods
+
+        // appends a frame and returns the number of bytes written for it
+        public int encode(FrameBuffer frameBuffer) throws IOException {
+            frameBuffer.copyRowsTo(current, 0);
+            return encode(current, 0);
+        }
+
+        public int encode(long[] rows, int offset) throws IOException {
+            int written = 0;
+            if(!headerWritten){
+                System.arraycopy(MAGIC, 0, buffer, 0, 4);
+                buffer[4] = VERSION;
+                buffer[5] = FrameBuffer.WIDTH;
+                buffer[6] = FrameBuffer.HEIGHT;
+                buffer[7] = (byte) (keyframeInterval >> 8);
+                buffer[8] = (byte) keyframeInterval;
+                out.write(buffer, 0, HEADER_SIZE);
+                written += HEADER_SIZE;
+                headerWritten = true;
+            }
+
+            boolean keyframe = frames % keyframeInterval == 0;
+            int bitmap = 0;
+            int changedBytes = 0;
+            for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+                long row = rows[offset + y];
+                long delta = keyframe ? row : row ^ previous[y];
+                previous[y] = row;
+                if(delta != 0){
+                    bitmap |= 1 << (31 - y);
+                    for(int shift = 56; shift >= 0; shift -= 8){
+                        changed[changedBytes++] = (byte) (delta >>> shift);
+                    }
+                }
+            }
+
+            int length = 0;
+            if(bitmap == 0 & !keyframe){
+                buffer[length++] = SAME;
+                unchangedFrames++;
+            } else {
+                buffer[length++] = (byte) (keyframe ? KEYFRAME : DELTA);
+                buffer[length++] = (byte) (bitmap >>> 24);
+                buffer[length++] = (byte) (bitmap >>> 16);
+                buffer[length++] = (byte) (bitmap >>> 8);
+                buffer[length++] = (byte) bitmap;
+                length = encodeRuns(changed, changedBytes, buffer, length);
+                if(keyframe){
+                    keyframes++;
+                }
+            }
+            out.write(buffer, 0, length);
+            written += length;
+            frames++;
+            encodedFrames++;
+            bytes += written;
+            return written;
+        }
+
+        // the next frame is a keyframe, e.g. when a new client joins a stream
+        public void requestKeyframe(){
+            // frames is only used for the keyframe interval and the statistics
+            long rest = frames % keyframeInterval;
+            if(rest != 0){
+                frames += keyframeInterval - rest;
+            }
+        }
+
+        public long getKeyframes(){
+            return keyframes;
+        }
+
+        public long getUnchangedFrames(){
+            return unchangedFrames;
+        }
+
+        public long getBytes(){
+            return bytes;
+        }
+
+        public long getFrames(){
+            return encodedFrames;
+        }
+
+        // closes the output stream
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // run length encoding of the first length bytes of data into out from position on,
+    // returns the new position
+    static int encodeRuns(byte[] data, int length, byte[] out, int position){
+        int i = 0;
+        while(i < length){
+            if(data[i] == 0){
+                int run = 1;
+                while(i + run < length && data[i + run] == 0 && run < MAX_RUN){
+                    run++;
+                }
+                out[position++] = (byte) (0x80 | (run - 1));
+                i += run;
+            } else {
+                // literals up to the next zero byte, a single zero between literals is kept
+                // as a literal since a run would cost as much
+                int run = 1;
+                while(i + run < length && run < MAX_RUN
+                        && (data[i + run] != 0 || i + run + 1 < length && data[i + run + 1] != 0 && run + 1 < MAX_RUN)){
+                    run++;
+                }
+                out[position++] = (byte) (run - 1);
+                System.arraycopy(data, i, out, position, run);
+                position += run;
+                i += run;
+            }
+        }
+        return position;
+    }
+
+    // reads the frames of a stream one after the other
+    public static class Decoder {
+        private final InputStream in;
+        private final long[] rows = new long[FrameBuffer.HEIGHT];
+        private final byte[] changed = new byte[ROW_BYTES * FrameBuffer.HEIGHT];
+        private boolean headerRead = false;
+        private int keyframeInterval;
+        // a decoder which starts in the middle of a stream waits for the first keyframe
+        private boolean synced = false;
+        private long frames = 0;
+
+        // constructor
+        public Decoder(InputStream in){
+            this.in = in;
+        }
+
+        // methods
+
+        // reads the stream header, called by the first next if not before
+        public void readHeader() throws IOException {
+            byte[] header = new byte[HEADER_SIZE];
+            readFully(header, HEADER_SIZE);
+            for(int i = 0; i < 4; i++){
+                if(header[i] != MAGIC[i]){
+                    throw new IOException("not a frame stream");
+                }
+            }
+            if(header[4] != VERSION || header[5] != FrameBuffer.WIDTH || header[6] != FrameBuffer.HEIGHT){
+                throw new IOException("unsupported frame stream version " + header[4] + " or size " + header[5] + "x" + header[6]);
+            }
+            keyframeInterval = (header[7] & 0xff) << 8 | header[8] & 0xff;
+            headerRead = true;
+            synced = true;
+        }
+
+        // starts in the middle of a stream (after the header), frames are skipped up to the next keyframe
+        public void startWithoutHeader(){
+            headerRead = true;
+            synced = false;
+        }
+
+        // decodes the next frame into destination at offset, returns false at the end of the stream
+        // frames before the first keyframe of a stream joined in the middle are skipped
+        public boolean next(long[] destination, int offset) throws IOException {
+            if(!headerRead){
+                readHeader();
+            }
+            while(true){
+                int type = in.read();
+                if(type < 0){
+                    return false;
+                }
+                if(type == KEYFRAME){
+                    Arrays.fill(rows, 0);
+                    synced = true;
+                } else if(type != DELTA & type != SAME){
+                    throw new IOException("unknown frame type " + type);
+                }
+                if(type != SAME){
+                    int bitmap = readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+                    int changedBytes = ROW_BYTES * Integer.bitCount(bitmap);
+                    decodeRuns(changedBytes);
+                    int i = 0;
+                    for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+                        if((bitmap << y) < 0){
+                            long delta = 0;
+                            for(int b = 0; b < ROW_BYTES; b++){
+                                delta = delta << 8 | changed[i++] & 0xff;
+                            }
+                            rows[y] ^= delta;
+                        }
+                    }
+                }
+                if(synced){
+                    frames++;
+                    System.arraycopy(rows, 0, destination, offset, FrameBuffer.HEIGHT);
+                    return true;
+                }
+            }
+        }
+
+        private void decodeRuns(int length) throws IOException {
+            int i = 0;
+            while(i < length){
+                int control = readByte();
+                int run = (control & 0x7f) + 1;
+                if(i + run > length){
+                    throw new IOException("run past the end of the frame");
+                }
+                if(control >= 0x80){
+                    Arrays.fill(changed, i, i + run, (byte) 0);
+                } else {
+                    readFully(changed, i, run);
+                }
+                i += run;
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if(b < 0){
+                throw new EOFException("frame stream ends in the middle of a frame");
+            }
+            return b;
+        }
+
+        private void readFully(byte[] data, int length) throws IOException {
+            readFully(data, 0, length);
+        }
+
+        private void readFully(byte[] data, int offset, int length) throws IOException {
+            while(length > 0){
+                int read = in.read(data, offset, length);
+                if(read < 0){
+                    throw new EOFException("frame stream ends in the middle of a frame");
+                }
+                offset += read;
+                length -= read;
+            }
+        }
+
+        public int getKeyframeInterval(){
+            return keyframeInterval;
+        }
+
+        public long getFrames(){
+            return frames;
+        }
+    }
+
+}
@@ -0,0 +1,721 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// differential fuzzing of the execution engines against CPU.executeOneInstruction:
+//   java -cp chip8.jar Fuzzer [options] [rom.ch8 ...]
+// every case is a random ROM (or a mutation of one of the given ROMs) with random quirks, random
+// seed and random key presses, which runs on the reference and on one engine at a time in lockstep
+// the state hashes are compared after every instruction (after every sequence of the fused engine),
+// the timers tick after every frame of instructions, and a divergence is shrunk to a small ROM
+// which still diverges: the ROM is cut short, instructions are replaced by 8000 (LD V0, V0,
+// which does nothing) or removed, the keys are left unpressed and the quirks are set back to their defaults
+// the engines are the fused instructions, a Machine which is forked before every instruction
+// and MachineArray, which stops comparing when its stack of 16 return addresses overflows
+// the cases are numbered, case n is always the same, so that a divergence can be replayed with --case
+public class Fuzzer {
+
+    public static final int DEFAULT_SECONDS = 60;
+    public static final int DEFAULT_INSTRUCTIONS = 2000;
+    // at most this many divergences are shrunk and reported
+    private static final int MAX_DIVERGENCES = 20;
+    private static final int NOP = 0x8000;
+
+    // the quirks of a case, a bit set means the opposite of the CPU's default
+    private static final int QUIRK_SHIFT = 1;
+    private static final int QUIRK_LOAD_STORE = 2;
+    private static final int QUIRK_JUMP_WITH_OFFSET = 4;
+    private static final int QUIRK_VF_RESET = 8;
+    private static final int QUIRK_CLIPPING = 16;
+    private static final int QUIRK_DISPLAY_WAIT = 32;
+    private static final String[] QUIRK_NAMES = {"shift", "load/store", "jump with offset", "vf reset", "clipping", "display wait"};
+
+    private static void printUsage(PrintStream out){
+        out.println("usage: java -cp chip8.jar Fuzzer [options] [rom.ch8 ...]");
+        out.println("  the ROMs are mutated in some of the cases, the others are random programs");
+        out.println("  --seconds N           duration, default " + DEFAULT_SECONDS);
+        out.println("  --cases N             stop after N cases");
+        out.println("  --seed N              number of the first case, default 0");
+        out.println("  --case N              run only case N, e.g. to replay a divergence");
+        out.println("  --instructions N      instructions per case, default " + DEFAULT_INSTRUCTIONS);
+        out.println("  --threads N           default the number of processors");
+        out.println("  --out DIR             write the shrunk ROMs of the divergences to DIR");
+    }
+
+    // an execution engine compared to the reference
+    interface engine {
+        String name();
+        void load(byte[] rom, CPU settings, long seed);
+        // executes the next instruction (or fused sequence) and returns the number of instructions
+        int step();
+        void tick(int keys);
+        long stateHash();
+        // null while the program runs
+        String fault();
+        // whether the engine stopped at one of its documented limits, e.g. the stack of MachineArray
+        boolean atLimit();
+        String describe();
+    }
+
+    // a Machine stepped with executeOneInstruction or executeFusedInstructions
+    static class MachineEngine implements engine {
+        final String name;
+        final boolean fuse;
+        // fork before every instruction and let the original run ahead, which must not change the fork
+        final boolean fork;
+        Machine machine = new Machine();
+        String fault;
+
+        MachineEngine(String name, boolean fuse, boolean fork){
+            this.name = name;
+            this.fuse = fuse;
+            this.fork = fork;
+        }
+
+        public String name(){
+            return name;
+        }
+
+        public void load(byte[] rom, CPU settings, long seed){
+            machine = new Machine();
+            machine.getCpu().copySettings(settings);
+            machine.getCpu().setFuseInstructions(fuse);
+            machine.loadRom(rom);
+            machine.getCpu().setRandomSeed(seed);
+            fault = null;
+        }
+
+        public int step(){
+            if(fork){
+                Machine forked = machine.fork();
+                try {
+                    machine.getCpu().executeOneInstruction();
+                } catch(RuntimeException e) {
+                    // the fork will fault as well
+                }
+                machine = forked;
+            }
+            try {
+                if(fuse){
+                    return machine.getCpu().executeFusedInstructions();
+                }
+                machine.getCpu().executeOneInstruction();
+            } catch(RuntimeException e) {
+                fault = e.toString();
+            }
+            return 1;
+        }
+
+        public void tick(int keys){
+            machine.getCpu().decrementTimers();
+            for(int key = 0; key < 16; key++){
+                machine.getKeypad().setKeyPressed(key, (keys >>> key & 1) != 0);
+            }
+        }
+
+        public long stateHash(){
+            return machine.stateHash();
+        }
+
+        public String fault(){
+            return fault;
+        }
+
+        public boolean atLimit(){
+            return false;
+        }
+
+        public String describe(){
+            CPU cpu = machine.getCpu();
+            int[] registers = new int[16];
+            for(int i = 0; i < 16; i++){
+                registers[i] = cpu.getRegister(i);
+            }
+            return describeState(cpu.getPc(), cpu.getIndex(), machine.getMemory().stack.size(),
+                    cpu.getDelayTimer(), cpu.getSoundTimer(), registers);
+        }
+
+        boolean waitingForDisplay(){
+            return machine.getCpu().getIdleState() == CPU.IDLE_DISPLAY_WAIT;
+        }
+    }
+
+    // machine 0 of a MachineArray, stepped with MachineArray.step
+    static class ArrayEngine implements engine {
+        MachineArray array;
+
+        public String name(){
+            return "array";
+        }
+
+        public void load(byte[] rom, CPU settings, long seed){
+            // a new one like the Machine, loadRom keeps what the last program wrote below 0x200
+            array = new MachineArray(1);
+            array.copySettings(settings);
+            array.loadRom(0, rom);
+            array.setRandomSeed(0, seed);
+        }
+
+        public int step(){
+            array.step(0);
+            return 1;
+        }
+
+        public void tick(int keys){
+            array.tick(0);
+            array.setKeys(0, keys);
+        }
+
+        public long stateHash(){
+            return array.stateHash(0);
+        }
+
+        public String fault(){
+            return array.getFault(0) == MachineArray.NO_FAULT ? null : "fault " + array.getFault(0);
+        }
+
+        public boolean atLimit(){
+            return array.getFault(0) == MachineArray.FAULT_STACK_OVERFLOW;
+        }
+
+        public String describe(){
+            int[] registers = new int[16];
+            for(int i = 0; i < 16; i++){
+                registers[i] = array.getRegister(0, i);
+            }
+            return describeState(array.getPc(0), array.getIndex(0), -1,
+                    array.getDelayTimer(0), array.getSoundTimer(0), registers);
+        }
+    }
+
+    private static String describeState(int pc, int index, int stackSize, int delayTimer, int soundTimer, int[] registers){
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("pc=%03x I=%03x DT=%d ST=%d", pc, index, delayTimer, soundTimer));
+        if(stackSize >= 0){
+            text.append(" stack=").append(stackSize);
+        }
+        for(int i = 0; i < 16; i++){
+            text.append(String.format(" V%X=%02x", i, registers[i]));
+        }
+        return text.toString();
+    }
+
+    // everything that makes up a case, so that it can be run again while shrinking
+    static class Case {
+        final long number;
+        byte[] rom;
+        int quirks;
+        long seed;
+        // the key presses are random from this seed, or there are none
+        long keySeed;
+        boolean keys;
+        int instructions;
+
+        Case(long number){
+            this.number = number;
+        }
+
+        Case copy(){
+            Case copy = new Case(number);
+            copy.rom = rom.clone();
+            copy.quirks = quirks;
+            copy.seed = seed;
+            copy.keySeed = keySeed;
+            copy.keys = keys;
+            copy.instructions = instructions;
+            return copy;
+        }
+    }
+
+    static class Divergence {
+        final Case fuzzCase;
+        final String engine;
+        final int instruction;
+        final String message;
+
+        Divergence(Case fuzzCase, String engine, int instruction, String message){
+            this.fuzzCase = fuzzCase;
+            this.engine = engine;
+            this.instruction = instruction;
+            this.message = message;
+        }
+    }
+
+    // the engines of one worker thread
+    static class Worker {
+        final MachineEngine reference = new MachineEngine("reference", false, false);
+        final engine[] engines = {
+                new MachineEngine("fused", true, false),
+                new MachineEngine("fork", false, true),
+                new ArrayEngine()
+        };
+        final CPU settings = new CPU(new Memory(), new FrameBuffer(), new Keypad());
+
+        // runs the case on the reference and the engine, returns the first divergence or null
+        Divergence run(Case fuzzCase, engine engine){
+            applyQuirks(settings, fuzzCase.quirks);
+            reference.load(fuzzCase.rom, settings, fuzzCase.seed);
+            engine.load(fuzzCase.rom, settings, fuzzCase.seed);
+            Random keyRandom = new Random(fuzzCase.keySeed);
+            int frameInstructions = 0;
+            int executed = 0;
+            while(executed < fuzzCase.instructions){
+                int count = engine.step();
+                for(int i = 0; i < count; i++){
+                    if(reference.fault() != null){
+                        return new Divergence(fuzzCase, engine.name(), executed + i,
+                                "the reference faulted in the middle of a sequence: " + reference.fault());
+                    }
+                    reference.step();
+                }
+                executed += count;
+                frameInstructions += count;
+
+                if(engine.atLimit()){
+                    return null;
+                }
+                if((reference.fault() == null) != (engine.fault() == null)){
+                    return new Divergence(fuzzCase, engine.name(), executed,
+                            "reference fault: " + reference.fault() + ", " + engine.name() + " fault: " + engine.fault());
+                }
+                if(reference.stateHash() != engine.stateHash()){
+                    return new Divergence(fuzzCase, engine.name(), executed,
+                            "different state\n  reference: " + reference.describe() + "\n  " + engine.name() + ": " + engine.describe());
+                }
+                if(reference.fault() != null){
+                    return null;
+                }
+
+                if(frameInstructions >= Machine.DEFAULT_INSTRUCTIONS_PER_FRAME | reference.waitingForDisplay()){
+                    int keys = 0;
+                    if(fuzzCase.keys && keyRandom.nextInt(4) == 0){
+                        // mostly a single key, sometimes several
+                        keys = keyRandom.nextBoolean() ? 1 << keyRandom.nextInt(16) : keyRandom.nextInt(1 << 16);
+                    }
+                    reference.tick(keys);
+                    engine.tick(keys);
+                    frameInstructions = 0;
+                }
+            }
+            return null;
+        }
+
+        Divergence run(Case fuzzCase){
+            for(engine engine : engines){
+                Divergence divergence = run(fuzzCase, engine);
+                if(divergence != null){
+                    return divergence;
+                }
+            }
+            return null;
+        }
+
+        // makes the case of a divergence as small as possible while the same engine still diverges
+        Divergence shrink(Divergence divergence){
+            engine engine = null;
+            for(engine e : engines){
+                if(e.name().equals(divergence.engine)){
+                    engine = e;
+                }
+            }
+            Case current = divergence.fuzzCase.copy();
+            current.instructions = divergence.instruction;
+            Divergence smallest = run(current, engine);
+            if(smallest == null){
+                // shouldn't happen, the cases are deterministic
+                return divergence;
+            }
+
+            boolean changed = true;
+            while(changed){
+                changed = false;
+
+                // the shortest prefix of the ROM
+                for(int length = 2; length < current.rom.length; length += 2){
+                    Case candidate = current.copy();
+                    candidate.rom = Arrays.copyOf(current.rom, length);
+                    Divergence result = run(candidate, engine);
+                    if(result != null){
+                        current = candidate;
+                        smallest = result;
+                        changed = true;
+                        break;
+                    }
+                }
+
+                // instructions replaced by a no-op
+                for(int address = 0; address + 1 < current.rom.length; address += 2){
+                    if(((current.rom[address] & 0xff) << 8 | current.rom[address + 1] & 0xff) == NOP){
+                        continue;
+                    }
+                    Case candidate = current.copy();
+                    candidate.rom[address] = (byte) (NOP >> 8);
+                    candidate.rom[address + 1] = (byte) NOP;
+                    Divergence result = run(candidate, engine);
+                    if(result != null){
+                        current = candidate;
+                        smallest = result;
+                        changed = true;
+                    }
+                }
+
+                // instructions removed, which moves the ones after it
+                for(int address = current.rom.length - 2; address >= 0 & current.rom.length > 2; address -= 2){
+                    Case candidate = current.copy();
+                    candidate.rom = new byte[current.rom.length - 2];
+                    System.arraycopy(current.rom, 0, candidate.rom, 0, address);
+                    System.arraycopy(current.rom, address + 2, candidate.rom, address, candidate.rom.length - address);
+                    Divergence result = run(candidate, engine);
+                    if(result != null){
+                        current = candidate;
+                        smallest = result;
+                        changed = true;
+                    }
+                }
+
+                // no key presses, default quirks
+                if(current.keys){
+                    Case candidate = current.copy();
+                    candidate.keys = false;
+                    Divergence result = run(candidate, engine);
+                    if(result != null){
+                        current = candidate;
+                        smallest = result;
+                        changed = true;
+                    }
+                }
+                for(int quirk = 1; quirk <= QUIRK_DISPLAY_WAIT; quirk <<= 1){
+                    if((current.quirks & quirk) != 0){
+                        Case candidate = current.copy();
+                        candidate.quirks &= ~quirk;
+                        Divergence result = run(candidate, engine);
+                        if(result != null){
+                            current = candidate;
+                            smallest = result;
+                            changed = true;
+                        }
+                    }
+                }
+
+                // only as many instructions as needed
+                current.instructions = smallest.instruction;
+            }
+            return smallest;
+        }
+    }
+
+    private static void applyQuirks(CPU cpu, int quirks){
+        CPU defaults = new CPU(null, null, null);
+        cpu.setOriginalShiftInstructions(defaults.getOriginalShiftInstructions() ^ (quirks & QUIRK_SHIFT) != 0);
+        cpu.setOriginalReadWriteMemoryInstructions(defaults.getOriginalReadWriteMemoryInstructions() ^ (quirks & QUIRK_LOAD_STORE) != 0);
+        cpu.setOriginalJumpWithOffsetInstructions(defaults.getOriginalJumpWithOffsetInstructions() ^ (quirks & QUIRK_JUMP_WITH_OFFSET) != 0);
+        cpu.setVfReset(defaults.getVfReset() ^ (quirks & QUIRK_VF_RESET) != 0);
+        cpu.setClipping(defaults.getClipping() ^ (quirks & QUIRK_CLIPPING) != 0);
+        cpu.setDisplayWait(defaults.getDisplayWait() ^ (quirks & QUIRK_DISPLAY_WAIT) != 0);
+    }
+
+    // case number n, a random program or a mutated ROM of the corpus
+    static Case generate(long number, List<byte[]> corpus, int instructions){
+        Random random = new Random(number * 0x9e3779b97f4a7c15L);
+        Case fuzzCase = new Case(number);
+        fuzzCase.quirks = random.nextInt(64);
+        fuzzCase.seed = random.nextLong();
+        fuzzCase.keySeed = random.nextLong();
+        fuzzCase.keys = random.nextInt(4) != 0;
+        fuzzCase.instructions = instructions;
+        if(!corpus.isEmpty() && random.nextBoolean()){
+            fuzzCase.rom = mutate(corpus.get(random.nextInt(corpus.size())), random);
+        } else {
+            fuzzCase.rom = randomProgram(random);
+        }
+        return fuzzCase;
+    }
+
+    private static byte[] randomProgram(Random random){
+        int length = 4 + random.nextInt(125);
+        byte[] rom = new byte[2 * length];
+        for(int i = 0; i < length; i++){
+            int instruction = randomInstruction(random, length);
+            rom[2 * i] = (byte) (instruction >> 8);
+            rom[2 * i + 1] = (byte) instruction;
+        }
+        return rom;
+    }
+
+    private static byte[] mutate(byte[] original, Random random){
+        byte[] rom = original.length < 2 ? new byte[2] : original.clone();
+        int length = rom.length / 2;
+        int mutations = 1 + random.nextInt(8);
+        for(int i = 0; i < mutations; i++){
+            int at = random.nextInt(rom.length);
+            switch(random.nextInt(3)){
+                case 0:
+                    rom[at] ^= (byte) (1 << random.nextInt(8));
+                    break;
+                case 1:
+                    rom[at] = (byte) random.nextInt(256);
+                    break;
+                default:
+                    int instruction = randomInstruction(random, length);
+                    at &= ~1;
+                    if(at + 1 < rom.length){
+                        rom[at] = (byte) (instruction >> 8);
+                        rom[at + 1] = (byte) instruction;
+                    }
+            }
+        }
+        return rom;
+    }
+
+    // an instruction of a program of length instructions, the jumps and calls stay inside of it,
+    // the instructions with edge cases (carry and borrow into VF, I overflowing) come up more often
+    private static int randomInstruction(Random random, int length){
+        int x = randomRegister(random);
+        int y = randomRegister(random);
+        int nn = random.nextInt(8) == 0 ? 0xff - random.nextInt(2) : random.nextInt(256);
+        int target = 0x200 + 2 * random.nextInt(length);
+        switch(random.nextInt(24)){
+            case 0:
+                return random.nextInt(4) == 0 ? 0x00e0 : 0x00ee;
+            case 1:
+                return 0x1000 | target;
+            case 2:
+                return 0x2000 | target;
+            case 3:
+                return 0x3000 | x << 8 | nn;
+            case 4:
+                return 0x4000 | x << 8 | nn;
+            case 5:
+                return (random.nextBoolean() ? 0x5000 : 0x9000) | x << 8 | y << 4;
+            case 6:
+                return 0x6000 | x << 8 | nn;
+            case 7:
+                return 0x7000 | x << 8 | nn;
+            case 8:
+            case 9:
+            case 10:
+            case 11:
+                // with extra weight on the arithmetic and shift instructions
+                int[] operations = {0, 1, 2, 3, 4, 4, 5, 5, 5, 6, 6, 7, 7, 7, 0xe, 0xe};
+                return 0x8000 | x << 8 | y << 4 | operations[random.nextInt(operations.length)];
+            case 12:
+                // the font, the program or the end of the memory, where I + Vx overflows
+                int[] addresses = {0x050 + 5 * random.nextInt(16), target, 0xff0 + random.nextInt(16), random.nextInt(0x1000)};
+                return 0xa000 | addresses[random.nextInt(addresses.length)];
+            case 13:
+                return 0xb000 | target;
+            case 14:
+                return 0xc000 | x << 8 | nn;
+            case 15:
+            case 16:
+                return 0xd000 | x << 8 | y << 4 | random.nextInt(16);
+            case 17:
+                return 0xe000 | x << 8 | (random.nextBoolean() ? 0x9e : 0xa1);
+            case 18:
+            case 19:
+                return 0xf000 | x << 8 | 0x1e;
+            case 20:
+                int[] timerLow = {0x07, 0x15, 0x18, 0x0a};
+                return 0xf000 | x << 8 | timerLow[random.nextInt(timerLow.length)];
+            case 21:
+                int[] memoryLow = {0x29, 0x33, 0x55, 0x65};
+                return 0xf000 | x << 8 | memoryLow[random.nextInt(memoryLow.length)];
+            default:
+                // anything, including illegal instructions
+                return random.nextInt(0x10000);
+        }
+    }
+
+    // VF is both an operand and the flag, so it comes up more often
+    private static int randomRegister(Random random){
+        return random.nextInt(4) == 0 ? 0xf : random.nextInt(16);
+    }
+
+    // the loop of every fuzzing thread, it takes the next case number until the time is up
+    static class FuzzRun implements Runnable {
+        final List<byte[]> corpus;
+        final long lastCase;
+        final long end;
+        final int instructions;
+        final File out;
+        final AtomicLong nextCase;
+        final AtomicLong casesRun = new AtomicLong();
+        final ConcurrentLinkedQueue<Divergence> divergences = new ConcurrentLinkedQueue<>();
+
+        FuzzRun(List<byte[]> corpus, long firstCase, long lastCase, long end, int instructions, File out){
+            this.corpus = corpus;
+            this.lastCase = lastCase;
+            this.end = end;
+            this.instructions = instructions;
+            this.out = out;
+            nextCase = new AtomicLong(firstCase);
+        }
+
+        public void run(){
+            Worker worker = new Worker();
+            long number;
+            while(System.nanoTime() < end && divergences.size() < MAX_DIVERGENCES
+                    && (number = nextCase.getAndIncrement()) < lastCase){
+                Divergence divergence = worker.run(generate(number, corpus, instructions));
+                casesRun.incrementAndGet();
+                if(divergence != null){
+                    divergences.add(divergence);
+                    Divergence shrunk = worker.shrink(divergence);
+                    synchronized(this){
+                        report(divergence, shrunk, out);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void report(Divergence divergence, Divergence shrunk, File out){
+        Case fuzzCase = shrunk.fuzzCase;
+        StringBuilder text = new StringBuilder();
+        text.append("divergence of ").append(shrunk.engine).append(" in case ").append(fuzzCase.number)
+                .append(" after ").append(divergence.instruction).append(" instructions, shrunk to ")
+                .append(fuzzCase.rom.length / 2).append(" instructions, diverging after ")
+                .append(shrunk.instruction).append(":\n");
+        text.append("  ").append(shrunk.message).append("\n");
+        text.append("  quirks:");
+        if(fuzzCase.quirks == 0){
+            text.append(" defaults");
+        }
+        for(int i = 0; i < QUIRK_NAMES.length; i++){
+            if((fuzzCase.quirks & 1 << i) != 0){
+                text.append(" ").append(QUIRK_NAMES[i]);
+            }
+        }
+        text.append(fuzzCase.keys ? ", random keys" : ", no keys").append("\n");
+        CPU cpu = new CPU(null, null, null);
+        for(int address = 0; address + 1 < fuzzCase.rom.length; address += 2){
+            int[] instruction = {fuzzCase.rom[address] & 0xff, fuzzCase.rom[address + 1] & 0xff};
+            // runs of no-ops in one line
+            int nops = 0;
+            while(address + 2 * nops + 1 < fuzzCase.rom.length
+                    && ((fuzzCase.rom[address + 2 * nops] & 0xff) << 8 | fuzzCase.rom[address + 2 * nops + 1] & 0xff) == NOP){
+                nops++;
+            }
+            if(nops > 2){
+                text.append(String.format("  %03x  %04x  LD V0, V0 (%d times, to %03x)%n", 0x200 + address, NOP, nops,
+                        0x200 + address + 2 * nops - 2));
+                address += 2 * nops - 2;
+                continue;
+            }
+            text.append(String.format("  %03x  %02x%02x  %s%n", 0x200 + address, instruction[0], instruction[1],
+                    cpu.getMnemonicFromInstruction(instruction)));
+        }
+        if(out != null){
+            File file = new File(out, "divergence-" + fuzzCase.number + ".ch8");
+            try {
+                Files.write(file.toPath(), fuzzCase.rom);
+                text.append("  written to ").append(file).append("\n");
+            } catch(IOException e) {
+                text.append("  could not write ").append(file).append(": ").append(e.getMessage()).append("\n");
+            }
+        }
+        System.out.print(text);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = DEFAULT_SECONDS;
+        long maxCases = Long.MAX_VALUE;
+        long firstCase = 0;
+        int instructions = DEFAULT_INSTRUCTIONS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File out = null;
+        List<byte[]> corpus = new ArrayList<>();
+        try {
+            for(int i = 0; i < args.length; i++){
+                String arg = args[i];
+                if(!arg.startsWith("--")){
+                    corpus.add(Files.readAllBytes(new File(arg).toPath()));
+                    continue;
+                }
+                if(arg.equals("--help")){
+                    printUsage(System.out);
+                    return;
+                }
+                if(i + 1 >= args.length){
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch(arg){
+                    case "--seconds":
+                        seconds = Integer.parseInt(value);
+                        break;
+                    case "--cases":
+                        maxCases = Long.parseLong(value);
+                        break;
+                    case "--seed":
+                        firstCase = Long.parseLong(value);
+                        break;
+                    case "--case":
+                        firstCase = Long.parseLong(value);
+                        maxCases = 1;
+                        break;
+                    case "--instructions":
+                        instructions = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--out":
+                        out = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(2);
+            return;
+        }
+        if(out != null){
+            out.mkdirs();
+        }
+
+        long start = System.nanoTime();
+        long lastCase = maxCases == Long.MAX_VALUE ? Long.MAX_VALUE : firstCase + maxCases;
+        FuzzRun run = new FuzzRun(corpus, firstCase, lastCase, start + seconds * 1_000_000_000L, instructions, out);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for(int t = 0; t < threads; t++){
+            pool.execute(run);
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d cases of up to %d instructions on %d engines in %.1f s on %d threads, %d divergences%n",
+                run.casesRun.get(), instructions, new Worker().engines.length, elapsed, threads, run.divergences.size());
+        System.exit(run.divergences.isEmpty() ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,409 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+// runs a corpus of ROMs headlessly and compares their screens at chosen frames with known good ones
+//   java -cp chip8.jar GoldenRunner [options] corpus-directory|rom.ch8 ...
+// next to every game.ch8 there is a game.golden and optionally game.input (see InputScript),
+// the golden file has one setting or frame per line:
+//   quirk NAME=on|off       like --quirk of the headless runner
+//   ipf N                   instructions per frame
+//   seed N                  seed of the random number generator, default 0
+//   fuse                    fuse instruction sequences
+//   frame N HASH ROWS       the screen after N frames: FrameBuffer.hash and the 32 rows, 16 hex digits each
+// on a mismatch the expected and actual screen are written as PNG to the diff directory, with
+// pixels that are missing in red and extra pixels in green
+// the ROMs run concurrently on a work-stealing pool, the long ones don't hold up the others
+public class GoldenRunner {
+
+    public static final String DEFAULT_FRAMES = "60,300,600";
+    public static final String DEFAULT_DIFF_DIRECTORY = "golden-diffs";
+    private static final int DIFF_SCALE = 8;
+    // background, set in both, only in the golden frame (missing), only in the actual frame (extra)
+    private static final int[] DIFF_PALETTE = {FrameImages.BACKGROUND_COLOR, FrameImages.PIXEL_COLOR, 0xd04040, 0x40d040};
+
+    private static void printUsage(PrintStream out){
+        out.println("usage: java -cp chip8.jar GoldenRunner [options] corpus-directory|rom.ch8 ...");
+        out.println("  --update              write the golden files from this run, for new ROMs or accepted changes");
+        out.println("  --frames N,N,...      frames of new golden files, default " + DEFAULT_FRAMES);
+        out.println("  --diffs DIR           directory of the diff images, default " + DEFAULT_DIFF_DIRECTORY);
+        out.println("  --threads N           default the number of processors");
+        out.println("  --fuse                fuse instruction sequences in every ROM");
+    }
+
+    // the settings and frames of a golden file
+    static class Golden {
+        final List<String> settings = new ArrayList<>();
+        final List<Long> frames = new ArrayList<>();
+        final List<Long> hashes = new ArrayList<>();
+        // null where the file only has the hash
+        final List<long[]> rows = new ArrayList<>();
+
+        static Golden load(File file) throws IOException {
+            Golden golden = new Golden();
+            int lineNumber = 0;
+            for(String line : Files.readAllLines(file.toPath())){
+                lineNumber++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if(!parts[0].equals("frame")){
+                    golden.settings.add(line);
+                    continue;
+                }
+                if(parts.length < 3){
+                    throw new IllegalArgumentException(file.getName() + ":" + lineNumber + ": expected \"frame N HASH [ROWS]\"");
+                }
+                golden.frames.add(Long.parseLong(parts[1]));
+                golden.hashes.add(Long.parseUnsignedLong(parts[2], 16));
+                golden.rows.add(parts.length > 3 ? parseRows(parts[3]) : null);
+            }
+            return golden;
+        }
+
+        void write(File file) throws IOException {
+            StringBuilder text = new StringBuilder("# golden frames, see GoldenRunner\n");
+            for(String setting : settings){
+                text.append(setting).append('\n');
+            }
+            for(int i = 0; i < frames.size(); i++){
+                text.append("frame ").append(frames.get(i)).append(' ').append(String.format("%016x", hashes.get(i)));
+                if(rows.get(i) != null){
+                    text.append(' ');
+                    for(long row : rows.get(i)){
+                        text.append(String.format("%016x", row));
+                    }
+                }
+                text.append('\n');
+            }
+            Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        // applies the settings to a machine and returns the seed
+        long configure(Machine machine, String name){
+            long seed = 0;
+            for(String setting : settings){
+                String[] parts = setting.split("\\s+");
+                switch(parts[0]){
+                    case "quirk":
+                        HeadlessRunner.setQuirk(machine.getCpu(), parts[1]);
+                        break;
+                    case "ipf":
+                        machine.setInstructionsPerFrame(Integer.parseInt(parts[1]));
+                        break;
+                    case "seed":
+                        seed = Long.parseLong(parts[1]);
+                        break;
+                    case "fuse":
+                        machine.getCpu().setFuseInstructions(true);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(name + ": unknown setting " + setting);
+                }
+            }
+            return seed;
+        }
+    }
+
+    private static long[] parseRows(String hex){
+        if(hex.length() != 16 * FrameBuffer.HEIGHT){
+            throw new IllegalArgumentException("expected " + FrameBuffer.HEIGHT + " rows of 16 hex digits");
+        }
+        long[] rows = new long[FrameBuffer.HEIGHT];
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            rows[y] = Long.parseUnsignedLong(hex.substring(16 * y, 16 * y + 16), 16);
+        }
+        return rows;
+    }
+
+    // one ROM of the corpus, run as a task of the pool
+    class RomTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final File rom;
+        // the outcome, one line for the report
+        boolean passed;
+        boolean missing;
+        String message;
+
+        RomTask(File rom){
+            this.rom = rom;
+        }
+
+        protected void compute(){
+            try {
+                run();
+            } catch(IOException | RuntimeException e) {
+                passed = false;
+                message = "error: " + e;
+            }
+        }
+
+        private void run() throws IOException {
+            File goldenFile = sibling(rom, ".golden");
+            File inputFile = sibling(rom, ".input");
+            Golden golden;
+            if(goldenFile.exists()){
+                golden = Golden.load(goldenFile);
+            } else if(update){
+                golden = new Golden();
+            } else {
+                missing = true;
+                message = "no golden file";
+                return;
+            }
+
+            if(update && golden.frames.isEmpty()){
+                golden.frames.addAll(newFrames);
+            }
+
+            Machine machine = new Machine();
+            long seed = golden.configure(machine, goldenFile.getName());
+            if(fuse){
+                machine.getCpu().setFuseInstructions(true);
+            }
+            InputScript input = inputFile.exists() ? InputScript.load(inputFile) : new InputScript();
+            machine.loadRom(Files.readAllBytes(rom.toPath()));
+            machine.getCpu().setRandomSeed(seed);
+
+            List<Long> frames = new ArrayList<>(golden.frames);
+            Collections.sort(frames);
+            long lastFrame = frames.isEmpty() ? 0 : frames.get(frames.size() - 1);
+            List<Long> hashes = new ArrayList<>();
+            List<long[]> rows = new ArrayList<>();
+            int next = 0;
+            List<String> mismatches = new ArrayList<>();
+            while(next < frames.size()){
+                while(next < frames.size() && frames.get(next) == machine.getFrames()){
+                    long[] actual = new long[FrameBuffer.HEIGHT];
+                    machine.getFrameBuffer().copyRowsTo(actual, 0);
+                    long hash = machine.getFrameBuffer().hash();
+                    hashes.add(hash);
+                    rows.add(actual);
+                    int i = golden.frames.indexOf(frames.get(next));
+                    if(!update && hash != golden.hashes.get(i)){
+                        mismatches.add("frame " + frames.get(next));
+                        writeDiff(frames.get(next), golden.rows.get(i), actual);
+                    }
+                    next++;
+                }
+                if(machine.getFrames() >= lastFrame){
+                    break;
+                }
+                input.apply(machine.getFrames(), machine.getKeypad());
+                if(machine.runFrame(CPU.STOP_FAULT) == CPU.STOP_FAULT){
+                    passed = false;
+                    message = "fault in frame " + machine.getFrames() + ": " + machine.getCpu().getFault().getMessage();
+                    return;
+                }
+            }
+
+            if(update){
+                Golden updated = new Golden();
+                updated.settings.addAll(golden.settings);
+                updated.frames.addAll(frames);
+                updated.hashes.addAll(hashes);
+                updated.rows.addAll(rows);
+                updated.write(goldenFile);
+                passed = true;
+                message = "written " + goldenFile.getName();
+                return;
+            }
+            passed = mismatches.isEmpty();
+            message = passed ? "ok" : "mismatch at " + String.join(", ", mismatches);
+        }
+
+        private void writeDiff(long frame, long[] expected, long[] actual) throws IOException {
+            diffDirectory.mkdirs();
+            String name = rom.getName().replaceFirst("\\.[^.]*$", "") + "-" + frame;
+            if(expected != null){
+                writeImage(new File(diffDirectory, name + "-expected.png"), expected, expected);
+                writeImage(new File(diffDirectory, name + "-diff.png"), expected, actual);
+            }
+            writeImage(new File(diffDirectory, name + "-actual.png"), actual, actual);
+        }
+    }
+
+    // expected == actual gives the plain screen
+    private static void writeImage(File file, long[] expected, long[] actual) throws IOException {
+        byte[] pixels = new byte[FrameBuffer.WIDTH * FrameBuffer.HEIGHT];
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            for(int x = 0; x < FrameBuffer.WIDTH; x++){
+                boolean wanted = (expected[y] << x) < 0;
+                boolean got = (actual[y] << x) < 0;
+                pixels[y * FrameBuffer.WIDTH + x] = (byte) (wanted & got ? 1 : wanted ? 2 : got ? 3 : 0);
+            }
+        }
+        try(OutputStream out = new FileOutputStream(file)){
+            FrameImages.writePng(pixels, FrameBuffer.WIDTH, FrameBuffer.HEIGHT, DIFF_PALETTE, DIFF_SCALE, out);
+        }
+    }
+
+    private static File sibling(File rom, String extension){
+        return new File(rom.getParentFile(), rom.getName().replaceFirst("\\.[^.]*$", "") + extension);
+    }
+
+    private final boolean update;
+    private final List<Long> newFrames;
+    private final File diffDirectory;
+    private final boolean fuse;
+
+    // constructor
+    public GoldenRunner(boolean update, List<Long> newFrames, File diffDirectory, boolean fuse){
+        this.update = update;
+        this.newFrames = newFrames;
+        this.diffDirectory = diffDirectory;
+        this.fuse = fuse;
+    }
+
+    // runs all ROMs on the pool and prints one line for every ROM that didn't pass,
+    // returns the number of failed ROMs
+    public int run(List<File> roms, ForkJoinPool pool){
+        List<RomTask> tasks = new ArrayList<>();
+        for(File rom : roms){
+            tasks.add(new RomTask(rom));
+        }
+        long start = System.nanoTime();
+        pool.invoke(new RecursiveAction(){
+            protected void compute(){
+                invokeAll(tasks);
+            }
+        });
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int passed = 0;
+        int failed = 0;
+        int missing = 0;
+        for(RomTask task : tasks){
+            if(task.missing){
+                missing++;
+            } else if(task.passed){
+                passed++;
+            } else {
+                failed++;
+            }
+            if(!task.passed | update){
+                System.out.println(task.rom.getPath() + ": " + task.message);
+            }
+        }
+        System.out.printf("%d ROMs in %.2f s on %d threads: %d passed, %d failed, %d without golden file%n",
+                roms.size(), elapsed, pool.getParallelism(), passed, failed, missing);
+        return failed;
+    }
+
+    private static List<File> findRoms(List<String> paths) throws IOException {
+        List<File> roms = new ArrayList<>();
+        for(String path : paths){
+            File file = new File(path);
+            if(!file.isDirectory()){
+                roms.add(file);
+                continue;
+            }
+            try(Stream<Path> walk = Files.walk(file.toPath())){
+                Iterator<Path> files = walk.sorted().iterator();
+                while(files.hasNext()){
+                    Path rom = files.next();
+                    if(rom.toString().toLowerCase().endsWith(".ch8")){
+                        roms.add(rom.toFile());
+                    }
+                }
+            }
+        }
+        return roms;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean update = false;
+        boolean fuse = false;
+        String frames = DEFAULT_FRAMES;
+        File diffDirectory = new File(DEFAULT_DIFF_DIRECTORY);
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<>();
+        List<Long> newFrames = new ArrayList<>();
+        try {
+            for(int i = 0; i < args.length; i++){
+                String arg = args[i];
+                if(!arg.startsWith("--")){
+                    paths.add(arg);
+                    continue;
+                }
+                if(arg.equals("--help")){
+                    printUsage(System.out);
+                    return;
+                }
+                if(arg.equals("--update")){
+                    update = true;
+                    continue;
+                }
+                if(arg.equals("--fuse")){
+                    fuse = true;
+                    continue;
+                }
+                if(i + 1 >= args.length){
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch(arg){
+                    case "--frames":
+                        frames = value;
+                        break;
+                    case "--diffs":
+                        diffDirectory = new File(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+            for(String frame : frames.split(",")){
+                newFrames.add(Long.parseLong(frame.trim()));
+            }
+            if(paths.isEmpty()){
+                throw new IllegalArgumentException("no corpus given");
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        List<File> roms = findRoms(paths);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        int failed = new GoldenRunner(update, newFrames, diffDirectory, fuse).run(roms, pool);
+        pool.shutdown();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// runs a program without any window, for CI and batch jobs
+//   java -jar chip8.jar --headless [options] rom.ch8
+// nothing in here (or in the classes it uses) touches AWT or Swing
+public class HeadlessRunner {
+
+    public static final int DEFAULT_FRAMES = 600;
+
+    private static void printUsage(PrintStream out){
+        out.println("usage: java -jar chip8.jar --headless [options] rom.ch8");
+        out.println("  --frames N            run N frames (timer cycles), default " + DEFAULT_FRAMES);
+        out.println("  --instructions N      run N instructions instead");
+        out.println("  --ipf N               instructions per frame, default " + Machine.DEFAULT_INSTRUCTIONS_PER_FRAME);
+        out.println("  --quirk NAME=on|off   shift, loadstore, jump, vfreset, clipping, displaywait");
+        out.println("  --fuse                fuse common instruction sequences");
+        out.println("  --strict              strict memory checks");
+        out.println("  --seed N              seed of the random number generator, default 0");
+        out.println("  --input FILE          scripted input, lines of \"<frame> <key> down|up\"");
+        out.println("  --pbm FILE            write the final screen as PBM");
+        out.println("  --png FILE            write the final screen as PNG");
+        out.println("  --scale N             scale of the PNG, default 1");
+        out.println("  --stats FILE          write statistics and the state hash as JSON, default stdout");
+    }
+
+    public static void main(String[] args) throws IOException {
+        long frames = DEFAULT_FRAMES;
+        long maxInstructions = -1;
+        int scale = 1;
+        long seed = 0;
+        String romPath = null;
+        String inputPath = null;
+        String pbmPath = null;
+        String pngPath = null;
+        String statsPath = null;
+
+        Machine machine = new Machine();
+        CPU cpu = machine.getCpu();
+
+        try {
+            for(int i = 0; i < args.length; i++){
+                String arg = args[i];
+                if(!arg.startsWith("--")){
+                    romPath = arg;
+                    continue;
+                }
+                if(arg.equals("--fuse")){
+                    cpu.setFuseInstructions(true);
+                    continue;
+                }
+                if(arg.equals("--strict")){
+                    machine.getMemory().setStrictAddressing(true);
+                    continue;
+                }
+                if(arg.equals("--help")){
+                    printUsage(System.out);
+                    return;
+                }
+                if(i + 1 >= args.length){
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch(arg){
+                    case "--frames":
+                        frames = Long.parseLong(value);
+                        break;
+                    case "--instructions":
+                        maxInstructions = Long.parseLong(value);
+                        frames = Long.MAX_VALUE;
+                        break;
+                    case "--ipf":
+                        machine.setInstructionsPerFrame(Integer.parseInt(value));
+                        break;
+                    case "--quirk":
+                        setQuirk(cpu, value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--input":
+                        inputPath = value;
+                        break;
+                    case "--pbm":
+                        pbmPath = value;
+                        break;
+                    case "--png":
+                        pngPath = value;
+                        break;
+                    case "--scale":
+                        scale = Integer.parseInt(value);
+                        break;
+                    case "--stats":
+                        statsPath = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+            if(romPath == null){
+                throw new IllegalArgumentException("no ROM given");
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        InputScript input = inputPath == null ? new InputScript() : InputScript.load(new File(inputPath));
+        machine.loadRom(new File(romPath));
+        cpu.setRandomSeed(seed);
+
+        RuntimeException fault = null;
+        long start = System.nanoTime();
+        while(machine.getFrames() < frames){
+            long instructionsThisFrame = machine.getInstructionsPerFrame();
+            if(maxInstructions >= 0){
+                instructionsThisFrame = Math.min(instructionsThisFrame, maxInstructions - machine.getInstructions());
+                if(instructionsThisFrame <= 0){
+                    break;
+                }
+            }
+            input.apply(machine.getFrames(), machine.getKeypad());
+            if(machine.runFrame((int) instructionsThisFrame, CPU.STOP_FAULT) == CPU.STOP_FAULT){
+                fault = cpu.getFault();
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if(pbmPath != null){
+            try(OutputStream out = new FileOutputStream(pbmPath)){
+                FrameImages.writePbm(machine.getFrameBuffer(), out);
+            }
+        }
+        if(pngPath != null){
+            try(OutputStream out = new FileOutputStream(pngPath)){
+                FrameImages.writePng(machine.getFrameBuffer(), scale, out);
+            }
+        }
+
+        String stats = "{\n" +
+                "  \"rom\": " + jsonString(romPath) + ",\n" +
+                "  \"frames\": " + machine.getFrames() + ",\n" +
+                "  \"instructions\": " + machine.getInstructions() + ",\n" +
+                "  \"elapsedMs\": " + String.format("%.3f", elapsed / 1e6) + ",\n" +
+                "  \"instructionsPerSecond\": " + (elapsed == 0 ? 0 : (long) (machine.getInstructions() * 1e9 / elapsed)) + ",\n" +
+                "  \"stateHash\": \"" + String.format("%016x", machine.stateHash()) + "\",\n" +
+                "  \"fault\": " + (fault == null ? "null" : jsonString(fault.getMessage())) + "\n" +
+                "}\n";
+        if(statsPath == null){
+            System.out.print(stats);
+        } else {
+            try(PrintStream out = new PrintStream(new FileOutputStream(statsPath), false, "UTF-8")){
+                out.print(stats);
+            }
+        }
+
+        if(fault != null){
+            System.exit(1);
+        }
+    }
+
+    // mirrors the CPU menu
+    static void setQuirk(CPU cpu, String setting){
+        String[] parts = setting.split("=");
+        if(parts.length != 2 || !(parts[1].equals("on") || parts[1].equals("off"))){
+            throw new IllegalArgumentException("expected --quirk NAME=on|off, got " + setting);
+        }
+        boolean on = parts[1].equals("on");
+        switch(parts[0]){
+            case "shift":
+                cpu.setOriginalShiftInstructions(on);
+                break;
+            case "loadstore":
+                cpu.setOriginalReadWriteMemoryInstructions(on);
+                break;
+            case "jump":
+                cpu.setOriginalJumpWithOffsetInstructions(on);
+                break;
+            case "vfreset":
+                cpu.setVfReset(on);
+                break;
+            case "clipping":
+                cpu.setClipping(on);
+                break;
+            case "displaywait":
+                cpu.setDisplayWait(on);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown quirk " + parts[0]);
+        }
+    }
+
+    static String jsonString(String s){
+        if(s == null){
+            return "null";
+        }
+        StringBuilder json = new StringBuilder("\"");
+        for(char c : s.toCharArray()){
+            if(c == '"' || c == '\\'){
+                json.append('\\').append(c);
+            } else if(c < 0x20){
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// measures the time from a key press to the screen in stages:
+//   key to read    from the press (the time of its KeyEventQueue event) until the first SKP, SKNP
+//                  or LD Vx, K which reads the key
+//   read to draw   until the first DRW or CLS after that
+//   draw to paint  until the frame with the drawing is painted by the Display
+//   key to paint   all of it
+// a press which is never read (or read again while an earlier one is still on its way to the screen)
+// only counts for the stages it reaches
+// the CPU calls keyRead and screenChanged, the Display framePresented on the emulation thread and
+// framePainted on the event dispatch thread; every press which reaches the screen is also a JFR event
+public class InputLatency {
+
+    private final LatencyHistogram keyToRead = new LatencyHistogram("Key to read");
+    private final LatencyHistogram readToDraw = new LatencyHistogram("Read to draw");
+    private final LatencyHistogram drawToPaint = new LatencyHistogram("Draw to paint");
+    private final LatencyHistogram keyToPaint = new LatencyHistogram("Key to paint");
+
+    // the emulation thread only
+    // the time of the last press of every key which was read
+    private final long[] readPresses = new long[16];
+    private long readPressTime;
+    private long readTime;
+    private boolean awaitingDraw = false;
+    private long drawnPressTime;
+    private long drawnReadTime;
+    private long drawTime;
+    private boolean awaitingPresent = false;
+
+    // handed over to the event dispatch thread, guarded by this
+    private long presentedPressTime;
+    private long presentedReadTime;
+    private long presentedDrawTime;
+    private volatile boolean awaitingPaint = false;
+
+    // methods
+
+    // a key instruction read the key
+    public void keyRead(Keypad keypad, int key){
+        long pressTime = keypad.getPressTime(key);
+        if(pressTime == 0 | pressTime == readPresses[key] | !keypad.keysPressed[key]){
+            return;
+        }
+        readPresses[key] = pressTime;
+        long now = System.nanoTime();
+        keyToRead.record(now - pressTime);
+        if(!awaitingDraw){
+            readPressTime = pressTime;
+            readTime = now;
+            awaitingDraw = true;
+        }
+    }
+
+    // DRW or CLS
+    public void screenChanged(){
+        if(!awaitingDraw){
+            return;
+        }
+        long now = System.nanoTime();
+        readToDraw.record(now - readTime);
+        awaitingDraw = false;
+        if(!awaitingPresent){
+            drawnPressTime = readPressTime;
+            drawnReadTime = readTime;
+            drawTime = now;
+            awaitingPresent = true;
+        }
+    }
+
+    // the Display took the frame over for painting
+    public void framePresented(){
+        if(!awaitingPresent){
+            return;
+        }
+        awaitingPresent = false;
+        synchronized(this) {
+            if(!awaitingPaint){
+                presentedPressTime = drawnPressTime;
+                presentedReadTime = drawnReadTime;
+                presentedDrawTime = drawTime;
+                awaitingPaint = true;
+            }
+        }
+    }
+
+    // checked by the Display before it takes the frame to paint, so that a frame presented
+    // after that isn't mistaken for the painted one
+    public boolean isAwaitingPaint(){
+        return awaitingPaint;
+    }
+
+    // the frame taken after isAwaitingPaint returned true is painted
+    public void framePainted(){
+        long now = System.nanoTime();
+        Chip8Events.InputLatency event = new Chip8Events.InputLatency();
+        synchronized(this) {
+            if(!awaitingPaint){
+                return;
+            }
+            drawToPaint.record(now - presentedDrawTime);
+            keyToPaint.record(now - presentedPressTime);
+            awaitingPaint = false;
+            if(event.shouldCommit()){
+                event.keyToRead = presentedReadTime - presentedPressTime;
+                event.readToDraw = presentedDrawTime - presentedReadTime;
+                event.drawToPaint = now - presentedDrawTime;
+                event.commit();
+            }
+        }
+    }
+
+    public void reset(){
+        keyToRead.reset();
+        readToDraw.reset();
+        drawToPaint.reset();
+        keyToPaint.reset();
+    }
+
+    // the rows of the html table of the debug windows
+    public String tableRows(){
+        return keyToRead.tableRow() + readToDraw.tableRow() + drawToPaint.tableRow() + keyToPaint.tableRow();
+    }
+
+    public LatencyHistogram getKeyToRead(){
+        return keyToRead;
+    }
+
+    public LatencyHistogram getReadToDraw(){
+        return readToDraw;
+    }
+
+    public LatencyHistogram getDrawToPaint(){
+        return drawToPaint;
+    }
+
+    public LatencyHistogram getKeyToPaint(){
+        return keyToPaint;
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// scripted input for headless runs, one key event per line:
+//   <frame> <key> down|up
+// e.g. "120 5 down" presses key 5 before frame 120 is run
+// the key is a hexadecimal digit, empty lines and lines starting with # are ignored
+public class InputScript {
+
+    private final long[] frames;
+    private final int[] keys;
+    private final boolean[] presses;
+
+    // the next event to apply
+    private int next = 0;
+
+    // constructors
+    public InputScript(){
+        this(new long[0], new int[0], new boolean[0]);
+    }
+
+    private InputScript(long[] frames, int[] keys, boolean[] presses){
+        this.frames = frames;
+        this.keys = keys;
+        this.presses = presses;
+    }
+
+    // methods
+
+    public static InputScript load(File file) throws IOException {
+        return parse(Files.readAllLines(file.toPath()), file.getName());
+    }
+
+    public static InputScript parse(List<String> lines, String name){
+        List<long[]> events = new ArrayList<>();
+        int lineNumber = 0;
+        for(String line : lines){
+            lineNumber++;
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if(parts.length != 3 || !(parts[2].equals("down") || parts[2].equals("up"))){
+                throw new IllegalArgumentException(name + ":" + lineNumber + ": expected \"<frame> <key> down|up\"");
+            }
+            int key = Integer.parseInt(parts[1], 16);
+            if(key < 0 || key > 15){
+                throw new IllegalArgumentException(name + ":" + lineNumber + ": there is no key " + parts[1]);
+            }
+            events.add(new long[]{Long.parseLong(parts[0]), key, parts[2].equals("down") ? 1 : 0});
+        }
+        // events of the same frame stay in the order of the file
+        events.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        long[] frames = new long[events.size()];
+        int[] keys = new int[events.size()];
+        boolean[] presses = new boolean[events.size()];
+        for(int i = 0; i < events.size(); i++){
+            frames[i] = events.get(i)[0];
+            keys[i] = (int) events.get(i)[1];
+            presses[i] = events.get(i)[2] == 1;
+        }
+        return new InputScript(frames, keys, presses);
+    }
+
+    // applies all events up to and including the given frame
+    public void apply(long frame, Keypad keypad){
+        while(next < frames.length && frames[next] <= frame){
+            keypad.setKeyPressed(keys[next], presses[next]);
+            next++;
+        }
+    }
+
+    public void rewind(){
+        next = 0;
+    }
+
+    public int size(){
+        return frames.length;
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// key events with the time they happened, from one input source (the producer, e.g. the event
+// dispatch thread, a script or the network thread of a session) to the thread running the machine
+// (the consumer), which applies them to the keypad at an instruction or frame boundary,
+// see Keypad.applyQueuedEvents
+// there are no locks: the producer publishes an event by moving the tail on (a release write) after
+// storing it, the consumer frees its place by moving the head on, each index has only one writer
+// a queue is created by Keypad.createEventQueue, every producer thread needs its own
+public class KeyEventQueue {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Keypad keypad;
+    private final long[] times;
+    // key << 1 | 1 if pressed
+    private final byte[] events;
+    private final int mask;
+    // the next event to apply, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // the next free place, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    // constructor
+    // the capacity is rounded up to a power of two
+    KeyEventQueue(Keypad keypad, int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.keypad = keypad;
+        times = new long[size];
+        events = new byte[size];
+        mask = size - 1;
+    }
+
+    // methods
+
+    // called by the producer, the event happened now
+    public boolean offer(int key, boolean press){
+        return offer(key, press, System.nanoTime());
+    }
+
+    // called by the producer, time is a System.nanoTime, returns false (and counts the event as dropped)
+    // if the queue is full because the consumer doesn't apply the events
+    public boolean offer(int key, boolean press, long time){
+        if(key < 0 || key > 15){
+            throw new IllegalArgumentException("there is no key " + key);
+        }
+        long position = tail.get();
+        if(position - head.get() > mask){
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+        int i = (int) position & mask;
+        times[i] = time;
+        events[i] = (byte) (key << 1 | (press ? 1 : 0));
+        // the event is visible to the consumer before the new tail
+        tail.lazySet(position + 1);
+        keypad.eventQueued();
+        return true;
+    }
+
+    // called by the consumer or to check whether anything is pending
+    public boolean isEmpty(){
+        return head.get() == tail.get();
+    }
+
+    public int size(){
+        return (int) (tail.get() - head.get());
+    }
+
+    public long getDroppedEvents(){
+        return droppedEvents.get();
+    }
+
+    // the oldest event, called by the consumer when the queue isn't empty
+    long peekTime(){
+        return times[(int) head.get() & mask];
+    }
+
+    int peekKey(){
+        return events[(int) head.get() & mask] >> 1;
+    }
+
+    boolean peekPress(){
+        return (events[(int) head.get() & mask] & 1) != 0;
+    }
+
+    // removes the oldest event, its place can be used by the producer again
+    void remove(){
+        head.lazySet(head.get() + 1);
+    }
+
+}
@@ -19,9 +19,11 @@ import java.awt.event.ActionEvent;
 public class Keyboard extends JComponent{
 
     private Display display;
+    // the keys are passed on to the keypad of the CHIP-8, through a queue since the keypad
+    // belongs to the emulation thread
+    private KeyEventQueue eventQueue;
 
     private String keyboardType; //Types: Qwerty, Qwertz, Azerty
-    public boolean[] keysPressed = new boolean[16];
 
     // inner class to handle keyboard presses
     class keyboardAction extends AbstractAction {
@@ -38,20 +40,22 @@ public class Keyboard extends JComponent{
         }
 
         public void actionPerformed(ActionEvent e) {
-            keysPressed[key] = press;
+            eventQueue.offer(key, press);
         }
 
     }
 
 
     // constructors
-    public Keyboard(Display display){
+    public Keyboard(Display display, Keypad keypad){
         this.display = display;
+        this.eventQueue = keypad.createEventQueue();
         setupKeyboard(Chip8.DEFAULT_KEYBOARD_TYPE);
     }
 
-    public Keyboard(Display display, String keyboardType){
+    public Keyboard(Display display, Keypad keypad, String keyboardType){
         this.display = display;
+        this.eventQueue = keypad.createEventQueue();
         // default is Qwerty
         if(keyboardType.equals("Qwertz") | keyboardType.equals("Azerty")) {
             setupKeyboard(keyboardType);
@@ -0,0 +1,137 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+// the state of the 16 keys of the CHIP-8 keypad, without anything from AWT
+// the keys are only changed by the thread running the machine: directly with setKeyPressed (e.g. input
+// scripts applied at a frame) or from the KeyEventQueues of other threads (e.g. the Swing Keyboard or the
+// network thread of a session) with applyQueuedEvents at an instruction or frame boundary
+public class Keypad {
+
+    public boolean[] keysPressed = new boolean[16];
+    // the time of the last press of every key applied from a queue, see InputLatency
+    private final long[] pressTimes = new long[16];
+
+    // the queues of the input sources on other threads, replaced as a whole when one is added
+    private volatile KeyEventQueue[] queues = new KeyEventQueue[0];
+
+    // the interface is used to wake up the emulation thread, which parks
+    // while the program waits for a key press
+    interface keyEventListener {
+        void keyEventOccurred();
+    }
+
+    private volatile keyEventListener listener;
+
+    // methods
+
+    public void setKeyPressed(int key, boolean press){
+        keysPressed[key] = press;
+        if(listener != null){
+            listener.keyEventOccurred();
+        }
+    }
+
+    // a queue for the key events of one more input source
+    public synchronized KeyEventQueue createEventQueue(){
+        KeyEventQueue queue = new KeyEventQueue(this, KeyEventQueue.DEFAULT_CAPACITY);
+        KeyEventQueue[] more = Arrays.copyOf(queues, queues.length + 1);
+        more[queues.length] = queue;
+        queues = more;
+        return queue;
+    }
+
+    // called by a queue after an event was added, wakes up the thread running the machine
+    void eventQueued(){
+        keyEventListener listener = this.listener;
+        if(listener != null){
+            listener.keyEventOccurred();
+        }
+    }
+
+    // applies the queued events of all queues in the order of their times and returns how many
+    // a key which is pressed and released again before the program could see it (both events arrive
+    // between two boundaries) stays pressed until the next call, the release and all events after it
+    // wait, so that short taps aren't lost
+    public int applyQueuedEvents(){
+        KeyEventQueue[] queues = this.queues;
+        int applied = 0;
+        // the keys pressed by this call
+        int pressedNow = 0;
+        while(true){
+            KeyEventQueue next = null;
+            for(KeyEventQueue queue : queues){
+                if(!queue.isEmpty() && (next == null || queue.peekTime() - next.peekTime() < 0)){
+                    next = queue;
+                }
+            }
+            if(next == null){
+                return applied;
+            }
+            int key = next.peekKey();
+            boolean press = next.peekPress();
+            if(!press & (pressedNow >> key & 1) != 0){
+                return applied;
+            }
+            long time = next.peekTime();
+            next.remove();
+            keysPressed[key] = press;
+            if(press){
+                pressedNow |= 1 << key;
+                pressTimes[key] = time;
+            }
+            applied++;
+        }
+    }
+
+    // System.nanoTime of the last press of the key which came through a queue, 0 if none did
+    public long getPressTime(int key){
+        return pressTimes[key];
+    }
+
+    // whether events wait in a queue, e.g. a release held back by applyQueuedEvents
+    public boolean hasQueuedEvents(){
+        for(KeyEventQueue queue : queues){
+            if(!queue.isEmpty()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isKeyPressed(int key){
+        return keysPressed[key];
+    }
+
+    public void releaseAllKeys(){
+        for(int i = 0; i < 16; i++){
+            keysPressed[i] = false;
+        }
+    }
+
+    public long getDroppedEvents(){
+        long dropped = 0;
+        for(KeyEventQueue queue : queues){
+            dropped += queue.getDroppedEvents();
+        }
+        return dropped;
+    }
+
+    public void setKeyEventListener(keyEventListener listener){
+        this.listener = listener;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+// a log-bucketed histogram of durations in nanoseconds
+// every power of two is split into 8 sub-buckets, so a reported percentile
+// is at most about 12% above the real value, and recording never allocates
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long max = 0;
+    private long sum = 0;
+
+    // constructor
+    public LatencyHistogram(String name){
+        this.name = name;
+    }
+
+    // methods
+
+    public synchronized void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        counts[bucketOf(nanos)]++;
+        count++;
+        sum += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    public synchronized void reset(){
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+        sum = 0;
+    }
+
+    // returns the (upper bound of the bucket of the) value below which the given
+    // fraction of all recorded values lies, e.g. 0.99 for p99
+    public synchronized long percentile(double fraction){
+        if(count == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        rank = Math.max(1, Math.min(rank, count));
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++){
+            seen += counts[b];
+            if(seen >= rank){
+                return Math.min(upperBoundOf(b), max);
+            }
+        }
+        return max;
+    }
+
+    public synchronized long getCount(){
+        return count;
+    }
+
+    public synchronized long getMax(){
+        return max;
+    }
+
+    public synchronized long getMean(){
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    private static int bucketOf(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBoundOf(int bucket){
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long upperBoundOf(int bucket){
+        if(bucket + 1 >= BUCKETS){
+            return Long.MAX_VALUE;
+        }
+        return lowerBoundOf(bucket + 1) - 1;
+    }
+
+    // one line of text, used for printing to the console
+    public String summary(){
+        return String.format("%s: n=%d mean=%.2fms p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                name, getCount(), getMean() / 1e6, percentile(0.5) / 1e6, percentile(0.99) / 1e6,
+                percentile(0.999) / 1e6, getMax() / 1e6);
+    }
+
+    // one row of the html table shown in the debug windows
+    public String tableRow(){
+        return "<tr><td style=\"color:#8E30BB\">" + name + "</td>" +
+                "<td>" + getCount() + "</td>" +
+                "<td>" + String.format("%.2f", percentile(0.5) / 1e6) + "</td>" +
+                "<td>" + String.format("%.2f", percentile(0.99) / 1e6) + "</td>" +
+                "<td>" + String.format("%.2f", percentile(0.999) / 1e6) + "</td>" +
+                "<td>" + String.format("%.2f", getMax() / 1e6) + "</td></tr>";
+    }
+
+    public static String tableHeader(){
+        return "<tr><th></th><th>n</th><th>p50 ms</th><th>p99 ms</th><th>p999 ms</th><th>max ms</th></tr>";
+    }
+
+}
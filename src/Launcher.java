@@ -0,0 +1,34 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// entry point of the jar, it starts the window unless --headless or --server is given
+// kept separate from Chip8 so that a headless run never loads any AWT or Swing class
+public class Launcher {
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("--headless")){
+            String[] headlessArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, headlessArgs, 0, headlessArgs.length);
+            HeadlessRunner.main(headlessArgs);
+        } else if(args.length > 0 && args[0].equals("--server")){
+            String[] serverArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, serverArgs, 0, serverArgs.length);
+            SessionServer.main(serverArgs);
+        } else {
+            Chip8.main(args);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// a complete CHIP-8 without any user interface: memory, CPU, frame buffer and keypad
+// used by the window as well as by the headless runner and the benchmarks
+public class Machine {
+
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = Chip8.DEFAULT_INSTRUCTIONS_PER_TIMER_CYCLE;
+
+    final Memory memory;
+    final FrameBuffer frameBuffer = new FrameBuffer();
+    final Keypad keypad = new Keypad();
+    final CPU cpu;
+
+    // a frame is one timer cycle
+    private int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    private long frames = 0;
+    private long instructions = 0;
+
+    // constructors
+    public Machine(){
+        this(new Memory());
+    }
+
+    private Machine(Memory memory){
+        this.memory = memory;
+        cpu = new CPU(memory, frameBuffer, keypad);
+    }
+
+    // methods
+
+    // a machine in the same state which runs on independently, e.g. to try out different inputs
+    // the memory pages are shared copy-on-write, so a fork costs well under a microsecond and
+    // about a kilobyte until the machines write to their memory
+    // nothing is shared that either machine writes, so a fork can run on another thread
+    public Machine fork(){
+        return copyState(new Machine(memory.fork()));
+    }
+
+    // like fork, but with a complete copy of the memory
+    public Machine copy(){
+        return copyState(new Machine(memory.copy()));
+    }
+
+    private Machine copyState(Machine copy){
+        copy.cpu.copyState(cpu);
+        copy.frameBuffer.copyFrom(frameBuffer);
+        System.arraycopy(keypad.keysPressed, 0, copy.keypad.keysPressed, 0, 16);
+        copy.instructionsPerFrame = instructionsPerFrame;
+        copy.frames = frames;
+        copy.instructions = instructions;
+        return copy;
+    }
+
+    public void loadRom(File romFile) throws IOException {
+        loadRom(Files.readAllBytes(romFile.toPath()));
+    }
+
+    public void loadRom(byte[] rom){
+        memory.loadRom(rom);
+        reset();
+    }
+
+    // starts the loaded program from the beginning, the quirks and other settings are kept
+    public void reset(){
+        memory.stack.clear();
+        cpu.reset();
+        frameBuffer.clear();
+        keypad.releaseAllKeys();
+        frames = 0;
+        instructions = 0;
+    }
+
+    // runs one frame: instructionsPerFrame instructions (fewer after DRW with the display wait quirk)
+    // followed by a timer tick, and returns the events of CPU.run that happened
+    // a fault is only returned if it is in stopMask, otherwise it is thrown
+    public int runFrame(int stopMask){
+        return runFrame(instructionsPerFrame, stopMask);
+    }
+
+    public int runFrame(int maxInstructions, int stopMask){
+        int reason = cpu.run(maxInstructions, stopMask | CPU.STOP_DISPLAY_WAIT);
+        instructions += cpu.getCyclesExecuted();
+        if((reason & CPU.STOP_FAULT) != 0){
+            return reason;
+        }
+        cpu.decrementTimers();
+        frames++;
+        return reason & stopMask;
+    }
+
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame){
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    public long getFrames(){
+        return frames;
+    }
+
+    public long getInstructions(){
+        return instructions;
+    }
+
+    public CPU getCpu(){
+        return cpu;
+    }
+
+    public Memory getMemory(){
+        return memory;
+    }
+
+    public FrameBuffer getFrameBuffer(){
+        return frameBuffer;
+    }
+
+    public Keypad getKeypad(){
+        return keypad;
+    }
+
+    // a 64-bit FNV-1a hash of everything a program can observe: registers, timers, stack,
+    // memory and screen, two machines with the same hash are (almost certainly) in the same state
+    public long stateHash(){
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, cpu.getPc());
+        hash = fnv(hash, cpu.getIndex());
+        for(int i = 0; i < 16; i++){
+            hash = fnv(hash, cpu.getRegister(i));
+        }
+        hash = fnv(hash, cpu.getDelayTimer());
+        hash = fnv(hash, cpu.getSoundTimer());
+        hash = fnv(hash, memory.stack.size());
+        for(int address : memory.stack){
+            hash = fnv(hash, address);
+        }
+        for(int address = 0; address < 4096; address++){
+            hash = fnv(hash, memory.readMemory(address));
+        }
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            long row = frameBuffer.getRow(y);
+            hash = fnv(hash, (int) (row >>> 32));
+            hash = fnv(hash, (int) row);
+        }
+        return hash;
+    }
+
+    private static long fnv(long hash, int value){
+        for(int i = 0; i < 4; i++){
+            hash ^= (value >>> (8 * i)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+}
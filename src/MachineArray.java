@@ -0,0 +1,638 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+// many machines in flat arrays instead of one Memory, CPU, FrameBuffer and Keypad object graph each:
+// machine m owns memory[m * 4096 ...], registers[m * 16 ...], stack[m * 16 ...] and screens[m * 32 ...]
+// (rows packed like in FrameBuffer), all other state is one array element per machine
+// a machine takes about 4.5 KB (4096 bytes of memory and about 430 bytes of everything else)
+// a Machine shares the memory pages it hasn't written with the other machines running the same
+// ROM (see Memory), so it takes about 1 KB plus 256 bytes per written page and, with thousands of
+// machines, fits better into the caches than this (see Benchmark machines)
+// runFrames can be called from several threads for different machines
+// the instructions behave exactly like in CPU (stateHash is the same as the one of Machine), with
+// these differences: addresses always wrap around (no strict memory checks), there is no instruction
+// fusion, the stack holds 16 return addresses, and a machine stops at its first fault until it is reset
+public class MachineArray {
+
+    public static final int MEMORY_SIZE = 4096;
+    public static final int STACK_SIZE = 16;
+
+    // the faults, getFault returns one of them
+    public static final int NO_FAULT = 0;
+    public static final int FAULT_ILLEGAL_INSTRUCTION = 1;
+    public static final int FAULT_STACK_UNDERFLOW = 2;
+    public static final int FAULT_STACK_OVERFLOW = 3;
+    public static final int FAULT_ILLEGAL_KEY = 4;
+
+    // set by execute, a machine stops running for the rest of the frame at any of them
+    private static final int EVENT_KEY_WAIT = 1;
+    private static final int EVENT_DISPLAY_WAIT = 2;
+    private static final int EVENT_FAULT = 4;
+
+    private final int count;
+
+    private final byte[] memory;
+    private final int[] registers;
+    private final int[] stack;
+    private final long[] screens;
+    private final int[] stackPointer;
+    private final int[] pc;
+    private final int[] index;
+    private final int[] delayTimer;
+    private final int[] soundTimer;
+    private final long[] randomState;
+    // bit k is set while key k is pressed
+    private final int[] keys;
+    private final boolean[] waitingForDisplay;
+    private final boolean[] screenChanged;
+    private final int[] fault;
+    // scratch space of runFrameLockstep, set while a machine still runs in the current frame
+    private final boolean[] running;
+
+    // the event of the last instruction executed by a machine, 0 if none
+    // one per machine, so that threads can run different machines
+    private final int[] event;
+
+    private int instructionsPerFrame = Machine.DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    // the same quirks for all machines, see Quirks
+    private Quirks.Shift shiftQuirk = Quirks.Shift.ORIGINAL;
+    private Quirks.LoadStore loadStoreQuirk = Quirks.LoadStore.ORIGINAL;
+    private Quirks.JumpWithOffset jumpWithOffsetQuirk = Quirks.JumpWithOffset.ORIGINAL;
+    private Quirks.VfReset vfResetQuirk = Quirks.VfReset.OFF;
+    private Quirks.Clipping clippingQuirk = Quirks.Clipping.ON;
+    private Quirks.DisplayWait displayWaitQuirk = Quirks.DisplayWait.OFF;
+
+    // constructor
+    public MachineArray(int count){
+        this.count = count;
+        memory = new byte[count * MEMORY_SIZE];
+        registers = new int[count * 16];
+        stack = new int[count * STACK_SIZE];
+        screens = new long[count * FrameBuffer.HEIGHT];
+        stackPointer = new int[count];
+        pc = new int[count];
+        index = new int[count];
+        delayTimer = new int[count];
+        soundTimer = new int[count];
+        randomState = new long[count];
+        keys = new int[count];
+        waitingForDisplay = new boolean[count];
+        screenChanged = new boolean[count];
+        fault = new int[count];
+        running = new boolean[count];
+        event = new int[count];
+
+        // the interpreter area with the font is taken from a Memory, so that it's the same
+        Memory template = new Memory();
+        for(int m = 0; m < count; m++){
+            for(int address = 0; address < 0x200; address++){
+                memory[m * MEMORY_SIZE + address] = template.readMemory(address);
+            }
+            setRandomSeed(m, 0);
+            reset(m);
+        }
+    }
+
+    // methods
+
+    public int getCount(){
+        return count;
+    }
+
+    // loads a program into every machine and resets them
+    public void loadRom(byte[] rom){
+        for(int m = 0; m < count; m++){
+            loadRom(m, rom);
+        }
+    }
+
+    public void loadRom(int m, byte[] rom){
+        if(rom.length > MEMORY_SIZE - 0x200){
+            throw new IllegalArgumentException("Trying to write outside of memory.");
+        }
+        int base = m * MEMORY_SIZE;
+        Arrays.fill(memory, base + 0x200, base + MEMORY_SIZE, (byte) 0);
+        System.arraycopy(rom, 0, memory, base + 0x200, rom.length);
+        reset(m);
+    }
+
+    // like Machine.reset: registers, stack, screen and keys, the memory stays as it is
+    public void reset(int m){
+        pc[m] = 0x200;
+        index[m] = 0;
+        Arrays.fill(registers, m * 16, m * 16 + 16, 0);
+        stackPointer[m] = 0;
+        Arrays.fill(screens, m * FrameBuffer.HEIGHT, (m + 1) * FrameBuffer.HEIGHT, 0);
+        delayTimer[m] = 0;
+        soundTimer[m] = 0;
+        keys[m] = 0;
+        waitingForDisplay[m] = false;
+        screenChanged[m] = true;
+        fault[m] = NO_FAULT;
+    }
+
+    // takes over the quirks of a CPU
+    public void copySettings(CPU cpu){
+        shiftQuirk = cpu.getOriginalShiftInstructions() ? Quirks.Shift.ORIGINAL : Quirks.Shift.MODERN;
+        loadStoreQuirk = cpu.getOriginalReadWriteMemoryInstructions() ? Quirks.LoadStore.ORIGINAL : Quirks.LoadStore.MODERN;
+        jumpWithOffsetQuirk = cpu.getOriginalJumpWithOffsetInstructions() ? Quirks.JumpWithOffset.ORIGINAL : Quirks.JumpWithOffset.MODERN;
+        vfResetQuirk = cpu.getVfReset() ? Quirks.VfReset.ON : Quirks.VfReset.OFF;
+        clippingQuirk = cpu.getClipping() ? Quirks.Clipping.ON : Quirks.Clipping.OFF;
+        displayWaitQuirk = cpu.getDisplayWait() ? Quirks.DisplayWait.ON : Quirks.DisplayWait.OFF;
+    }
+
+    // the same sequence as CPU.setRandomSeed
+    public void setRandomSeed(int m, long seed){
+        long state = seed * 0x9e3779b97f4a7c15L + 1;
+        randomState[m] = state == 0 ? 1 : state;
+    }
+
+    public void setKeys(int m, int keyMask){
+        keys[m] = keyMask & 0xffff;
+    }
+
+    public void setKeyPressed(int m, int key, boolean press){
+        if(press){
+            keys[m] |= 1 << key;
+        } else {
+            keys[m] &= ~(1 << key);
+        }
+    }
+
+    public int getInstructionsPerFrame(){
+        return instructionsPerFrame;
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame){
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    // runs one frame of every machine, one machine after the other,
+    // so that every machine's memory stays in the cache while it runs
+    // returns the number of executed instructions
+    public long runFrame(){
+        return runFrames(0, count);
+    }
+
+    // runs one frame of the machines from..to-1, e.g. a slice per thread
+    public long runFrames(int from, int to){
+        long executed = 0;
+        for(int m = from; m < to; m++){
+            executed += runFrame(m);
+        }
+        return executed;
+    }
+
+    // runs one frame of machine m: instructionsPerFrame instructions (fewer after DRW with the
+    // display wait quirk) followed by a timer tick, like Machine.runFrame
+    // a faulted machine doesn't run and its timers stay as they are
+    public int runFrame(int m){
+        if(fault[m] != NO_FAULT){
+            return 0;
+        }
+        // the pc stays in a local variable while the machine runs
+        int machinePc = pc[m];
+        int executed = 0;
+        event[m] = 0;
+        while(executed < instructionsPerFrame){
+            machinePc = execute(m, machinePc);
+            executed++;
+            if(event[m] != 0){
+                break;
+            }
+        }
+        pc[m] = machinePc;
+        // LD Vx, K without a key would only repeat itself until the end of the frame,
+        // after a fault the machine stops
+        if(event[m] != EVENT_FAULT){
+            tick(m);
+        }
+        return executed;
+    }
+
+    // runs one frame of every machine, instruction by instruction across all machines
+    // (first instruction of every machine, then the second one, ...) like lanes of a vector unit
+    // returns the number of executed instructions
+    public long runFrameLockstep(){
+        long executed = 0;
+        for(int m = 0; m < count; m++){
+            running[m] = fault[m] == NO_FAULT;
+        }
+        for(int i = 0; i < instructionsPerFrame; i++){
+            for(int m = 0; m < count; m++){
+                if(running[m]){
+                    executed++;
+                    event[m] = 0;
+                    pc[m] = execute(m, pc[m]);
+                    if(event[m] != 0){
+                        running[m] = false;
+                    }
+                }
+            }
+        }
+        for(int m = 0; m < count; m++){
+            if(fault[m] == NO_FAULT){
+                tick(m);
+            }
+        }
+        return executed;
+    }
+
+    // executes the next instruction of machine m like CPU.executeOneInstruction, without a timer
+    // tick, and returns whether it ran (a faulted machine doesn't), e.g. to compare it step by step
+    public boolean step(int m){
+        if(fault[m] != NO_FAULT){
+            return false;
+        }
+        event[m] = 0;
+        pc[m] = execute(m, pc[m]);
+        return true;
+    }
+
+    // the timer tick at the end of a frame
+    public void tick(int m){
+        waitingForDisplay[m] = false;
+        if(delayTimer[m] != 0){
+            delayTimer[m]--;
+        }
+        if(soundTimer[m] != 0){
+            soundTimer[m]--;
+        }
+    }
+
+    // executes the instruction at oldpc of machine m and returns the new pc,
+    // event[m] is set if the instruction causes one of the EVENT_ constants
+    private int execute(int m, int oldpc){
+        int memoryBase = m * MEMORY_SIZE;
+        int r = m * 16;
+
+        // fetch, the bytes are sign extended like the ones from Memory.readMemory
+        int instructionHigh = memory[memoryBase + (oldpc & 0xfff)];
+        int instructionLow = memory[memoryBase + ((oldpc + 1) & 0xfff)];
+
+        int a = (instructionHigh & 0xf0) >> 4;
+        int x = instructionHigh & 0x0f;
+        int y = (instructionLow & 0xf0) >> 4;
+        int n = instructionLow & 0x0f;
+        int nn = instructionLow & 0xff;
+        int nnn = (x << 8) | nn;
+
+        // like in CPU the pc points at the next instruction, also if the instruction faults
+        int next = oldpc + 2;
+
+        switch(a){
+            case 0x0:
+                if(nnn == 0x0e0){
+                    Arrays.fill(screens, m * FrameBuffer.HEIGHT, (m + 1) * FrameBuffer.HEIGHT, 0);
+                    screenChanged[m] = true;
+                } else if(nnn == 0x0ee){
+                    if(stackPointer[m] == 0){
+                        return fault(m, next, FAULT_STACK_UNDERFLOW);
+                    }
+                    next = stack[m * STACK_SIZE + --stackPointer[m]];
+                } else {
+                    return fault(m, next, FAULT_ILLEGAL_INSTRUCTION);
+                }
+                break;
+
+            case 0x1:
+                next = nnn;
+                break;
+
+            case 0x2:
+                if(stackPointer[m] == STACK_SIZE){
+                    return fault(m, next, FAULT_STACK_OVERFLOW);
+                }
+                stack[m * STACK_SIZE + stackPointer[m]++] = next;
+                next = nnn;
+                break;
+
+            case 0x3:
+                if(nn == registers[r + x]){
+                    next += 2;
+                }
+                break;
+
+            case 0x4:
+                if(nn != registers[r + x]){
+                    next += 2;
+                }
+                break;
+
+            case 0x5:
+                if(n != 0){
+                    return fault(m, next, FAULT_ILLEGAL_INSTRUCTION);
+                }
+                if(registers[r + x] == registers[r + y]){
+                    next += 2;
+                }
+                break;
+
+            case 0x6:
+                registers[r + x] = nn;
+                break;
+
+            case 0x7:
+                registers[r + x] = (registers[r + x] + nn) & 0xff;
+                break;
+
+            case 0x8:
+                // the order of the writes to Vx and VF is the same as in CPU, it matters if x is f
+                switch(n){
+                    case 0x0:
+                        registers[r + x] = registers[r + y];
+                        break;
+
+                    case 0x1:
+                        registers[r + x] = registers[r + x] | registers[r + y];
+                        vfResetQuirk.afterLogicInstruction(registers, r);
+                        break;
+
+                    case 0x2:
+                        registers[r + x] = registers[r + x] & registers[r + y];
+                        vfResetQuirk.afterLogicInstruction(registers, r);
+                        break;
+
+                    case 0x3:
+                        registers[r + x] = registers[r + x] ^ registers[r + y];
+                        vfResetQuirk.afterLogicInstruction(registers, r);
+                        break;
+
+                    case 0x4:
+                        registers[r + x] = registers[r + x] + registers[r + y];
+                        if(registers[r + x] > 255){
+                            registers[r + x] = registers[r + x] & 0xff;
+                            registers[r + 0xf] = 1;
+                        } else {
+                            registers[r + 0xf] = 0;
+                        }
+                        break;
+
+                    case 0x5:
+                        registers[r + x] = registers[r + x] - registers[r + y];
+                        if(registers[r + x] > 0){
+                            registers[r + 0xf] = 1;
+                        } else {
+                            registers[r + 0xf] = 0;
+                            registers[r + x] = registers[r + x] & 0xff;
+                        }
+                        break;
+
+                    case 0x6:
+                        int shiftRightSource = r + shiftQuirk.sourceRegister(x, y);
+                        registers[r + 0xf] = registers[shiftRightSource] & 1;
+                        registers[r + x] = registers[shiftRightSource] >> 1;
+                        break;
+
+                    case 0x7:
+                        registers[r + x] = registers[r + y] - registers[r + x];
+                        if(registers[r + x] > 0){
+                            registers[r + 0xf] = 1;
+                        } else {
+                            registers[r + 0xf] = 0;
+                            registers[r + x] = registers[r + x] & 0xff;
+                        }
+                        break;
+
+                    case 0xe:
+                        int shiftLeftSource = r + shiftQuirk.sourceRegister(x, y);
+                        registers[r + 0xf] = registers[shiftLeftSource] >> 7;
+                        registers[r + x] = (registers[shiftLeftSource] << 1) & 0xff;
+                        break;
+
+                    default:
+                        return fault(m, next, FAULT_ILLEGAL_INSTRUCTION);
+                }
+                break;
+
+            case 0x9:
+                if(n != 0){
+                    return fault(m, next, FAULT_ILLEGAL_INSTRUCTION);
+                }
+                if(registers[r + x] != registers[r + y]){
+                    next += 2;
+                }
+                break;
+
+            case 0xa:
+                index[m] = nnn;
+                break;
+
+            case 0xb:
+                next = (nnn + registers[r + jumpWithOffsetQuirk.offsetRegister(x)]) & 0xfff;
+                break;
+
+            case 0xc:
+                registers[r + x] = nextRandomByte(m) & nn;
+                break;
+
+            case 0xd:
+                drawSprite(m, x, y, n);
+                break;
+
+            case 0xe:
+                if(nn == 0x9e | nn == 0xa1){
+                    int key = registers[r + x];
+                    if(key >= 16){
+                        return fault(m, next, FAULT_ILLEGAL_KEY);
+                    }
+                    boolean pressed = (keys[m] >>> key & 1) != 0;
+                    if(pressed == (nn == 0x9e)){
+                        next += 2;
+                    }
+                }
+                break;
+
+            case 0xf:
+                switch(nn){
+                    case 0x07:
+                        registers[r + x] = delayTimer[m];
+                        break;
+
+                    case 0x0a:
+                        if(keys[m] == 0){
+                            event[m] = EVENT_KEY_WAIT;
+                            return oldpc;
+                        }
+                        registers[r + x] = Integer.numberOfTrailingZeros(keys[m]);
+                        break;
+
+                    case 0x15:
+                        delayTimer[m] = registers[r + x];
+                        break;
+
+                    case 0x18:
+                        soundTimer[m] = registers[r + x];
+                        break;
+
+                    case 0x1e:
+                        index[m] = index[m] + registers[r + x];
+                        if(index[m] > 0xfff){
+                            registers[r + 0xf] = 1;
+                            index[m] = index[m] & 0xfff;
+                        }
+                        break;
+
+                    case 0x29:
+                        index[m] = 0x50 + (5 * (registers[r + x] & 0xf));
+                        break;
+
+                    case 0x33:
+                        int value = registers[r + x];
+                        memory[memoryBase + (index[m] & 0xfff)] = (byte) ((value / 100) % 10);
+                        memory[memoryBase + ((index[m] + 1) & 0xfff)] = (byte) ((value / 10) % 10);
+                        memory[memoryBase + ((index[m] + 2) & 0xfff)] = (byte) (value % 10);
+                        break;
+
+                    case 0x55:
+                        for(int i = 0; i <= x; i++){
+                            memory[memoryBase + ((index[m] + i) & 0xfff)] = (byte) registers[r + i];
+                        }
+                        index[m] = loadStoreQuirk.indexAfter(index[m], x);
+                        break;
+
+                    case 0x65:
+                        for(int i = 0; i <= x; i++){
+                            registers[r + i] = memory[memoryBase + ((index[m] + i) & 0xfff)] & 0xff;
+                        }
+                        index[m] = loadStoreQuirk.indexAfter(index[m], x);
+                        break;
+                }
+                break;
+        }
+
+        return next;
+    }
+
+    private void drawSprite(int m, int x, int y, int n){
+        int r = m * 16;
+        int xPosition = registers[r + x] & 0x3f;
+        int yPosition = registers[r + y] & 0x1f;
+
+        registers[r + 0xf] = 0;
+
+        int rows = clippingQuirk.rows(yPosition, n);
+        int columnMask = (0xff00 >> clippingQuirk.columns(xPosition)) & 0xff;
+        int memoryBase = m * MEMORY_SIZE;
+        int screen = m * FrameBuffer.HEIGHT;
+        for(int row = 0; row < rows; row++){
+            int spriteByte = memory[memoryBase + ((index[m] + row) & 0xfff)] & columnMask;
+            long bits = Long.rotateRight(((long) spriteByte) << 56, xPosition);
+            int line = screen + ((yPosition + row) & 0x1f);
+            if((screens[line] & bits) != 0){
+                registers[r + 0xf] = 1;
+            }
+            screens[line] ^= bits;
+        }
+        screenChanged[m] = true;
+        waitingForDisplay[m] = displayWaitQuirk.waitAfterDrawing();
+        if(waitingForDisplay[m]){
+            event[m] = EVENT_DISPLAY_WAIT;
+        }
+    }
+
+    // returns the pc after the faulting instruction
+    private int fault(int m, int next, int reason){
+        fault[m] = reason;
+        event[m] = EVENT_FAULT;
+        return next;
+    }
+
+    private int nextRandomByte(int m){
+        long state = randomState[m];
+        state ^= state << 13;
+        state ^= state >>> 7;
+        state ^= state << 17;
+        randomState[m] = state;
+        return (int) (state >>> 56);
+    }
+
+    public int getPc(int m){
+        return pc[m];
+    }
+
+    public int getIndex(int m){
+        return index[m];
+    }
+
+    public int getRegister(int m, int i){
+        return registers[m * 16 + i];
+    }
+
+    public int getDelayTimer(int m){
+        return delayTimer[m];
+    }
+
+    public int getSoundTimer(int m){
+        return soundTimer[m];
+    }
+
+    public int getFault(int m){
+        return fault[m];
+    }
+
+    public long getRow(int m, int y){
+        return screens[m * FrameBuffer.HEIGHT + y];
+    }
+
+    public void copyRowsTo(int m, long[] destination, int offset){
+        System.arraycopy(screens, m * FrameBuffer.HEIGHT, destination, offset, FrameBuffer.HEIGHT);
+    }
+
+    // returns whether CLS or DRW were executed by machine m since the last call
+    public boolean pollScreenChanged(int m){
+        boolean changed = screenChanged[m];
+        screenChanged[m] = false;
+        return changed;
+    }
+
+    // the same hash as Machine.stateHash, so that a machine can be compared with a Machine
+    public long stateHash(int m){
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, pc[m]);
+        hash = fnv(hash, index[m]);
+        for(int i = 0; i < 16; i++){
+            hash = fnv(hash, registers[m * 16 + i]);
+        }
+        hash = fnv(hash, delayTimer[m]);
+        hash = fnv(hash, soundTimer[m]);
+        hash = fnv(hash, stackPointer[m]);
+        // from the top of the stack down, in the order of the iterator of Memory.stack
+        for(int i = stackPointer[m] - 1; i >= 0; i--){
+            hash = fnv(hash, stack[m * STACK_SIZE + i]);
+        }
+        for(int address = 0; address < MEMORY_SIZE; address++){
+            hash = fnv(hash, memory[m * MEMORY_SIZE + address]);
+        }
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            long row = screens[m * FrameBuffer.HEIGHT + y];
+            hash = fnv(hash, (int) (row >>> 32));
+            hash = fnv(hash, (int) row);
+        }
+        return hash;
+    }
+
+    private static long fnv(long hash, int value){
+        for(int i = 0; i < 4; i++){
+            hash ^= (value >>> (8 * i)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+}
@@ -16,16 +16,33 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 import java.io.File;
 import java.nio.file.Files;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 
 public class Memory {
 
     private final int memorySize = 4096;
-    private byte[] memory = new byte[memorySize];
+    // addresses are 12 bits, like on the original hardware they wrap around
+    private static final int ADDRESS_MASK = 0xfff;
 
-    private final int[] intFont;
-    {
-        intFont = new int[]{0xf0, 0x90, 0x90, 0x90, 0xf0, //0
+    // the memory is split into pages of 256 bytes which are shared copy-on-write: forks share all
+    // pages with their parent, and the pages of a ROM are shared by every memory it's loaded into
+    // a page is copied before the first write unless this memory owns it, shared pages are never written
+    public static final int PAGE_SIZE = 256;
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGES = 4096 / PAGE_SIZE;
+    private final byte[][] pages = new byte[PAGES][];
+    private final boolean[] ownsPage = new boolean[PAGES];
+
+    // in strict mode an access outside of the memory throws a MemoryAccessException
+    // instead of wrapping around, which helps finding bugs in programs
+    // the check is a branch which is never taken in normal mode, so the JIT compiles
+    // the accesses to a plain masked array access
+    private boolean strictAddressing = false;
+
+    private static final int[] intFont = new int[]{
+                            0xf0, 0x90, 0x90, 0x90, 0xf0, //0
                             0x20, 0x60, 0x20, 0x20, 0x70, //1
                             0xf0, 0x10, 0xf0, 0x80, 0xf0, //2
                             0xf0, 0x10, 0xf0, 0x10, 0xf0, //3
@@ -41,18 +58,34 @@ public class Memory {
                             0xe0, 0x90, 0x90, 0x90, 0xe0, //D
                             0xf0, 0x80, 0xf0, 0x80, 0xf0, //E
                             0xf0, 0x80, 0xf0, 0x80, 0x80  //F
-        };
+    };
+
+    private static final byte[] font = intArrayToByteArray(intFont);
+
+    // the pages every memory starts with: the interpreter area with the font at 0x50 and zeros
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+    private static final byte[][] INTERPRETER_PAGES = new byte[0x200 / PAGE_SIZE][PAGE_SIZE];
+    static {
+        for(int i = 0; i < font.length; i++){
+            INTERPRETER_PAGES[(0x50 + i) >> PAGE_BITS][(0x50 + i) & PAGE_MASK] = font[i];
+        }
     }
 
-    private int memoryUsed = 0x9f;
+    // the pages of the last ROMs, looked up by content so that the same ROM (e.g. loaded from the
+    // same file again or into many machines) shares its pages and loading it doesn't allocate
+    private static final int ROM_CACHE_SIZE = 32;
+    private static final byte[][] cachedRoms = new byte[ROM_CACHE_SIZE][];
+    private static final byte[][][] cachedRomPages = new byte[ROM_CACHE_SIZE][][];
+    private static int nextCacheEntry = 0;
 
-    private final byte[] font = intArrayToByteArray(intFont);
+    private int memoryUsed = 0x9f;
 
     public Deque<Integer> stack = new ArrayDeque<>();
 
     // Constructors
     public Memory() {
-        writeToMemory(0x50,font,true);
+        System.arraycopy(INTERPRETER_PAGES, 0, pages, 0, INTERPRETER_PAGES.length);
+        Arrays.fill(pages, INTERPRETER_PAGES.length, PAGES, ZERO_PAGE);
     }
 
     public Memory(File romFile) {
@@ -60,34 +93,112 @@ public class Memory {
         loadRom(romFile);
     }
 
+    // a copy of other, sharing its pages if share is true
+    private Memory(Memory other, boolean share) {
+        for(int page = 0; page < PAGES; page++){
+            if(share){
+                pages[page] = other.pages[page];
+                // neither of them may write the page from now on
+                other.ownsPage[page] = false;
+            } else {
+                pages[page] = other.pages[page].clone();
+                ownsPage[page] = true;
+            }
+        }
+        strictAddressing = other.strictAddressing;
+        memoryUsed = other.memoryUsed;
+        stack = new ArrayDeque<>(other.stack);
+    }
+
 
     // Methods
+
+    // a copy which shares all pages with this memory until one of them writes to a page,
+    // forking costs about as much as copying the stack
+    public Memory fork(){
+        return new Memory(this, true);
+    }
+
+    // a copy which doesn't share anything
+    public Memory copy(){
+        return new Memory(this, false);
+    }
+
     public void clearMemory(){
-        for(int i=0x200; i<0xFFF; i++){
-            writeByteToMemory(i,(byte) 0,false);
-            memoryUsed = 0x9f;
-        }
+        fillMemory(0x200, memorySize, (byte) 0);
+        memoryUsed = 0x9f;
     }
 
     public void loadRom(File romFile){
         try {
-            clearMemory();
-            byte[] romArray = Files.readAllBytes(romFile.toPath());
-            writeToMemory(0x200,romArray,true);
+            loadRom(Files.readAllBytes(romFile.toPath()));
         } catch(Exception e) {
             e.printStackTrace();
         }
     }
 
-    public void writeByteToMemory(int address, byte toEnter, boolean log){
-        if(address > memorySize | address < 0){
+    public void loadRom(byte[] romArray){
+        if(romArray.length > memorySize - 0x200){
             throw new IllegalArgumentException("Trying to write outside of memory.");
-        } else{
-            memory[address] = toEnter;
-            if(log) {
-                memoryUsed = Math.max(address, memoryUsed);
+        }
+        byte[][] romPages = romPages(romArray);
+        for(int page = 0x200 >> PAGE_BITS; page < PAGES; page++){
+            pages[page] = romPages[page];
+            ownsPage[page] = false;
+        }
+        memoryUsed = Math.max(0x200 + romArray.length, 0x9f);
+    }
+
+    // the pages from 0x200 on with the ROM loaded, the pages below are null
+    private static synchronized byte[][] romPages(byte[] rom){
+        for(int i = 0; i < ROM_CACHE_SIZE; i++){
+            if(Arrays.equals(cachedRoms[i], rom)){
+                return cachedRomPages[i];
             }
         }
+        byte[][] romPages = new byte[PAGES][];
+        for(int page = 0x200 >> PAGE_BITS; page < PAGES; page++){
+            int start = (page << PAGE_BITS) - 0x200;
+            if(start >= rom.length){
+                romPages[page] = ZERO_PAGE;
+            } else {
+                romPages[page] = Arrays.copyOf(Arrays.copyOfRange(rom, start, Math.min(start + PAGE_SIZE, rom.length)), PAGE_SIZE);
+            }
+        }
+        cachedRoms[nextCacheEntry] = rom.clone();
+        cachedRomPages[nextCacheEntry] = romPages;
+        nextCacheEntry = (nextCacheEntry + 1) % ROM_CACHE_SIZE;
+        return romPages;
+    }
+
+    // the page of a (masked) address, copied first if it's shared
+    private byte[] writablePage(int address){
+        int page = address >>> PAGE_BITS;
+        if(!ownsPage[page]){
+            pages[page] = pages[page].clone();
+            ownsPage[page] = true;
+        }
+        return pages[page];
+    }
+
+    // the number of pages this memory has written since it was forked or the ROM was loaded
+    public int getOwnedPages(){
+        int owned = 0;
+        for(boolean owns : ownsPage){
+            owned += owns ? 1 : 0;
+        }
+        return owned;
+    }
+
+    public void writeByteToMemory(int address, byte toEnter, boolean log){
+        if(strictAddressing){
+            checkAddress(address, true);
+        }
+        address &= ADDRESS_MASK;
+        writablePage(address)[address & PAGE_MASK] = toEnter;
+        if(log) {
+            memoryUsed = Math.max(address, memoryUsed);
+        }
     }
 
     public void writeToMemory(int address, byte[] toEnter, boolean log){
@@ -96,7 +207,7 @@ public class Memory {
         } else{
             int i = address;
             for(byte entry : toEnter){
-                memory[i] = entry;
+                writablePage(i)[i & PAGE_MASK] = entry;
                 i++;
             }
             if(log) {
@@ -105,12 +216,132 @@ public class Memory {
         }
     }
 
+    // bulk operations for the instructions which access several bytes at once,
+    // they check (in strict mode) and mask the addresses once and don't allocate anything
+
+    // fills the addresses from (inclusive) to to (exclusive) with value, doesn't change memoryUsed
+    public void fillMemory(int from, int to, byte value){
+        if(from < 0 | to > memorySize | from > to){
+            throw new IllegalArgumentException("Trying to write outside of memory.");
+        }
+        while(from < to){
+            int pageEnd = Math.min((from | PAGE_MASK) + 1, to);
+            if(value == 0 & (from & PAGE_MASK) == 0 & pageEnd - from == PAGE_SIZE){
+                // a cleared page is shared instead of filled
+                pages[from >>> PAGE_BITS] = ZERO_PAGE;
+                ownsPage[from >>> PAGE_BITS] = false;
+            } else {
+                Arrays.fill(writablePage(from), from & PAGE_MASK, ((pageEnd - 1) & PAGE_MASK) + 1, value);
+            }
+            from = pageEnd;
+        }
+    }
+
+    // writes the registers 0 to count - 1 to the memory starting at address (fx55)
+    public void storeRegisters(int address, int[] registers, int count){
+        if(strictAddressing){
+            checkAddress(address, true);
+            checkAddress(address + count - 1, true);
+        }
+        int start = address & ADDRESS_MASK;
+        if((start & PAGE_MASK) + count <= PAGE_SIZE){
+            byte[] page = writablePage(start);
+            int offset = start & PAGE_MASK;
+            for(int i = 0; i < count; i++){
+                page[offset + i] = (byte) registers[i];
+            }
+        } else {
+            // crosses a page or wraps around the end of the memory
+            for(int i = 0; i < count; i++){
+                int a = (start + i) & ADDRESS_MASK;
+                writablePage(a)[a & PAGE_MASK] = (byte) registers[i];
+            }
+        }
+        memoryUsed = Math.max((start + count - 1) & ADDRESS_MASK, memoryUsed);
+    }
+
+    // reads count bytes starting at address into the registers 0 to count - 1 (fx65)
+    public void loadRegisters(int address, int[] registers, int count){
+        readBytes(address, registers, count);
+    }
+
+    // reads count bytes starting at address into values 0 to count - 1, e.g. the rows of a sprite
+    public void readBytes(int address, int[] values, int count){
+        if(count == 0){
+            return;
+        }
+        if(strictAddressing){
+            checkAddress(address, false);
+            checkAddress(address + count - 1, false);
+        }
+        int start = address & ADDRESS_MASK;
+        if((start & PAGE_MASK) + count <= PAGE_SIZE){
+            byte[] page = pages[start >>> PAGE_BITS];
+            int offset = start & PAGE_MASK;
+            for(int i = 0; i < count; i++){
+                values[i] = page[offset + i] & 0xff;
+            }
+        } else {
+            // crosses a page or wraps around the end of the memory
+            for(int i = 0; i < count; i++){
+                values[i] = byteAt(start + i) & 0xff;
+            }
+        }
+    }
+
+    // writes the hundreds, tens and ones digit of value to address, address + 1 and address + 2 (fx33)
+    public void writeBcd(int address, int value){
+        if(strictAddressing){
+            checkAddress(address, true);
+            checkAddress(address + 2, true);
+        }
+        for(int i = 0; i < 3; i++){
+            int a = (address + i) & ADDRESS_MASK;
+            int digit = i == 0 ? value / 100 : i == 1 ? value / 10 : value;
+            writablePage(a)[a & PAGE_MASK] = (byte) (digit % 10);
+        }
+        memoryUsed = Math.max((address + 2) & ADDRESS_MASK, memoryUsed);
+    }
+
     public byte readMemory(int address){
-        if(address > memorySize | address < 0){
-            throw new IllegalArgumentException("Trying to read outside of memory.");
-        } else{
-            return memory[address];
+        if(strictAddressing){
+            checkAddress(address, false);
+        }
+        return byteAt(address);
+    }
+
+    // reads the instruction at address as high byte * 256 + low byte, which takes
+    // one page lookup instead of two unless the instruction crosses a page
+    public int readInstruction(int address){
+        if(strictAddressing){
+            checkAddress(address, false);
+            checkAddress(address + 1, false);
         }
+        address &= ADDRESS_MASK;
+        byte[] page = pages[address >>> PAGE_BITS];
+        int offset = address & PAGE_MASK;
+        if(offset == PAGE_MASK){
+            return (page[offset] & 0xff) << 8 | byteAt(address + 1) & 0xff;
+        }
+        return (page[offset] & 0xff) << 8 | page[offset + 1] & 0xff;
+    }
+
+    private byte byteAt(int address){
+        return pages[(address >>> PAGE_BITS) & (PAGES - 1)][address & PAGE_MASK];
+    }
+
+    private void checkAddress(int address, boolean write){
+        if(address >= memorySize | address < 0){
+            throw new MemoryAccessException(address, write);
+        }
+    }
+
+    public boolean getStrictAddressing(){
+        return strictAddressing;
+    }
+
+    public void setStrictAddressing(boolean b){
+        strictAddressing = b;
     }
 
     // for debugging
@@ -126,7 +357,7 @@ public class Memory {
             } else {
                 System.out.print(" ");
             }
-            System.out.printf("%02x",memory[i]);
+            System.out.printf("%02x",byteAt(i));
         }
     }
 
@@ -146,7 +377,7 @@ public class Memory {
             } else {
                 System.out.print(" ");
             }
-            System.out.printf("%02x",memory[i]);
+            System.out.printf("%02x",byteAt(i));
         }
         System.out.println("\n");
     }
@@ -160,7 +391,7 @@ public class Memory {
         while(i < to16){
             table += "<tr><td style=\"color:#8E30BB\">" + Integer.toHexString(i) + "</td>";
             for(int j=0; j<16; j++){
-                table += "<td>" + Integer.toHexString(memory[i + j] & 0xff) + "</td>";
+                table += "<td>" + Integer.toHexString(byteAt(i + j) & 0xff) + "</td>";
             }
             table += "</tr>";
             i += 16;
@@ -0,0 +1,60 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// thrown by Memory in strict mode when a program reads or writes outside of the 4K memory
+// the CPU adds the address of the instruction that caused it
+public class MemoryAccessException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int address;
+    private final boolean write;
+    private int pc = -1;
+
+    // constructor
+    public MemoryAccessException(int address, boolean write){
+        this.address = address;
+        this.write = write;
+    }
+
+    // methods
+    public MemoryAccessException atPc(int pc){
+        this.pc = pc;
+        return this;
+    }
+
+    public int getAddress(){
+        return address;
+    }
+
+    public boolean isWrite(){
+        return write;
+    }
+
+    // -1 if unknown
+    public int getPc(){
+        return pc;
+    }
+
+    @Override
+    public String getMessage(){
+        String message = (write ? "Trying to write" : "Trying to read") + " outside of memory at address " + Integer.toHexString(address);
+        if(pc >= 0){
+            message += " (instruction at " + Integer.toHexString(pc) + ")";
+        }
+        return message;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// the different behaviours of the ambiguous instructions
+// every quirk is an enum whose constants implement one behaviour each
+// the CPU executes the instructions with an interpreter which has the selected constants in static
+// final fields, one copy of it for every combination of the quirks (see CPU.QuirkedInterpreter), so
+// the JIT inlines the calls without a check and toggling a quirk switches to another copy
+public class Quirks {
+
+    private Quirks(){
+    }
+
+    // 8xy6 and 8xye: shift Vy (original) or Vx
+    enum Shift {
+        ORIGINAL {
+            int sourceRegister(int x, int y){
+                return y;
+            }
+        },
+        MODERN {
+            int sourceRegister(int x, int y){
+                return x;
+            }
+        };
+
+        abstract int sourceRegister(int x, int y);
+    }
+
+    // fx55 and fx65: increment the index register (original) or leave it as it is
+    enum LoadStore {
+        ORIGINAL {
+            int indexAfter(int index, int x){
+                return index + x + 1;
+            }
+        },
+        MODERN {
+            int indexAfter(int index, int x){
+                return index;
+            }
+        };
+
+        abstract int indexAfter(int index, int x);
+    }
+
+    // bnnn: jump to nnn + V0 (original) or to xnn + Vx
+    enum JumpWithOffset {
+        ORIGINAL {
+            int offsetRegister(int x){
+                return 0;
+            }
+        },
+        MODERN {
+            int offsetRegister(int x){
+                return x;
+            }
+        };
+
+        abstract int offsetRegister(int x);
+    }
+
+    // 8xy1, 8xy2 and 8xy3: the original interpreter resets VF afterwards
+    // base is the index of V0, for the registers of many machines in one array
+    enum VfReset {
+        ON {
+            void afterLogicInstruction(int[] variableRegisters, int base){
+                variableRegisters[base + 0xf] = 0;
+            }
+        },
+        OFF {
+            void afterLogicInstruction(int[] variableRegisters, int base){
+            }
+        };
+
+        void afterLogicInstruction(int[] variableRegisters){
+            afterLogicInstruction(variableRegisters, 0);
+        }
+
+        abstract void afterLogicInstruction(int[] variableRegisters, int base);
+    }
+
+    // dxyn: sprites are clipped at the edges of the screen or wrap around to the other side
+    // (the starting position always wraps)
+    enum Clipping {
+        ON {
+            int rows(int yPosition, int n){
+                return Math.min(n, 32 - yPosition);
+            }
+
+            int columns(int xPosition){
+                return Math.min(8, 64 - xPosition);
+            }
+        },
+        OFF {
+            int rows(int yPosition, int n){
+                return n;
+            }
+
+            int columns(int xPosition){
+                return 8;
+            }
+        };
+
+        abstract int rows(int yPosition, int n);
+
+        abstract int columns(int xPosition);
+    }
+
+    // dxyn: the original interpreter waits for the next timer tick (vertical blank) after drawing
+    enum DisplayWait {
+        ON {
+            boolean waitAfterDrawing(){
+                return true;
+            }
+        },
+        OFF {
+            boolean waitAfterDrawing(){
+                return false;
+            }
+        };
+
+        abstract boolean waitAfterDrawing();
+    }
+
+}
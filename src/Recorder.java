@@ -0,0 +1,478 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// records the frames of the emulation as an animated GIF (a file ending in .gif) or as a sequence
+// of PPM images (any other name, a directory which is created if needed)
+// the emulation thread only copies the frame into a free slot of a bounded queue, a thread of the
+// recorder encodes and writes it; when no slot is free the encoder has fallen behind and the frame
+// is dropped and counted, the emulation never waits for the recording
+// frames are captured when they are presented, so only frames which changed, each with the time
+// it was presented; the GIF shows every frame for that time, the PPM sequence has a file frames.txt
+// with the time of each image in seconds since the start of the recording
+public class Recorder {
+
+    public static final int DEFAULT_SCALE = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    // writes the frames in one format, called by the thread of the recorder only
+    interface frameWriter {
+        void writeFrame(long[] rows, long time) throws IOException;
+        void close() throws IOException;
+    }
+
+    // a slot of the queue, they are reused so that capturing doesn't allocate
+    private static class Frame {
+        final long[] rows = new long[FrameBuffer.HEIGHT];
+        long time;
+    }
+
+    private final File file;
+    private final frameWriter writer;
+    // the free slots and the captured frames, both never hold more than all slots
+    private final ArrayBlockingQueue<Frame> free;
+    private final ArrayBlockingQueue<Frame> captured;
+    // put into captured by close, after it the thread finishes
+    private final Frame end = new Frame();
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private volatile IOException error;
+
+    // statistics
+    private final AtomicLong capturedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong writtenFrames = new AtomicLong();
+
+    // constructor
+    // palette holds the background and the pixel color as 0xrrggbb
+    public Recorder(File file, int scale, int[] palette, int queueSize) throws IOException {
+        if(scale < 1){
+            throw new IllegalArgumentException("scale must be at least 1, got " + scale);
+        }
+        if(palette.length != 2){
+            throw new IllegalArgumentException("the palette needs two colors");
+        }
+        this.file = file;
+        long start = System.nanoTime();
+        if(file.getName().toLowerCase().endsWith(".gif")){
+            writer = new GifWriter(file, scale, palette, start);
+        } else {
+            writer = new PpmWriter(file, scale, palette, start);
+        }
+        free = new ArrayBlockingQueue<>(queueSize);
+        captured = new ArrayBlockingQueue<>(queueSize + 1);
+        for(int i = 0; i < queueSize; i++){
+            free.add(new Frame());
+        }
+        thread = new Thread(new EncoderLoop(), "Recorder " + file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Recorder(File file) throws IOException {
+        this(file, DEFAULT_SCALE, new int[]{FrameImages.BACKGROUND_COLOR, FrameImages.PIXEL_COLOR}, DEFAULT_QUEUE_SIZE);
+    }
+
+    // methods
+
+    // called at the end of a frame, returns immediately
+    public void capture(FrameBuffer frameBuffer){
+        if(closed | error != null){
+            return;
+        }
+        Frame frame = free.poll();
+        if(frame == null){
+            droppedFrames.incrementAndGet();
+            return;
+        }
+        frameBuffer.copyRowsTo(frame.rows, 0);
+        frame.time = System.nanoTime();
+        capturedFrames.incrementAndGet();
+        // there is always room, captured has a place for every slot
+        captured.add(frame);
+    }
+
+    // writes the frames still in the queue and closes the file, waits for the thread of the recorder
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed){
+                return;
+            }
+            closed = true;
+        }
+        captured.add(end);
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(error != null){
+            throw error;
+        }
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    public long getCapturedFrames(){
+        return capturedFrames.get();
+    }
+
+    public long getDroppedFrames(){
+        return droppedFrames.get();
+    }
+
+    public long getWrittenFrames(){
+        return writtenFrames.get();
+    }
+
+    // e.g. "1234 frames recorded to game.gif, 2 dropped"
+    public String status(){
+        return getCapturedFrames() + " frames recorded to " + file + ", " + getDroppedFrames() + " dropped" +
+                (error == null ? "" : ", failed: " + error.getMessage());
+    }
+
+    // the thread of the recorder
+    private class EncoderLoop implements Runnable {
+        public void run(){
+            try {
+                while(true){
+                    Frame frame = captured.take();
+                    if(frame == end){
+                        break;
+                    }
+                    if(error == null){
+                        try {
+                            writer.writeFrame(frame.rows, frame.time);
+                            writtenFrames.incrementAndGet();
+                        } catch(IOException e) {
+                            error = e;
+                        }
+                    }
+                    free.add(frame);
+                }
+                writer.close();
+            } catch(IOException e) {
+                if(error == null){
+                    error = e;
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // an animated GIF which loops, with a global palette of the two colors
+    // every frame is shown until the next one, GIF delays are in hundredths of a second and viewers
+    // show frames shorter than 2/100 s much longer, so a frame which is replaced within 2/100 s is
+    // left out (like the flicker of a sprite which is erased and drawn again)
+    // a frame only contains the rectangle which changed since the frame before
+    private static class GifWriter implements frameWriter {
+        private static final int MIN_DELAY = 2;
+        private static final int MAX_DELAY = 0xffff;
+
+        private final OutputStream out;
+        private final int scale;
+        private final long start;
+        private final LzwEncoder lzw;
+        // the frame waiting for its delay, which is known when the next frame is different
+        private final long[] pending = new long[FrameBuffer.HEIGHT];
+        private long pendingTime;
+        private boolean hasPending = false;
+        // the image shown by the viewer after the written frames
+        private final long[] shown = new long[FrameBuffer.HEIGHT];
+        private boolean first = true;
+
+        GifWriter(File file, int scale, int[] palette, long start) throws IOException {
+            this.out = new BufferedOutputStream(new FileOutputStream(file));
+            this.scale = scale;
+            this.start = start;
+            this.lzw = new LzwEncoder(out);
+
+            out.write("GIF89a".getBytes(StandardCharsets.US_ASCII));
+            writeShort(FrameBuffer.WIDTH * scale);
+            writeShort(FrameBuffer.HEIGHT * scale);
+            // global color table of 2 colors, 8 bits per color
+            out.write(0xf0);
+            out.write(0);
+            out.write(0);
+            for(int color : palette){
+                out.write(color >> 16);
+                out.write(color >> 8);
+                out.write(color);
+            }
+            // loop forever
+            out.write(new byte[]{0x21, (byte) 0xff, 0x0b});
+            out.write("NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[]{3, 1, 0, 0, 0});
+        }
+
+        public void writeFrame(long[] rows, long time) throws IOException {
+            if(hasPending){
+                boolean same = true;
+                for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+                    same &= rows[y] == pending[y];
+                }
+                if(same){
+                    return;
+                }
+                long delay = centiseconds(time) - centiseconds(pendingTime);
+                if(delay < MIN_DELAY){
+                    // replaces the pending frame, which keeps its start
+                    System.arraycopy(rows, 0, pending, 0, FrameBuffer.HEIGHT);
+                    return;
+                }
+                writeImage((int) Math.min(delay, MAX_DELAY));
+            }
+            System.arraycopy(rows, 0, pending, 0, FrameBuffer.HEIGHT);
+            pendingTime = time;
+            hasPending = true;
+        }
+
+        public void close() throws IOException {
+            if(hasPending){
+                // the last frame for a second before the animation starts again
+                writeImage(100);
+            }
+            out.write(0x3b);
+            out.close();
+        }
+
+        private long centiseconds(long time){
+            return (time - start) / 10_000_000L;
+        }
+
+        private void writeImage(int delay) throws IOException {
+            // the rectangle which changed, the first image is complete
+            int top = 0;
+            int bottom = FrameBuffer.HEIGHT - 1;
+            long columns = -1L;
+            if(!first){
+                top = -1;
+                columns = 0;
+                for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+                    long changed = pending[y] ^ shown[y];
+                    if(changed != 0){
+                        if(top < 0){
+                            top = y;
+                        }
+                        bottom = y;
+                        columns |= changed;
+                    }
+                }
+                if(top < 0){
+                    // back to what is shown already, one pixel which doesn't change carries the delay
+                    top = 0;
+                    bottom = 0;
+                    columns = 1L << 63;
+                }
+            }
+            int left = Long.numberOfLeadingZeros(columns);
+            int right = FrameBuffer.WIDTH - 1 - Long.numberOfTrailingZeros(columns);
+            first = false;
+            System.arraycopy(pending, 0, shown, 0, FrameBuffer.HEIGHT);
+
+            // graphic control extension: disposal method 1 (the image stays), the delay
+            out.write(new byte[]{0x21, (byte) 0xf9, 4, 0x04});
+            writeShort(delay);
+            out.write(0);
+            out.write(0);
+            // image descriptor
+            out.write(0x2c);
+            writeShort(left * scale);
+            writeShort(top * scale);
+            writeShort((right - left + 1) * scale);
+            writeShort((bottom - top + 1) * scale);
+            out.write(0);
+
+            lzw.begin();
+            for(int y = top * scale; y < (bottom + 1) * scale; y++){
+                long row = pending[y / scale];
+                for(int x = left * scale; x < (right + 1) * scale; x++){
+                    lzw.add((int) ((row << (x / scale)) >>> 63));
+                }
+            }
+            lzw.end();
+        }
+
+        private void writeShort(int value) throws IOException {
+            out.write(value);
+            out.write(value >> 8);
+        }
+    }
+
+    // the LZW compression of GIF for images of 2 colors, with the smallest code size 2 which GIF allows
+    private static class LzwEncoder {
+        private static final int MIN_CODE_SIZE = 2;
+        private static final int CLEAR = 1 << MIN_CODE_SIZE;
+        private static final int END = CLEAR + 1;
+        private static final int MAX_CODES = 4096;
+
+        private final OutputStream out;
+        // the code of a known string followed by a pixel, at code * 4 + pixel, 0 if not known yet
+        private final short[] next = new short[MAX_CODES * CLEAR];
+        private final byte[] block = new byte[256];
+        private int blockLength;
+        private int bits;
+        private int bitCount;
+        private int codeSize;
+        private int nextCode;
+        private int current;
+
+        LzwEncoder(OutputStream out){
+            this.out = out;
+        }
+
+        void begin() throws IOException {
+            out.write(MIN_CODE_SIZE);
+            blockLength = 0;
+            bits = 0;
+            bitCount = 0;
+            resetTable();
+            writeCode(CLEAR);
+            current = -1;
+        }
+
+        void add(int pixel) throws IOException {
+            if(current < 0){
+                current = pixel;
+                return;
+            }
+            int known = next[current * CLEAR + pixel];
+            if(known != 0){
+                current = known;
+                return;
+            }
+            writeCode(current);
+            if(nextCode == MAX_CODES){
+                writeCode(CLEAR);
+                resetTable();
+            } else {
+                if(nextCode >= 1 << codeSize){
+                    codeSize++;
+                }
+                next[current * CLEAR + pixel] = (short) nextCode++;
+            }
+            current = pixel;
+        }
+
+        void end() throws IOException {
+            if(current >= 0){
+                writeCode(current);
+            }
+            writeCode(END);
+            if(bitCount > 0){
+                writeByte(bits);
+            }
+            flushBlock();
+            // block terminator
+            out.write(0);
+        }
+
+        private void resetTable(){
+            Arrays.fill(next, (short) 0);
+            codeSize = MIN_CODE_SIZE + 1;
+            nextCode = END + 1;
+        }
+
+        private void writeCode(int code) throws IOException {
+            bits |= code << bitCount;
+            bitCount += codeSize;
+            while(bitCount >= 8){
+                writeByte(bits & 0xff);
+                bits >>>= 8;
+                bitCount -= 8;
+            }
+        }
+
+        private void writeByte(int value) throws IOException {
+            block[blockLength++] = (byte) value;
+            if(blockLength == 255){
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if(blockLength > 0){
+                out.write(blockLength);
+                out.write(block, 0, blockLength);
+                blockLength = 0;
+            }
+        }
+    }
+
+    // binary PPM images (P6) frame-000000.ppm, frame-000001.ppm, ... in a directory, and frames.txt
+    // with the name and time of every image
+    private static class PpmWriter implements frameWriter {
+        private final File directory;
+        private final int scale;
+        private final long start;
+        private final byte[][] colors = new byte[2][];
+        private final byte[] line;
+        private final PrintWriter index;
+        private int count = 0;
+
+        PpmWriter(File directory, int scale, int[] palette, long start) throws IOException {
+            if(!directory.isDirectory() && !directory.mkdirs()){
+                throw new IOException("can't create the directory " + directory);
+            }
+            this.directory = directory;
+            this.scale = scale;
+            this.start = start;
+            for(int i = 0; i < 2; i++){
+                colors[i] = new byte[]{(byte) (palette[i] >> 16), (byte) (palette[i] >> 8), (byte) palette[i]};
+            }
+            line = new byte[3 * FrameBuffer.WIDTH * scale];
+            index = new PrintWriter(new File(directory, "frames.txt"), "US-ASCII");
+        }
+
+        public void writeFrame(long[] rows, long time) throws IOException {
+            String name = String.format("frame-%06d.ppm", count++);
+            try(OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(directory, name)))){
+                out.write(("P6\n" + FrameBuffer.WIDTH * scale + " " + FrameBuffer.HEIGHT * scale + "\n255\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+                    long row = rows[y];
+                    for(int x = 0; x < FrameBuffer.WIDTH * scale; x++){
+                        System.arraycopy(colors[(int) ((row << (x / scale)) >>> 63)], 0, line, 3 * x, 3);
+                    }
+                    for(int i = 0; i < scale; i++){
+                        out.write(line);
+                    }
+                }
+            }
+            index.printf("%s %.3f%n", name, (time - start) / 1e9);
+        }
+
+        public void close() throws IOException {
+            index.close();
+            if(index.checkError()){
+                throw new IOException("can't write " + new File(directory, "frames.txt"));
+            }
+        }
+    }
+
+}
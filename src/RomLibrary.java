@@ -0,0 +1,636 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// an index of a directory tree of ROM files: SHA-1 (as used by the CHIP-8 databases), size, the
+// instructions reachable from 0x200 by opcode, the platform they need and the features they use
+// the entries are cached in a text file (by default ~/.chip8-library) keyed by path, size and time
+// of the last change, so indexing the same directory again only reads new and changed files;
+// those are read and analyzed in parallel
+//   java -cp chip8.jar RomLibrary [--threads N] [--cache FILE] directory
+public class RomLibrary {
+
+    public static final String[] EXTENSIONS = {".ch8", ".c8", ".sc8", ".xo8"};
+    public static final File DEFAULT_CACHE = new File(System.getProperty("user.home"), ".chip8-library");
+    private static final String CACHE_HEADER = "# CHIP-8 ROM library index 1";
+    private static final String DIRECTORY_LINE = "# directory ";
+
+    public static final String CHIP8 = "CHIP-8";
+    public static final String SUPER_CHIP = "SUPER-CHIP";
+    public static final String XO_CHIP = "XO-CHIP";
+
+    // called from the threads indexing the files
+    interface progressListener {
+        void progress(int done, int total);
+    }
+
+    // what is known about one ROM file
+    public static class Entry {
+        private final File file;
+        private final long size;
+        private final long modified;
+        private final String sha1;
+        private final String platform;
+        private final String features;
+        // reachable instructions by their first nibble
+        private final int[] opcodes;
+        private final int instructions;
+
+        Entry(File file, long size, long modified, String sha1, String platform, String features, int[] opcodes){
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.sha1 = sha1;
+            this.platform = platform;
+            this.features = features;
+            this.opcodes = opcodes;
+            int sum = 0;
+            for(int count : opcodes){
+                sum += count;
+            }
+            this.instructions = sum;
+        }
+
+        public File getFile(){
+            return file;
+        }
+
+        public long getSize(){
+            return size;
+        }
+
+        public long getModified(){
+            return modified;
+        }
+
+        public String getSha1(){
+            return sha1;
+        }
+
+        public String getPlatform(){
+            return platform;
+        }
+
+        // e.g. "keys, sound, random, quirk: shift"
+        public String getFeatures(){
+            return features;
+        }
+
+        public int getOpcodeCount(int firstNibble){
+            return opcodes[firstNibble];
+        }
+
+        public int getInstructions(){
+            return instructions;
+        }
+
+        // "0:3 1:12 2:4 ...", the nibbles which occur
+        public String opcodeSummary(){
+            StringBuilder summary = new StringBuilder();
+            for(int i = 0; i < 16; i++){
+                if(opcodes[i] != 0){
+                    summary.append(summary.length() == 0 ? "" : " ").append(Integer.toHexString(i)).append(':').append(opcodes[i]);
+                }
+            }
+            return summary.toString();
+        }
+
+        private boolean matches(File file){
+            return file.length() == size && file.lastModified() == modified;
+        }
+    }
+
+    private final File cacheFile;
+    // by absolute path
+    private final Map<String, Entry> cache = new HashMap<>();
+    private File lastDirectory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    // statistics of the last index
+    private int reused = 0;
+    private int analyzed = 0;
+    private int failed = 0;
+
+    // constructor
+    // reads the cache file if there is one
+    public RomLibrary(File cacheFile) throws IOException {
+        this.cacheFile = cacheFile;
+        if(cacheFile.exists()){
+            readCache();
+        }
+    }
+
+    // methods
+
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    // the directory indexed last, from the cache, null if there is none
+    public File getLastDirectory(){
+        return lastDirectory;
+    }
+
+    // the entries of the cache below the directory, without looking at the files, e.g. to show
+    // the library at once while it's indexed again
+    public synchronized List<Entry> cachedEntries(File directory){
+        String prefix = directory.getAbsolutePath() + File.separator;
+        List<Entry> entries = new ArrayList<>();
+        for(Entry entry : cache.values()){
+            if(entry.file.getAbsolutePath().startsWith(prefix)){
+                entries.add(entry);
+            }
+        }
+        entries.sort(Comparator.comparing(Entry::getFile));
+        return entries;
+    }
+
+    // finds the ROM files below the directory, analyzes the new and changed ones in parallel and
+    // returns all entries sorted by path; the cache file is written if anything changed
+    public List<Entry> index(File directory, progressListener listener) throws IOException {
+        List<File> files = findRoms(directory);
+        List<Entry> entries = new ArrayList<>();
+        List<File> changedFiles = new ArrayList<>();
+        synchronized(this) {
+            for(File file : files){
+                Entry cached = cache.get(file.getAbsolutePath());
+                if(cached != null && cached.matches(file)){
+                    entries.add(cached);
+                } else {
+                    changedFiles.add(file);
+                }
+            }
+        }
+        List<AnalyzeTask> tasks = new ArrayList<>();
+        AtomicInteger done = new AtomicInteger();
+        for(File file : changedFiles){
+            tasks.add(new AnalyzeTask(file, listener, done, changedFiles.size()));
+        }
+        reused = entries.size();
+
+        if(!tasks.isEmpty()){
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new RecursiveAction(){
+                    protected void compute(){
+                        invokeAll(tasks);
+                    }
+                });
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        analyzed = 0;
+        failed = 0;
+        boolean changed = !directory.getAbsoluteFile().equals(lastDirectory);
+        synchronized(this) {
+            for(AnalyzeTask task : tasks){
+                if(task.entry != null){
+                    entries.add(task.entry);
+                    cache.put(task.file.getAbsolutePath(), task.entry);
+                    analyzed++;
+                    changed = true;
+                } else {
+                    failed++;
+                }
+            }
+            // files which are gone
+            String prefix = directory.getAbsolutePath() + File.separator;
+            changed |= cache.keySet().removeIf(path -> path.startsWith(prefix) && !new File(path).isFile());
+            lastDirectory = directory.getAbsoluteFile();
+        }
+        if(changed){
+            writeCache();
+        }
+        entries.sort(Comparator.comparing(Entry::getFile));
+        return entries;
+    }
+
+    public int getReused(){
+        return reused;
+    }
+
+    public int getAnalyzed(){
+        return analyzed;
+    }
+
+    public int getFailed(){
+        return failed;
+    }
+
+    // one file, read and analyzed on a thread of the pool
+    private static class AnalyzeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final File file;
+        final progressListener listener;
+        // the tasks done and the number of tasks, shared by all tasks of an index
+        final AtomicInteger done;
+        final int total;
+        Entry entry;
+
+        AnalyzeTask(File file, progressListener listener, AtomicInteger done, int total){
+            this.file = file;
+            this.listener = listener;
+            this.done = done;
+            this.total = total;
+        }
+
+        protected void compute(){
+            try {
+                entry = analyze(file);
+            } catch(IOException e) {
+                // unreadable, e.g. removed while indexing, it's left out
+                entry = null;
+            }
+            int count = done.incrementAndGet();
+            if(listener != null){
+                listener.progress(count, total);
+            }
+        }
+    }
+
+    // reads and analyzes one ROM file
+    public static Entry analyze(File file) throws IOException {
+        // the time before reading, if the file changes meanwhile the next index reads it again
+        long modified = file.lastModified();
+        byte[] rom = Files.readAllBytes(file.toPath());
+        int[] opcodes = new int[16];
+        StringBuilder features = new StringBuilder();
+        String platform = analyzeCode(rom, opcodes, features);
+        return new Entry(file.getAbsoluteFile(), rom.length, modified, sha1(rom), platform, features.toString(), opcodes);
+    }
+
+    public static String sha1(byte[] data){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder();
+            for(byte b : digest.digest(data)){
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch(NoSuchAlgorithmException e) {
+            // every Java has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the names of the features, in the order of the bits
+    private static final String[] FEATURES = {"keys", "sound", "delay timer", "random", "subroutines", "BCD", "font",
+            "machine code", "unknown opcodes", "shift quirk", "load/store quirk", "jump quirk", "VF reset quirk"};
+    private static final int KEYS = 1, SOUND = 1 << 1, DELAY = 1 << 2, RANDOM = 1 << 3, SUBROUTINES = 1 << 4,
+            BCD = 1 << 5, FONT = 1 << 6, MACHINE_CODE = 1 << 7, UNKNOWN = 1 << 8, SHIFT_QUIRK = 1 << 9,
+            LOAD_STORE_QUIRK = 1 << 10, JUMP_QUIRK = 1 << 11, VF_RESET_QUIRK = 1 << 12;
+
+    // follows the code from 0x200 through jumps, calls and skips, counts the reachable instructions
+    // by their first nibble, appends the features they use and returns the platform they need
+    // data is never mistaken for code this way, but code which is only reached by bnnn or written by
+    // the program itself isn't seen
+    static String analyzeCode(byte[] rom, int[] opcodes, StringBuilder features){
+        boolean[] visited = new boolean[rom.length];
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(0x200);
+        boolean superChip = false;
+        boolean xoChip = false;
+        int found = 0;
+        while(!pending.isEmpty()){
+            int address = pending.pop();
+            int offset = address - 0x200;
+            if(offset < 0 || offset + 1 >= rom.length || visited[offset]){
+                continue;
+            }
+            visited[offset] = true;
+            int opcode = (rom[offset] & 0xff) << 8 | rom[offset + 1] & 0xff;
+            int nnn = opcode & 0xfff;
+            int nn = opcode & 0xff;
+            int n = opcode & 0xf;
+            opcodes[opcode >> 12]++;
+            // the size of the next instruction, for skips: XO-CHIP's f000 nnnn is 4 bytes
+            int next = offset + 3 < rom.length && rom[offset + 2] == (byte) 0xf0 && rom[offset + 3] == 0 ? 4 : 2;
+            switch(opcode >> 12){
+                case 0x0:
+                    if(opcode == 0x00ee){
+                        continue;
+                    }
+                    if(opcode == 0x00fd){
+                        // exit
+                        superChip = true;
+                        continue;
+                    }
+                    if(opcode == 0x00e0){
+                        break;
+                    }
+                    if((opcode & 0xfff0) == 0x00c0 || opcode == 0x00fb || opcode == 0x00fc || opcode == 0x00fe || opcode == 0x00ff){
+                        superChip = true;
+                    } else if((opcode & 0xfff0) == 0x00d0){
+                        xoChip = true;
+                    } else {
+                        // 0nnn runs machine code of the original computer
+                        found |= MACHINE_CODE;
+                        continue;
+                    }
+                    break;
+                case 0x1:
+                    pending.push(nnn);
+                    continue;
+                case 0x2:
+                    found |= SUBROUTINES;
+                    pending.push(address + 2);
+                    pending.push(nnn);
+                    continue;
+                case 0x3:
+                case 0x4:
+                    pending.push(address + 2 + next);
+                    break;
+                case 0x5:
+                    if(n == 2 | n == 3){
+                        // save and load of a range of registers
+                        xoChip = true;
+                    } else if(n == 0){
+                        pending.push(address + 2 + next);
+                    } else {
+                        found |= UNKNOWN;
+                        continue;
+                    }
+                    break;
+                case 0x9:
+                    if(n != 0){
+                        found |= UNKNOWN;
+                        continue;
+                    }
+                    pending.push(address + 2 + next);
+                    break;
+                case 0x8:
+                    if(n == 0x6 | n == 0xe){
+                        found |= SHIFT_QUIRK;
+                    } else if(n >= 0x1 & n <= 0x3){
+                        found |= VF_RESET_QUIRK;
+                    } else if(n > 0x7){
+                        found |= UNKNOWN;
+                        continue;
+                    }
+                    break;
+                case 0xb:
+                    // the target depends on a register and the quirk
+                    found |= JUMP_QUIRK;
+                    continue;
+                case 0xc:
+                    found |= RANDOM;
+                    break;
+                case 0xd:
+                    // 16x16 sprite
+                    superChip |= n == 0;
+                    break;
+                case 0xe:
+                    if(nn != 0x9e & nn != 0xa1){
+                        found |= UNKNOWN;
+                        continue;
+                    }
+                    found |= KEYS;
+                    pending.push(address + 2 + next);
+                    break;
+                case 0xf:
+                    if(opcode == 0xf000){
+                        // load a 16 bit address, the instruction is 4 bytes
+                        xoChip = true;
+                        pending.push(address + 4);
+                        continue;
+                    }
+                    switch(nn){
+                        case 0x07:
+                        case 0x15:
+                            found |= DELAY;
+                            break;
+                        case 0x0a:
+                            found |= KEYS;
+                            break;
+                        case 0x18:
+                            found |= SOUND;
+                            break;
+                        case 0x1e:
+                            break;
+                        case 0x29:
+                            found |= FONT;
+                            break;
+                        case 0x33:
+                            found |= BCD;
+                            break;
+                        case 0x55:
+                        case 0x65:
+                            found |= LOAD_STORE_QUIRK;
+                            break;
+                        case 0x30:
+                        case 0x75:
+                        case 0x85:
+                            // big font and the flag registers
+                            superChip = true;
+                            break;
+                        case 0x01:
+                        case 0x02:
+                        case 0x3a:
+                            // planes and the audio pattern
+                            xoChip = true;
+                            break;
+                        default:
+                            found |= UNKNOWN;
+                            continue;
+                    }
+                    break;
+                default:
+                    // 6, 7 and a are always valid
+                    break;
+            }
+            pending.push(address + 2);
+        }
+        for(int i = 0; i < FEATURES.length; i++){
+            if((found & 1 << i) != 0){
+                features.append(features.length() == 0 ? "" : ", ").append(FEATURES[i]);
+            }
+        }
+        return xoChip ? XO_CHIP : superChip ? SUPER_CHIP : CHIP8;
+    }
+
+    // the files with one of the EXTENSIONS below the directory, sorted by path
+    public static List<File> findRoms(File directory) throws IOException {
+        List<File> roms = new ArrayList<>();
+        try(Stream<Path> walk = Files.walk(directory.toPath())){
+            Iterator<Path> files = walk.sorted().iterator();
+            while(files.hasNext()){
+                Path rom = files.next();
+                String name = rom.getFileName().toString().toLowerCase(Locale.ROOT);
+                for(String extension : EXTENSIONS){
+                    if(name.endsWith(extension) && Files.isRegularFile(rom)){
+                        roms.add(rom.toFile().getAbsoluteFile());
+                        break;
+                    }
+                }
+            }
+        }
+        return roms;
+    }
+
+    // one line per entry, the path last as it may contain anything:
+    //   sha1  size  modified  platform  opcodes by first nibble  features  path
+    // separated by tabs, lines of another version of the file are ignored
+    private void readCache() throws IOException {
+        try(BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)){
+            if(!CACHE_HEADER.equals(reader.readLine())){
+                return;
+            }
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.startsWith(DIRECTORY_LINE)){
+                    lastDirectory = new File(line.substring(DIRECTORY_LINE.length()));
+                    continue;
+                }
+                String[] fields = line.split("\t", 7);
+                if(fields.length != 7){
+                    continue;
+                }
+                try {
+                    String[] counts = fields[4].split(",");
+                    if(counts.length != 16){
+                        continue;
+                    }
+                    int[] opcodes = new int[16];
+                    for(int i = 0; i < 16; i++){
+                        opcodes[i] = Integer.parseInt(counts[i]);
+                    }
+                    File file = new File(fields[6]);
+                    cache.put(file.getAbsolutePath(), new Entry(file, Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[0], fields[3], fields[5], opcodes));
+                } catch(NumberFormatException e) {
+                    // a damaged line, the file is analyzed again
+                }
+            }
+        }
+    }
+
+    // writes a new file and moves it over the old one, so that a crash never leaves half a cache
+    private void writeCache() throws IOException {
+        File directory = cacheFile.getAbsoluteFile().getParentFile();
+        Path temporary = Files.createTempFile(directory.toPath(), cacheFile.getName(), ".tmp");
+        try {
+            try(BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)){
+                writer.write(CACHE_HEADER);
+                writer.newLine();
+                synchronized(this) {
+                    if(lastDirectory != null){
+                        writer.write(DIRECTORY_LINE + lastDirectory.getPath());
+                        writer.newLine();
+                    }
+                    for(Entry entry : cache.values()){
+                        StringBuilder counts = new StringBuilder();
+                        for(int i = 0; i < 16; i++){
+                            counts.append(i == 0 ? "" : ",").append(entry.opcodes[i]);
+                        }
+                        writer.write(entry.sha1 + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.platform + "\t"
+                                + counts + "\t" + entry.features + "\t" + entry.file.getAbsolutePath());
+                        writer.newLine();
+                    }
+                }
+            }
+            Files.move(temporary, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void printUsage(PrintStream out){
+        out.println("usage: java -cp chip8.jar RomLibrary [options] directory");
+        out.println("  --cache FILE          the index, default " + DEFAULT_CACHE);
+        out.println("  --threads N           default the number of processors");
+    }
+
+    public static void main(String[] args) throws IOException {
+        File cacheFile = DEFAULT_CACHE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File directory = null;
+        try {
+            for(int i = 0; i < args.length; i++){
+                String arg = args[i];
+                if(!arg.startsWith("--")){
+                    directory = new File(arg);
+                    continue;
+                }
+                if(arg.equals("--help")){
+                    printUsage(System.out);
+                    return;
+                }
+                if(i + 1 >= args.length){
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch(arg){
+                    case "--cache":
+                        cacheFile = new File(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+            if(directory == null || !directory.isDirectory()){
+                throw new IllegalArgumentException("no ROM directory given");
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        RomLibrary library = new RomLibrary(cacheFile);
+        library.setThreads(threads);
+        List<Entry> entries = library.index(directory, null);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Path base = directory.getAbsoluteFile().toPath();
+        for(Entry entry : entries){
+            System.out.printf("%-10s %6d %5d  %.12s  %-40s %s%n", entry.platform, entry.size, entry.instructions,
+                    entry.sha1, base.relativize(entry.file.toPath()), entry.features);
+        }
+        System.out.printf("%d ROMs in %.3f s on %d threads: %d from the index, %d analyzed, %d unreadable%n",
+                entries.size(), elapsed, threads, library.getReused(), library.getAnalyzed(), library.getFailed());
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+// run-ahead hides the lag of programs which read the keys once per loop: at the end of every frame
+// the machine is forked, the fork runs some frames further with the keys pressed now, and its screen
+// is shown instead of the current one
+// the fork is the snapshot and dropping it is the restore, the machine itself is never touched by
+// the frames run ahead; a fork shares the memory pages copy-on-write, so it costs about a microsecond
+// plus the frames run ahead
+// if running ahead takes longer than the budget for OVER_BUDGET_FRAMES frames in a row, the computer
+// can't keep up and the mode turns itself off
+// every fork and its frames is a chip8.Snapshot JFR event
+public class RunAhead {
+
+    public static final int MAX_FRAMES = 4;
+    public static final double DEFAULT_BUDGET_MILLIS = 8.0;
+    private static final int OVER_BUDGET_FRAMES = 30;
+
+    // 0 is off
+    private volatile int frames = 0;
+    private volatile long budgetNanos = (long) (DEFAULT_BUDGET_MILLIS * 1_000_000);
+    // why the mode turned itself off, null if it didn't
+    private volatile String disabledReason;
+    private int overBudget = 0;
+    // the screen shown last, to present the screen of a fork only when it changed
+    private final long[] shownRows = new long[FrameBuffer.HEIGHT];
+    private boolean shown = false;
+
+    // the time of the fork and the frames run ahead
+    private final LatencyHistogram costs = new LatencyHistogram("Run-ahead");
+
+    // methods
+
+    // the number of frames to run ahead, 0 turns run-ahead off
+    public void setFrames(int frames){
+        if(frames < 0 || frames > MAX_FRAMES){
+            throw new IllegalArgumentException("run-ahead must be 0 to " + MAX_FRAMES + " frames, got " + frames);
+        }
+        this.frames = frames;
+        overBudget = 0;
+        if(frames > 0){
+            disabledReason = null;
+        }
+    }
+
+    public int getFrames(){
+        return frames;
+    }
+
+    public boolean isEnabled(){
+        return frames > 0;
+    }
+
+    public void setBudgetMillis(double budgetMillis){
+        budgetNanos = (long) (budgetMillis * 1_000_000);
+    }
+
+    public double getBudgetMillis(){
+        return budgetNanos / 1e6;
+    }
+
+    // runs the fork of the machine ahead and returns it, or null if run-ahead is off (or turned itself off)
+    // the caller must make sure that nothing changes the machine while it's forked
+    public Machine run(Machine machine, int instructionsPerFrame){
+        int ahead = frames;
+        if(ahead == 0){
+            shown = false;
+            return null;
+        }
+        Chip8Events.Snapshot snapshotEvent = new Chip8Events.Snapshot();
+        snapshotEvent.begin();
+        long start = System.nanoTime();
+        Machine future = machine.fork();
+        future.setInstructionsPerFrame(instructionsPerFrame);
+        int framesRun = 0;
+        while(framesRun < ahead){
+            framesRun++;
+            if(future.runFrame(CPU.STOP_FAULT) == CPU.STOP_FAULT){
+                // the program fails in the future, the machine itself will stop there
+                break;
+            }
+        }
+        long cost = System.nanoTime() - start;
+        costs.record(cost);
+        snapshotEvent.end();
+        if(snapshotEvent.shouldCommit()){
+            snapshotEvent.frames = framesRun;
+            snapshotEvent.pagesShared = 4096 / Memory.PAGE_SIZE - future.getMemory().getOwnedPages();
+            snapshotEvent.commit();
+        }
+
+        if(cost > budgetNanos){
+            overBudget++;
+            if(overBudget >= OVER_BUDGET_FRAMES){
+                frames = 0;
+                shown = false;
+                disabledReason = String.format("run-ahead of %d frames took %.2f ms per frame, more than the budget of %.2f ms",
+                        ahead, cost / 1e6, budgetNanos / 1e6);
+                return null;
+            }
+        } else {
+            overBudget = 0;
+        }
+        return future;
+    }
+
+    // whether the screen of the fork differs from the screen shown before, then it's remembered as shown
+    public boolean screenChanged(Machine future){
+        FrameBuffer frameBuffer = future.getFrameBuffer();
+        boolean changed = !shown;
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            long row = frameBuffer.getRow(y);
+            changed |= row != shownRows[y];
+            shownRows[y] = row;
+        }
+        shown = true;
+        return changed;
+    }
+
+    public String getDisabledReason(){
+        return disabledReason;
+    }
+
+    public LatencyHistogram getCosts(){
+        return costs;
+    }
+
+    // for the frame times window
+    public String statusHtml(){
+        if(disabledReason != null){
+            return "Run-ahead turned off: " + disabledReason;
+        }
+        if(frames == 0){
+            return "Run-ahead: off";
+        }
+        return String.format("Run-ahead: %d frames, budget %.1f ms per frame", frames, budgetNanos / 1e6);
+    }
+
+}
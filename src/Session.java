@@ -0,0 +1,232 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// one program running for one client of the session server
+// the messages are binary, every message starts with its type:
+//   client to server: 'L' u16 length, ROM bytes    load (and start) a program
+//                     'K' u8 key, u8 1=down 0=up   key event
+//                     'R'                          reset the program
+//   server to client: 'F' u64 frame, 32 x u64 rows the screen after a frame in which it changed,
+//                                                  pixel x of a row is bit 63 - x
+//                     'E' u16 length, UTF-8 text   error, e.g. a fault of the program, after an invalid
+//                                                  message the connection is closed
+// the machine is only touched by the worker running the session's frame, the selector thread
+// hands the messages over through the pending fields
+public class Session {
+
+    public static final byte LOAD_ROM = 'L';
+    public static final byte KEY = 'K';
+    public static final byte RESET = 'R';
+    public static final byte FRAME = 'F';
+    public static final byte ERROR = 'E';
+
+    public static final int FRAME_MESSAGE_SIZE = 1 + 8 + 8 * FrameBuffer.HEIGHT;
+    public static final int MAX_ROM_SIZE = 4096 - 0x200;
+
+    final SocketChannel channel;
+    final Machine machine = new Machine();
+
+    private final ByteBuffer input = ByteBuffer.allocate(3 + MAX_ROM_SIZE);
+    // one frame at a time, a frame is skipped if the previous one hasn't been sent yet
+    private final ByteBuffer output = ByteBuffer.allocate(FRAME_MESSAGE_SIZE + 3 + 256);
+
+    // handed over from the selector thread to the worker, taken with getAndSet so that a message
+    // arriving while the worker takes the previous one isn't lost
+    private final AtomicReference<byte[]> pendingRom = new AtomicReference<>();
+    private final AtomicBoolean pendingReset = new AtomicBoolean(false);
+    // the selector thread is the only producer of key events
+    private final KeyEventQueue pendingKeys = machine.keypad.createEventQueue();
+
+    private byte[] rom;
+    private boolean screenChanged = false;
+    private volatile boolean closed = false;
+
+    // set by the scheduler, a session is either in the run queue or parked until a message arrives
+    boolean scheduled = false;
+    // set by the worker if nothing will change until the next message
+    boolean idle = false;
+    // time the session went over its budget, paid back by skipping frames
+    private long debtNanos = 0;
+
+    // statistics
+    long frames = 0;
+    long throttledFrames = 0;
+    long skippedFrames = 0;
+
+    // constructor
+    public Session(SocketChannel channel){
+        this.channel = channel;
+    }
+
+    // methods
+
+    // reads what is available, returns the number of complete messages for the worker
+    // or -1 if the connection has to be closed
+    int readMessages() throws IOException {
+        if(channel.read(input) < 0){
+            return -1;
+        }
+        input.flip();
+        int received = 0;
+        while(input.hasRemaining()){
+            int start = input.position();
+            byte type = input.get();
+            if(type == KEY){
+                if(input.remaining() < 2){
+                    input.position(start);
+                    break;
+                }
+                int key = input.get() & 0xf;
+                boolean down = input.get() != 0;
+                pendingKeys.offer(key, down);
+            } else if(type == RESET){
+                pendingReset.set(true);
+            } else if(type == LOAD_ROM){
+                if(input.remaining() < 2){
+                    input.position(start);
+                    break;
+                }
+                int length = input.getShort() & 0xffff;
+                if(length > MAX_ROM_SIZE){
+                    sendError("ROM too large: " + length + " bytes");
+                    return -1;
+                }
+                if(input.remaining() < length){
+                    input.position(start);
+                    break;
+                }
+                byte[] newRom = new byte[length];
+                input.get(newRom);
+                pendingRom.set(newRom);
+            } else {
+                sendError("unknown message type " + (type & 0xff));
+                return -1;
+            }
+            received++;
+        }
+        input.compact();
+        return received;
+    }
+
+    // runs one frame on a worker thread, budgetInstructions caps the instructions of the frame and
+    // a frame taking longer than budgetNanos is paid back by skipping frames later on
+    void runFrame(int budgetInstructions, long budgetNanos){
+        byte[] newRom = pendingRom.getAndSet(null);
+        if(newRom != null){
+            rom = newRom;
+            machine.loadRom(rom);
+            screenChanged = true;
+        }
+        if(pendingReset.getAndSet(false)){
+            if(rom != null){
+                machine.loadRom(rom);
+                screenChanged = true;
+            }
+        }
+        machine.keypad.applyQueuedEvents();
+
+        if(rom == null){
+            idle = true;
+            return;
+        }
+        if(debtNanos > 0){
+            debtNanos -= budgetNanos;
+            throttledFrames++;
+            idle = false;
+            return;
+        }
+
+        long start = System.nanoTime();
+        int reason = machine.runFrame(Math.min(machine.getInstructionsPerFrame(), budgetInstructions), CPU.STOP_FAULT);
+        long elapsed = System.nanoTime() - start;
+        if(elapsed > budgetNanos){
+            debtNanos += elapsed - budgetNanos;
+        }
+        frames++;
+
+        screenChanged |= machine.cpu.pollScreenChanged();
+        if(screenChanged){
+            screenChanged = !queueFrame();
+        }
+
+        if(reason == CPU.STOP_FAULT){
+            sendError(machine.cpu.getFault().getMessage());
+            idle = true;
+            return;
+        }
+        // waiting for a key or halted with nothing left to count down
+        int idleState = machine.cpu.getIdleState();
+        idle = (idleState == CPU.IDLE_KEY_WAIT | idleState == CPU.IDLE_HALTED)
+                && machine.cpu.getDelayTimer() == 0 && machine.cpu.getSoundTimer() == 0
+                && !screenChanged && pendingKeys.isEmpty() && pendingRom.get() == null && !pendingReset.get();
+    }
+
+    // puts the screen into the output buffer, returns false if the previous frame is still being sent
+    private synchronized boolean queueFrame(){
+        if(output.position() > 0){
+            skippedFrames++;
+            return false;
+        }
+        output.put(FRAME);
+        output.putLong(machine.getFrames());
+        for(int y = 0; y < FrameBuffer.HEIGHT; y++){
+            output.putLong(machine.frameBuffer.getRow(y));
+        }
+        return true;
+    }
+
+    private synchronized void sendError(String message){
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, 256);
+        if(output.remaining() >= 3 + length){
+            output.put(ERROR);
+            output.putShort((short) length);
+            output.put(text, 0, length);
+        }
+    }
+
+    synchronized boolean hasOutput(){
+        return output.position() > 0;
+    }
+
+    // writes as much as the socket takes, returns true if everything was written
+    synchronized boolean writeOutput() throws IOException {
+        output.flip();
+        channel.write(output);
+        output.compact();
+        return output.position() == 0;
+    }
+
+    boolean isClosed(){
+        return closed;
+    }
+
+    void close(){
+        closed = true;
+        try {
+            channel.close();
+        } catch(IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+}
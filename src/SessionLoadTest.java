@@ -0,0 +1,256 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+// opens many sessions on a session server, presses random keys and measures the frames that arrive
+//   java -cp chip8.jar SessionLoadTest [options] rom.ch8
+// all connections are served by one selector thread, like on the server
+public class SessionLoadTest {
+
+    public static final int DEFAULT_SESSIONS = 1000;
+    public static final int DEFAULT_SECONDS = 20;
+    // every session presses a random key for a few frames about every second
+    private static final long KEY_INTERVAL_NANOS = 1_000_000_000L;
+    private static final long KEY_HOLD_NANOS = 100_000_000L;
+
+    private static void printUsage(PrintStream out){
+        out.println("usage: java -cp chip8.jar SessionLoadTest [options] rom.ch8");
+        out.println("  --host HOST           default localhost");
+        out.println("  --port N              default " + SessionServer.DEFAULT_PORT);
+        out.println("  --sessions N          default " + DEFAULT_SESSIONS);
+        out.println("  --seconds N           duration of the measurement, default " + DEFAULT_SECONDS);
+    }
+
+    // one connection of the load test
+    static class Client {
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(64 * Session.FRAME_MESSAGE_SIZE);
+        final ByteBuffer output = ByteBuffer.allocate(4096);
+        long firstFrame = -1;
+        long lastFrame = -1;
+        long framesReceived = 0;
+        long errors = 0;
+        long nextKeyEvent;
+        int pressedKey = -1;
+
+        Client(SocketChannel channel, long nextKeyEvent){
+            this.channel = channel;
+            this.nextKeyEvent = nextKeyEvent;
+        }
+
+        void readMessages() throws IOException {
+            if(channel.read(input) < 0){
+                throw new IOException("connection closed by the server");
+            }
+            input.flip();
+            while(input.hasRemaining()){
+                int start = input.position();
+                byte type = input.get();
+                if(type == Session.FRAME){
+                    if(input.remaining() < Session.FRAME_MESSAGE_SIZE - 1){
+                        input.position(start);
+                        break;
+                    }
+                    long frame = input.getLong();
+                    input.position(input.position() + 8 * FrameBuffer.HEIGHT);
+                    if(firstFrame < 0){
+                        firstFrame = frame;
+                    }
+                    lastFrame = frame;
+                    framesReceived++;
+                } else if(type == Session.ERROR){
+                    if(input.remaining() < 2 || input.remaining() < 2 + (input.getShort(input.position()) & 0xffff)){
+                        input.position(start);
+                        break;
+                    }
+                    int length = input.getShort() & 0xffff;
+                    input.position(input.position() + length);
+                    errors++;
+                } else {
+                    throw new IOException("unknown message type " + (type & 0xff));
+                }
+            }
+            input.compact();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = "localhost";
+        int port = SessionServer.DEFAULT_PORT;
+        int sessions = DEFAULT_SESSIONS;
+        int seconds = DEFAULT_SECONDS;
+        String romPath = null;
+        try {
+            for(int i = 0; i < args.length; i++){
+                String arg = args[i];
+                if(!arg.startsWith("--")){
+                    romPath = arg;
+                    continue;
+                }
+                if(arg.equals("--help")){
+                    printUsage(System.out);
+                    return;
+                }
+                if(i + 1 >= args.length){
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch(arg){
+                    case "--host":
+                        host = value;
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--sessions":
+                        sessions = Integer.parseInt(value);
+                        break;
+                    case "--seconds":
+                        seconds = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+            if(romPath == null){
+                throw new IllegalArgumentException("no ROM given");
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        byte[] rom = Files.readAllBytes(new File(romPath).toPath());
+        if(rom.length > Session.MAX_ROM_SIZE){
+            System.err.println("ROM too large: " + rom.length + " bytes");
+            System.exit(2);
+            return;
+        }
+
+        Selector selector = Selector.open();
+        List<Client> clients = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        int failed = 0;
+        for(int s = 0; s < sessions; s++){
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                // the key events are spread evenly over the interval
+                Client client = new Client(channel, connectStart + KEY_INTERVAL_NANOS * s / sessions);
+                client.output.put(Session.LOAD_ROM).putShort((short) rom.length).put(rom);
+                channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, client);
+                clients.add(client);
+            } catch(IOException e) {
+                failed++;
+            }
+        }
+        System.out.printf("%d sessions connected in %.0f ms, %d failed%n",
+                clients.size(), (System.nanoTime() - connectStart) / 1e6, failed);
+
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long closed = 0;
+        long now;
+        while((now = System.nanoTime()) < end){
+            selector.select(10);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                try {
+                    if(key.isReadable()){
+                        client.readMessages();
+                    }
+                    if(key.isValid() && key.isWritable()){
+                        client.output.flip();
+                        client.channel.write(client.output);
+                        client.output.compact();
+                        if(client.output.position() == 0){
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                } catch(IOException e) {
+                    key.cancel();
+                    client.channel.close();
+                    closed++;
+                }
+            }
+
+            // key presses and releases
+            for(Client client : clients){
+                if(now < client.nextKeyEvent || !client.channel.isOpen() || client.output.remaining() < 3){
+                    continue;
+                }
+                if(client.pressedKey < 0){
+                    client.pressedKey = random.nextInt(16);
+                    client.output.put(Session.KEY).put((byte) client.pressedKey).put((byte) 1);
+                    client.nextKeyEvent = now + KEY_HOLD_NANOS;
+                } else {
+                    client.output.put(Session.KEY).put((byte) client.pressedKey).put((byte) 0);
+                    client.pressedKey = -1;
+                    client.nextKeyEvent = now + KEY_INTERVAL_NANOS - KEY_HOLD_NANOS;
+                }
+                client.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+        double elapsed = (now - start) / 1e9;
+
+        // the frame numbers come from the server, so they count the emulated frames
+        // even if the screen didn't change (and no frame was sent) in between
+        long framesReceived = 0;
+        long errors = 0;
+        double slowest = Double.MAX_VALUE;
+        double sum = 0;
+        int measured = 0;
+        for(Client client : clients){
+            framesReceived += client.framesReceived;
+            errors += client.errors;
+            if(client.firstFrame >= 0){
+                double rate = (client.lastFrame - client.firstFrame) / elapsed;
+                slowest = Math.min(slowest, rate);
+                sum += rate;
+                measured++;
+            }
+            client.channel.close();
+        }
+        selector.close();
+
+        System.out.printf("%d frames received in %.1f s (%.0f/s), %d errors, %d connections closed by the server%n",
+                framesReceived, elapsed, framesReceived / elapsed, errors, closed);
+        if(measured > 0){
+            System.out.printf("emulated frames per second and session: mean %.1f, slowest %.1f (%d sessions sent frames)%n",
+                    sum / measured, slowest, measured);
+        }
+    }
+
+}
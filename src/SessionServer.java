@@ -0,0 +1,406 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// runs many programs at once for clients connecting over TCP (see Session for the protocol)
+//   java -jar chip8.jar --server [options]
+// a session is a small object, not a thread: a ticker thread runs one frame of every session that
+// isn't idle 60 times per second, spread over a few worker threads, and one selector thread does
+// all the network input and output, so ten thousands of sessions need only a handful of threads
+// every session gets exactly one frame per tick (the order is rotated every tick), the instructions
+// of a frame are capped and a session taking longer than its time budget skips frames to pay it back
+// sessions waiting for a key press (or halted) are taken out of the run queue until a message arrives
+public class SessionServer {
+
+    public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+    public static final int DEFAULT_PORT = 6464;
+    public static final int DEFAULT_MAX_SESSIONS = 20_000;
+    public static final int DEFAULT_BUDGET_INSTRUCTIONS = 1000;
+    public static final int DEFAULT_BUDGET_MICROS = 500;
+
+    // more tasks than workers, so that a worker with quick sessions can take over another task
+    private static final int TASKS_PER_WORKER = 4;
+    private static final int MAX_LAG_FRAMES = 4;
+    private static final long STATS_INTERVAL_NANOS = 5_000_000_000L;
+
+    private final String bindAddress;
+    private final int port;
+    private final int workers;
+    private final int maxSessions;
+    private final int budgetInstructions;
+    private final long budgetNanos;
+    private final int instructionsPerFrame;
+    private final PrintStream log;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private final ExecutorService workerPool;
+
+    // sessions that received a message, handed from the selector thread to the ticker
+    private final ConcurrentLinkedQueue<Session> wokenUp = new ConcurrentLinkedQueue<>();
+    // sessions with something to send, handed from the workers to the selector thread
+    private final ConcurrentLinkedQueue<Session> toWrite = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connected = new AtomicInteger();
+
+    // the ticker's run queue
+    private final List<Session> runQueue = new ArrayList<>();
+    private int rotation = 0;
+    private final LatencyHistogram tickTimes = new LatencyHistogram("Tick time");
+    private long droppedTicks = 0;
+    private long sessionFrames = 0;
+
+    private volatile boolean running = true;
+
+    // constructor
+    public SessionServer(String bindAddress, int port, int workers, int maxSessions, int budgetInstructions, int budgetMicros,
+                         int instructionsPerFrame, PrintStream log){
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.workers = workers;
+        this.maxSessions = maxSessions;
+        this.budgetInstructions = budgetInstructions;
+        this.budgetNanos = budgetMicros * 1000L;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.log = log;
+        workerPool = Executors.newFixedThreadPool(workers, new DaemonThreadFactory("chip8-worker-"));
+    }
+
+    // methods
+
+    private static void printUsage(PrintStream out){
+        out.println("usage: java -jar chip8.jar --server [options]");
+        out.println("  --bind ADDRESS        address to listen on, default " + DEFAULT_BIND_ADDRESS + " (only this computer)");
+        out.println("  --port N              TCP port, default " + DEFAULT_PORT);
+        out.println("  --workers N           threads running the sessions, default the number of processors");
+        out.println("  --max-sessions N      default " + DEFAULT_MAX_SESSIONS);
+        out.println("  --ipf N               instructions per frame, default " + Machine.DEFAULT_INSTRUCTIONS_PER_FRAME);
+        out.println("  --budget N            at most N instructions per session and frame, default " + DEFAULT_BUDGET_INSTRUCTIONS);
+        out.println("  --budget-us N         time budget per session and frame, default " + DEFAULT_BUDGET_MICROS);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String bindAddress = DEFAULT_BIND_ADDRESS;
+        int port = DEFAULT_PORT;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int maxSessions = DEFAULT_MAX_SESSIONS;
+        int budgetInstructions = DEFAULT_BUDGET_INSTRUCTIONS;
+        int budgetMicros = DEFAULT_BUDGET_MICROS;
+        int instructionsPerFrame = Machine.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        try {
+            for(int i = 0; i < args.length; i++){
+                String arg = args[i];
+                if(arg.equals("--help")){
+                    printUsage(System.out);
+                    return;
+                }
+                if(i + 1 >= args.length){
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                if(arg.equals("--bind")){
+                    bindAddress = args[++i];
+                    continue;
+                }
+                int value = Integer.parseInt(args[++i]);
+                switch(arg){
+                    case "--port":
+                        port = value;
+                        break;
+                    case "--workers":
+                        workers = value;
+                        break;
+                    case "--max-sessions":
+                        maxSessions = value;
+                        break;
+                    case "--ipf":
+                        instructionsPerFrame = value;
+                        break;
+                    case "--budget":
+                        budgetInstructions = value;
+                        break;
+                    case "--budget-us":
+                        budgetMicros = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        SessionServer server = new SessionServer(bindAddress, port, workers, maxSessions, budgetInstructions, budgetMicros,
+                instructionsPerFrame, System.out);
+        server.start();
+    }
+
+    // opens the port and runs until stop is called, the selector runs on the calling thread
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(bindAddress, port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        log.println("Listening on " + bindAddress + ":" + port + " with " + workers + " workers");
+
+        Thread ticker = new Thread(new Ticker(), "chip8-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+
+        try {
+            select();
+        } finally {
+            running = false;
+            workerPool.shutdownNow();
+            selector.close();
+            serverChannel.close();
+        }
+    }
+
+    public void stop(){
+        running = false;
+        if(selector != null){
+            selector.wakeup();
+        }
+    }
+
+    // the network side: accepts connections, reads messages and writes frames
+    private void select() throws IOException {
+        while(running){
+            selector.select();
+
+            Session session;
+            while((session = toWrite.poll()) != null){
+                SelectionKey key = session.channel.keyFor(selector);
+                if(key != null && key.isValid()){
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                if(!key.isValid()){
+                    continue;
+                }
+                if(key.isAcceptable()){
+                    accept();
+                    continue;
+                }
+                session = (Session) key.attachment();
+                try {
+                    if(key.isReadable()){
+                        int messages = session.readMessages();
+                        if(messages > 0){
+                            wokenUp.add(session);
+                        } else if(messages < 0){
+                            // the client is gone or sent something invalid, we send what's left and close
+                            session.writeOutput();
+                            close(session);
+                            continue;
+                        }
+                    }
+                    if(key.isValid() && key.isWritable() && session.writeOutput()){
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } catch(IOException e) {
+                    close(session);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = serverChannel.accept()) != null){
+            if(connected.get() >= maxSessions){
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Session session = new Session(channel);
+            session.machine.setInstructionsPerFrame(instructionsPerFrame);
+            channel.register(selector, SelectionKey.OP_READ, session);
+            connected.incrementAndGet();
+        }
+    }
+
+    private void close(Session session){
+        if(!session.isClosed()){
+            session.close();
+            connected.decrementAndGet();
+        }
+    }
+
+    // the scheduling side: one frame of every session in the run queue per tick
+    class Ticker implements Runnable {
+        private final List<Callable<Void>> tasks = new ArrayList<>();
+
+        public void run(){
+            for(int t = 0; t < workers * TASKS_PER_WORKER; t++){
+                tasks.add(new FrameTask(t, workers * TASKS_PER_WORKER));
+            }
+
+            long deadline = System.nanoTime() + SpeedController.FRAME_NANOS;
+            long nextStats = System.nanoTime() + STATS_INTERVAL_NANOS;
+            while(running){
+                long tickStart = System.nanoTime();
+                tick();
+                long now = System.nanoTime();
+                tickTimes.record(now - tickStart);
+
+                if(now >= nextStats){
+                    printStats(STATS_INTERVAL_NANOS + now - nextStats);
+                    nextStats = now + STATS_INTERVAL_NANOS;
+                }
+
+                // overloaded: everybody runs evenly slower instead of catching up in a burst
+                long lag = now - deadline;
+                if(lag > MAX_LAG_FRAMES * SpeedController.FRAME_NANOS){
+                    droppedTicks += lag / SpeedController.FRAME_NANOS;
+                    deadline = now;
+                }
+                while(running && (now = System.nanoTime()) < deadline){
+                    LockSupport.parkNanos(this, deadline - now);
+                }
+                deadline += SpeedController.FRAME_NANOS;
+            }
+        }
+
+        private void tick(){
+            Session session;
+            while((session = wokenUp.poll()) != null){
+                if(!session.scheduled & !session.isClosed()){
+                    session.scheduled = true;
+                    runQueue.add(session);
+                }
+            }
+            if(runQueue.isEmpty()){
+                return;
+            }
+
+            rotation = (rotation + 1) % runQueue.size();
+            try {
+                workerPool.invokeAll(tasks);
+            } catch(InterruptedException e) {
+                running = false;
+                return;
+            }
+
+            sessionFrames += runQueue.size();
+
+            // idle and closed sessions leave the run queue, a message puts them back
+            int kept = 0;
+            for(int s = 0; s < runQueue.size(); s++){
+                session = runQueue.get(s);
+                if(session.idle | session.isClosed()){
+                    session.scheduled = false;
+                } else {
+                    runQueue.set(kept++, session);
+                }
+            }
+            runQueue.subList(kept, runQueue.size()).clear();
+
+            if(!toWrite.isEmpty()){
+                selector.wakeup();
+            }
+        }
+    }
+
+    // runs every n-th session of the run queue, starting at a rotating offset
+    class FrameTask implements Callable<Void> {
+        private final int task;
+        private final int tasks;
+
+        FrameTask(int task, int tasks){
+            this.task = task;
+            this.tasks = tasks;
+        }
+
+        public Void call(){
+            int size = runQueue.size();
+            for(int s = task; s < size; s += tasks){
+                Session session = runQueue.get((s + rotation) % size);
+                if(session.isClosed()){
+                    continue;
+                }
+                session.runFrame(budgetInstructions, budgetNanos);
+                if(session.hasOutput()){
+                    toWrite.add(session);
+                }
+            }
+            return null;
+        }
+    }
+
+    // called by the ticker
+    private void printStats(long intervalNanos){
+        long throttled = 0;
+        long skipped = 0;
+        for(Session session : runQueue){
+            throttled += session.throttledFrames;
+            skipped += session.skippedFrames;
+        }
+        log.printf("%d sessions connected, %d running, %.0f session frames/s, %d frames throttled and %d not sent " +
+                        "by the running sessions, %d ticks dropped since the last statistics%n",
+                connected.get(), runQueue.size(), sessionFrames * 1e9 / intervalNanos, throttled, skipped, droppedTicks);
+        log.println(tickTimes.summary());
+        sessionFrames = 0;
+        droppedTicks = 0;
+        tickTimes.reset();
+    }
+
+    public int getConnectedSessions(){
+        return connected.get();
+    }
+
+    // daemon threads with readable names
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix){
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable){
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,494 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+// the tone of the sound timer: while the timer is not zero a square wave is played
+// the emulation thread only sets whether the tone is on (setActive, a volatile write), a generator
+// thread renders the samples into a small ring buffer and an output thread passes them on to a sink,
+// the speakers (javax.sound), a WAV file or nothing
+// the ring buffer holds bufferMillis of samples, which is most of the latency: the generator keeps
+// it full, so a change of the tone is heard about bufferMillis later (plus the buffer of the sink)
+// if the generator falls behind, the output plays silence for the missing samples and counts an underrun
+// while the tone is off (or muted) both threads park once the ring buffer played out and the sink is
+// paused, so a silent program costs no wakeups; setActive(true) unparks them
+public class Sound {
+
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    public static final int DEFAULT_BUFFER_MILLIS = 20;
+    public static final int DEFAULT_FREQUENCY = 440;
+    public static final int DEFAULT_VOLUME = 8000;
+    // the rise and fall of the tone, so that switching it on and off doesn't click
+    private static final int RAMP_MILLIS = 1;
+
+    // where the samples go, 16 bit signed mono
+    interface sink {
+        void open(int sampleRate, int chunkSamples) throws IOException;
+        // may block until the samples can be taken, e.g. by the sound card
+        void write(short[] samples, int count) throws IOException;
+        // whether write blocks for the time the samples take to play, otherwise the output thread waits itself
+        boolean isPaced();
+        // nothing is written for a while
+        void pause() throws IOException;
+        // writing goes on after a pause of about pausedSamples
+        void resume(long pausedSamples) throws IOException;
+        // underruns of the sink itself, e.g. the sound card ran out of samples
+        long getUnderruns();
+        void close() throws IOException;
+    }
+
+    private final sink sink;
+    private final int sampleRate;
+    private final int frequency;
+    private final int volume;
+    // samples rendered and played in one go
+    private final int chunkSamples;
+
+    // the ring buffer, one producer (the generator) and one consumer (the output)
+    private final short[] ring;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong read = new AtomicLong();
+
+    private final Thread generatorThread;
+    private final Thread outputThread;
+    private volatile boolean running = true;
+    private volatile boolean active = false;
+    private volatile boolean muted = false;
+    // the generator parks until the tone is switched on
+    private volatile boolean generatorIdle = false;
+    private volatile IOException error;
+
+    // statistics
+    private final AtomicLong playedSamples = new AtomicLong();
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong missingSamples = new AtomicLong();
+
+    // constructor
+    public Sound(sink sink, int sampleRate, int bufferMillis, int frequency, int volume) throws IOException {
+        if(bufferMillis < 4){
+            throw new IllegalArgumentException("the buffer must be at least 4 ms, got " + bufferMillis);
+        }
+        this.sink = sink;
+        this.sampleRate = sampleRate;
+        this.frequency = frequency;
+        this.volume = volume;
+        int bufferSamples = sampleRate * bufferMillis / 1000;
+        chunkSamples = Math.max(bufferSamples / 4, 1);
+        ring = new short[bufferSamples];
+        sink.open(sampleRate, chunkSamples);
+
+        generatorThread = new Thread(new Generator(), "Sound generator");
+        generatorThread.setDaemon(true);
+        generatorThread.setPriority(Thread.MAX_PRIORITY);
+        outputThread = new Thread(new Output(), "Sound output");
+        outputThread.setDaemon(true);
+        outputThread.setPriority(Thread.MAX_PRIORITY);
+        generatorThread.start();
+        outputThread.start();
+    }
+
+    public Sound(sink sink) throws IOException {
+        this(sink, DEFAULT_SAMPLE_RATE, DEFAULT_BUFFER_MILLIS, DEFAULT_FREQUENCY, DEFAULT_VOLUME);
+    }
+
+    // methods
+
+    // called by the emulation thread whenever the sound timer may have changed, cheap if nothing changed
+    public void setActive(boolean active){
+        if(this.active != active){
+            this.active = active;
+            if(active){
+                LockSupport.unpark(generatorThread);
+            }
+        }
+    }
+
+    public boolean isActive(){
+        return active;
+    }
+
+    public void setMuted(boolean muted){
+        this.muted = muted;
+        if(!muted){
+            LockSupport.unpark(generatorThread);
+        }
+    }
+
+    public boolean isMuted(){
+        return muted;
+    }
+
+    // stops both threads and closes the sink
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(generatorThread);
+        LockSupport.unpark(outputThread);
+        try {
+            generatorThread.join();
+            outputThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sink.close();
+        if(error != null){
+            throw error;
+        }
+    }
+
+    public int getSampleRate(){
+        return sampleRate;
+    }
+
+    // the latency of the ring buffer in milliseconds, without the buffer of the sink
+    public double getBufferMillis(){
+        return 1000.0 * ring.length / sampleRate;
+    }
+
+    public long getPlayedSamples(){
+        return playedSamples.get();
+    }
+
+    // times the output found fewer samples than it needed in the ring buffer
+    public long getUnderruns(){
+        return underruns.get();
+    }
+
+    public long getMissingSamples(){
+        return missingSamples.get();
+    }
+
+    public long getSinkUnderruns(){
+        return sink.getUnderruns();
+    }
+
+    public String status(){
+        return String.format("Sound: %.0f ms buffer, %d samples played, %d underruns (%d samples missing), %d underruns of the output",
+                getBufferMillis(), getPlayedSamples(), getUnderruns(), getMissingSamples(), getSinkUnderruns()) +
+                (error == null ? "" : ", failed: " + error.getMessage());
+    }
+
+    // renders chunks of the square wave while there's room in the ring buffer
+    private class Generator implements Runnable {
+        // position in the period of the wave, in sample rate * frequency units
+        private long phase = 0;
+        private int amplitude = 0;
+        private final int rampStep = Math.max(volume * 1000 / (sampleRate * RAMP_MILLIS), 1);
+        private final long chunkNanos = 1_000_000_000L * chunkSamples / sampleRate;
+
+        public void run(){
+            long period = sampleRate;
+            boolean wasIdle = false;
+            while(running){
+                if((!active | muted) & amplitude == 0){
+                    // silent, everything rendered so far plays out and the output parks as well
+                    generatorIdle = true;
+                    // setActive unparks after changing active, so a change after this check leaves a permit
+                    if((!active | muted) & running){
+                        LockSupport.park(this);
+                    }
+                    generatorIdle = false;
+                    wasIdle = true;
+                    continue;
+                }
+                long position = written.get();
+                if(ring.length - (position - read.get()) < chunkSamples){
+                    // full, the output takes a chunk about every chunkNanos
+                    LockSupport.parkNanos(chunkNanos / 2);
+                    continue;
+                }
+                int target = active & !muted ? volume : 0;
+                for(int i = 0; i < chunkSamples; i++){
+                    if(amplitude < target){
+                        amplitude = Math.min(amplitude + rampStep, target);
+                    } else if(amplitude > target){
+                        amplitude = Math.max(amplitude - rampStep, target);
+                    }
+                    phase += frequency;
+                    if(phase >= period){
+                        phase -= period;
+                    }
+                    ring[(int) ((position + i) % ring.length)] = (short) (2 * phase < period ? amplitude : -amplitude);
+                }
+                // the samples are visible to the output before the new position
+                written.set(position + chunkSamples);
+                if(wasIdle){
+                    LockSupport.unpark(outputThread);
+                    wasIdle = false;
+                }
+            }
+        }
+    }
+
+    // passes the samples on to the sink, a chunk at a time
+    private class Output implements Runnable {
+        public void run(){
+            short[] chunk = new short[chunkSamples];
+            long chunkNanos = 1_000_000_000L * chunkSamples / sampleRate;
+            try {
+                // the generator fills the buffer before the first chunk is played, until the first tone
+                long start = System.nanoTime();
+                awaitSamples(chunkNanos);
+                long next = System.nanoTime();
+                sink.resume((next - start) * sampleRate / 1_000_000_000L);
+                while(running){
+                    long position = read.get();
+                    if(position == written.get() && generatorIdle){
+                        // everything played and the tone is off
+                        sink.pause();
+                        long pauseStart = System.nanoTime();
+                        awaitSamples(chunkNanos);
+                        next = System.nanoTime();
+                        sink.resume((next - pauseStart) * sampleRate / 1_000_000_000L);
+                        continue;
+                    }
+                    int count = (int) Math.min(written.get() - position, chunkSamples);
+                    for(int i = 0; i < count; i++){
+                        chunk[i] = ring[(int) ((position + i) % ring.length)];
+                    }
+                    read.set(position + count);
+                    if(count < chunkSamples){
+                        underruns.incrementAndGet();
+                        missingSamples.addAndGet(chunkSamples - count);
+                        for(int i = count; i < chunkSamples; i++){
+                            chunk[i] = 0;
+                        }
+                    }
+                    sink.write(chunk, chunkSamples);
+                    playedSamples.addAndGet(chunkSamples);
+                    if(!sink.isPaced()){
+                        next += chunkNanos;
+                        long wait = next - System.nanoTime();
+                        if(wait > 0){
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            } catch(IOException e) {
+                error = e;
+            }
+        }
+
+        // waits until the ring buffer is nearly full, without a timeout while the generator is idle:
+        // it unparks the output with its first chunk
+        private void awaitSamples(long chunkNanos){
+            while(running && written.get() - read.get() < ring.length - chunkSamples){
+                if(generatorIdle){
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(chunkNanos / 4);
+                }
+            }
+        }
+    }
+
+    // the speakers, through a javax.sound line with a buffer of two chunks
+    public static class LineSink implements sink {
+        private SourceDataLine line;
+        private byte[] bytes;
+        private long underruns = 0;
+        private boolean started = false;
+
+        public void open(int sampleRate, int chunkSamples) throws IOException {
+            AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+            try {
+                line = AudioSystem.getSourceDataLine(format);
+                line.open(format, 2 * 2 * chunkSamples);
+            } catch(LineUnavailableException | IllegalArgumentException e) {
+                throw new IOException("no sound output: " + e.getMessage(), e);
+            }
+            bytes = new byte[2 * chunkSamples];
+            line.start();
+        }
+
+        public void write(short[] samples, int count) throws IOException {
+            for(int i = 0; i < count; i++){
+                bytes[2 * i] = (byte) samples[i];
+                bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+            }
+            // the line played everything it had, there was a gap
+            if(started && line.available() >= line.getBufferSize()){
+                underruns++;
+            }
+            started = true;
+            line.write(bytes, 0, 2 * count);
+        }
+
+        public boolean isPaced(){
+            return true;
+        }
+
+        // plays what the line has and stops it, the gap isn't an underrun
+        public void pause(){
+            line.drain();
+            line.stop();
+            started = false;
+        }
+
+        public void resume(long pausedSamples){
+            line.start();
+        }
+
+        public long getUnderruns(){
+            return underruns;
+        }
+
+        public void close(){
+            if(line != null){
+                line.drain();
+                line.close();
+            }
+        }
+    }
+
+    // a 16 bit mono WAV file of everything played, the sizes in the header are set by close
+    public static class WavSink implements sink {
+        private final File file;
+        private RandomAccessFile out;
+        private byte[] bytes;
+        private long dataBytes = 0;
+
+        public WavSink(File file){
+            this.file = file;
+        }
+
+        public void open(int sampleRate, int chunkSamples) throws IOException {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            byte[] header = new byte[44];
+            writeAscii(header, 0, "RIFF");
+            writeAscii(header, 8, "WAVE");
+            writeAscii(header, 12, "fmt ");
+            writeInt(header, 16, 16);
+            // PCM, mono
+            writeShort(header, 20, 1);
+            writeShort(header, 22, 1);
+            writeInt(header, 24, sampleRate);
+            writeInt(header, 28, 2 * sampleRate);
+            writeShort(header, 32, 2);
+            writeShort(header, 34, 16);
+            writeAscii(header, 36, "data");
+            out.write(header);
+            bytes = new byte[2 * chunkSamples];
+        }
+
+        public void write(short[] samples, int count) throws IOException {
+            for(int i = 0; i < count; i++){
+                writeShort(bytes, 2 * i, samples[i]);
+            }
+            out.write(bytes, 0, 2 * count);
+            dataBytes += 2 * count;
+        }
+
+        public boolean isPaced(){
+            return false;
+        }
+
+        public void pause(){
+        }
+
+        // the file keeps the timing, the pause is written as silence
+        public void resume(long pausedSamples) throws IOException {
+            byte[] silence = new byte[bytes.length];
+            while(pausedSamples > 0){
+                int count = (int) Math.min(pausedSamples, silence.length / 2);
+                out.write(silence, 0, 2 * count);
+                dataBytes += 2 * count;
+                pausedSamples -= count;
+            }
+        }
+
+        public long getUnderruns(){
+            return 0;
+        }
+
+        public void close() throws IOException {
+            if(out != null){
+                byte[] size = new byte[4];
+                writeInt(size, 0, (int) (36 + dataBytes));
+                out.seek(4);
+                out.write(size);
+                writeInt(size, 0, (int) dataBytes);
+                out.seek(40);
+                out.write(size);
+                out.close();
+                out = null;
+            }
+        }
+
+        private static void writeAscii(byte[] data, int offset, String text){
+            for(int i = 0; i < text.length(); i++){
+                data[offset + i] = (byte) text.charAt(i);
+            }
+        }
+
+        private static void writeShort(byte[] data, int offset, int value){
+            data[offset] = (byte) value;
+            data[offset + 1] = (byte) (value >> 8);
+        }
+
+        private static void writeInt(byte[] data, int offset, int value){
+            writeShort(data, offset, value);
+            writeShort(data, offset + 2, value >> 16);
+        }
+    }
+
+    // plays nothing, for headless use and tests, it counts the samples which were on
+    public static class NullSink implements sink {
+        private volatile long toneSamples = 0;
+
+        public void open(int sampleRate, int chunkSamples){
+        }
+
+        public void write(short[] samples, int count){
+            long tone = toneSamples;
+            for(int i = 0; i < count; i++){
+                if(samples[i] != 0){
+                    tone++;
+                }
+            }
+            toneSamples = tone;
+        }
+
+        public boolean isPaced(){
+            return false;
+        }
+
+        public void pause(){
+        }
+
+        public void resume(long pausedSamples){
+        }
+
+        public long getUnderruns(){
+            return 0;
+        }
+
+        public long getToneSamples(){
+            return toneSamples;
+        }
+
+        public void close(){
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.locks.LockSupport;
+
+// paces the emulation to a target number of instructions per second of emulated time
+// instead of sleeping a fixed time per instruction (which gives a different speed on every computer)
+// every frame (timer cycle, 60 per second) runs its share of the instructions in one batch and then
+// waits for the frame's deadline, which is measured with System.nanoTime
+// if the computer can't keep up, the frames are stretched evenly (the whole game runs slower, the
+// ratio of instructions to timer ticks stays the same) and a backlog of more than a few frames
+// is dropped instead of running the missed frames in a burst
+public class SpeedController {
+
+    public static final int FRAMES_PER_SECOND = 60;
+    public static final long FRAME_NANOS = 1_000_000_000L / FRAMES_PER_SECOND;
+    public static final int DEFAULT_INSTRUCTIONS_PER_SECOND = 700;
+
+    // frames we are allowed to be late before the backlog is dropped
+    private static final int MAX_LAG_FRAMES = 4;
+    // the part of a frame the instructions may take before the frames are stretched
+    private static final double BUSY_BUDGET = 0.8;
+    // weight of the newest frame in the average time per instruction
+    private static final double SMOOTHING = 0.1;
+
+    // changed by the event dispatch thread, everything else belongs to the emulation thread
+    private volatile boolean enabled = false;
+    private volatile int instructionsPerSecond = DEFAULT_INSTRUCTIONS_PER_SECOND;
+    private volatile boolean restartRequested = true;
+
+    private int targetPerSecond;
+    // the instructions of the current frame, and the rest carried over to the next frame
+    // (700 instructions per second are 11.67 per frame)
+    private int frameInstructions;
+    private int carry;
+
+    private long deadline;
+    private long framePeriod = FRAME_NANOS;
+    private double nanosPerInstruction = 0;
+    private long busyNanos = 0;
+    private int busyInstructions = 0;
+
+    // statistics
+    private volatile long frames = 0;
+    private volatile long droppedFrames = 0;
+    private volatile long stretchedFrames = 0;
+
+    // methods
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    // switches to adaptive speed with the given target, the controller starts over
+    public void enable(int instructionsPerSecond){
+        if(instructionsPerSecond <= 0){
+            throw new IllegalArgumentException("instructions per second must be positive: " + instructionsPerSecond);
+        }
+        this.instructionsPerSecond = instructionsPerSecond;
+        restartRequested = true;
+        enabled = true;
+    }
+
+    public void disable(){
+        enabled = false;
+    }
+
+    public int getInstructionsPerSecond(){
+        return instructionsPerSecond;
+    }
+
+    // starts over from now, e.g. after the emulation was paused
+    public void restart(){
+        restartRequested = true;
+    }
+
+    // the instructions to execute in the current frame
+    public int getFrameInstructions(){
+        if(restartRequested){
+            restartRequested = false;
+            targetPerSecond = instructionsPerSecond;
+            carry = 0;
+            framePeriod = FRAME_NANOS;
+            busyNanos = 0;
+            busyInstructions = 0;
+            nextFrameInstructions();
+            deadline = System.nanoTime() + framePeriod;
+        }
+        return frameInstructions;
+    }
+
+    // the time it took to execute a batch of instructions
+    public void recordBatch(int instructions, long nanos){
+        busyInstructions += instructions;
+        busyNanos += nanos;
+    }
+
+    // waits for the end of the current frame, returns true if it's reached
+    // or false if the thread was woken up early (e.g. by a key event)
+    public boolean parkUntilDeadline(Object blocker){
+        long remaining = deadline - System.nanoTime();
+        if(remaining <= 0){
+            return true;
+        }
+        LockSupport.parkNanos(blocker, remaining);
+        return deadline - System.nanoTime() <= 0;
+    }
+
+    // called after the timers were decremented, sets up the next frame
+    public void endFrame(){
+        frames++;
+        long now = System.nanoTime();
+
+        // the frame is more than a few frames late: we don't try to catch up any more
+        long lag = now - deadline;
+        if(lag > MAX_LAG_FRAMES * framePeriod){
+            droppedFrames += lag / framePeriod;
+            deadline = now;
+        }
+
+        if(busyInstructions > 0){
+            double measured = (double) busyNanos / busyInstructions;
+            nanosPerInstruction = nanosPerInstruction == 0 ? measured
+                    : (1 - SMOOTHING) * nanosPerInstruction + SMOOTHING * measured;
+        }
+        busyNanos = 0;
+        busyInstructions = 0;
+
+        nextFrameInstructions();
+
+        // stretch the next frame if its instructions wouldn't fit into the budget
+        long needed = (long) (nanosPerInstruction * frameInstructions / BUSY_BUDGET);
+        framePeriod = Math.max(FRAME_NANOS, needed);
+        if(framePeriod > FRAME_NANOS){
+            stretchedFrames++;
+        }
+        deadline += framePeriod;
+    }
+
+    private void nextFrameInstructions(){
+        carry += targetPerSecond;
+        frameInstructions = carry / FRAMES_PER_SECOND;
+        carry %= FRAMES_PER_SECOND;
+    }
+
+    // the emulated speed compared to the target, below 1 if the computer can't keep up
+    public double getEffectiveSpeed(){
+        return (double) FRAME_NANOS / framePeriod;
+    }
+
+    public long getFrames(){
+        return frames;
+    }
+
+    public long getDroppedFrames(){
+        return droppedFrames;
+    }
+
+    public long getStretchedFrames(){
+        return stretchedFrames;
+    }
+
+    public void resetStatistics(){
+        frames = 0;
+        droppedFrames = 0;
+        stretchedFrames = 0;
+    }
+
+    // one line of html for the frame times window
+    public String statusHtml(){
+        if(!enabled){
+            return "Adaptive speed is off";
+        }
+        return "Adaptive speed: " + instructionsPerSecond + " instructions/s, " +
+                String.format("%.0f%%", 100 * getEffectiveSpeed()) + " reached, " +
+                stretchedFrames + " of " + frames + " frames stretched, " + droppedFrames + " dropped";
+    }
+
+}